@@ -0,0 +1,334 @@
+/**
+ * Offline airport database.
+ */
+
+package org.efalk.altimeter;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Airport positions and elevations, for finding the nearest fields.
+ *
+ * The file is a grid of 1x1 degree cells with the airports sorted by
+ * cell, so the cell index is all the spatial index there is:
+ *
+ *   header   MAGIC, count
+ *   index    CELLS+1 ints: first airport in each cell, row by row
+ *            from 90S 180W; the last one is the count
+ *   records  REC bytes each: lat, lon (int, microdegrees),
+ *            elevation (short, feet), ident (IDENT bytes of ASCII,
+ *            NUL padded)
+ *
+ * Big-endian throughout. 40,000 airports come to about 980 KB, of
+ * which 250 KB is the index. The file is memory-mapped, so opening it
+ * reads nothing; a query touches the index entries and records of a
+ * few cells around the point. Queries allocate nothing.
+ *
+ * The file is built from the OurAirports airports.csv with
+ * {@link #importCsv}.
+ */
+public class AirportDb {
+    private static final int MAGIC = 0x41505432;	// "APT2"
+    private static final int HEADER = 8;
+    private static final int ROWS = 180, COLS = 360;
+    private static final int CELLS = ROWS * COLS;
+    private static final int IDENT = 8;	// OurAirports idents run to 7
+    private static final int REC = 10 + IDENT;
+    private static final int MAX_RING = 10;		// cells
+    private static final double MICRO = 1e-6;
+
+    private final ByteBuffer buf;
+    private final int count;
+    private final int records;		// offset of the first record
+
+    /**
+     * Map an airport file.
+     */
+    public AirportDb(File f) throws IOException {
+	RandomAccessFile raf = new RandomAccessFile(f, "r");
+	try {
+	    buf = raf.getChannel()
+	      .map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+	} finally {
+	    raf.close();
+	}
+	if (buf.capacity() < HEADER || buf.getInt(0) != MAGIC)
+	    throw new IOException("Not an airport file, or an old one: " +
+	      f);
+	count = buf.getInt(4);
+	records = HEADER + (CELLS + 1) * 4;
+	if (buf.capacity() != records + (long)count * REC)
+	    throw new IOException("Truncated airport file: " + f);
+    }
+
+    /**
+     * True if f is an airport file in the current format, so it
+     * needn't be built again.
+     */
+    public static boolean isCurrent(File f) {
+	try {
+	    RandomAccessFile raf = new RandomAccessFile(f, "r");
+	    try {
+		return raf.length() >= HEADER && raf.readInt() == MAGIC;
+	    } finally {
+		raf.close();
+	    }
+	} catch (IOException e) {
+	    return false;
+	}
+    }
+
+    public int getCount() {
+	return count;
+    }
+
+    /** Latitude of airport i, degrees */
+    public double getLat(int i) {
+	return buf.getInt(records + i * REC) * MICRO;
+    }
+
+    /** Longitude of airport i, degrees */
+    public double getLon(int i) {
+	return buf.getInt(records + i * REC + 4) * MICRO;
+    }
+
+    /** Elevation of airport i, feet, as published */
+    public int getElevationFt(int i) {
+	return buf.getShort(records + i * REC + 8);
+    }
+
+    public String getIdent(int i) {
+	int p = records + i * REC + 10;
+	char[] c = new char[IDENT];
+	int n = 0;
+	while (n < IDENT && buf.get(p + n) != 0) {
+	    c[n] = (char)buf.get(p + n);
+	    ++n;
+	}
+	return new String(c, 0, n);
+    }
+
+    /**
+     * Find the airports nearest a point, nearest first. Searches
+     * outward a ring of cells at a time, until nothing outside the
+     * rings searched can be closer than the n'th best, or MAX_RING
+     * cells out (600 nm or so). Distances are on a flat projection
+     * around the point, which is plenty over that range.
+     * @param ids   airport numbers found
+     * @param dist  their distances, nautical miles
+     * @return the number found, up to ids.length
+     */
+    public int nearest(double lat, double lon, int[] ids, float[] dist) {
+	int n = 0, max = ids.length;
+	int row0 = (int)Math.floor(lat) + 90;
+	int col0 = (int)Math.floor(lon) + 180;
+	float cos = (float)Math.cos(Math.toRadians(lat));
+	for (int r = 0; r <= MAX_RING; ++r) {
+	    for (int dr = -r; dr <= r; ++dr) {
+		int row = row0 + dr;
+		if (row < 0 || row >= ROWS) continue;
+		// The whole row on the top and bottom edges of the ring,
+		// the ends of it in between
+		int step = dr == -r || dr == r ? 1 : Math.max(2 * r, 1);
+		for (int dc = -r; dc <= r; dc += step) {
+		    int col = ((col0 + dc) % COLS + COLS) % COLS;
+		    n = scan(row * COLS + col, lat, lon, cos, ids, dist, n);
+		}
+	    }
+	    if (n == max && dist[n-1] <= bound(lat, lon, r)) break;
+	}
+	return n;
+    }
+
+    /**
+     * Check the airports of one cell against the best so far, which
+     * are kept sorted by insertion.
+     */
+    private int scan(int cell, double lat, double lon, float cos,
+	    int[] ids, float[] dist, int n)
+    {
+	int max = ids.length;
+	int end = buf.getInt(HEADER + (cell + 1) * 4);
+	for (int i = buf.getInt(HEADER + cell * 4); i < end; ++i) {
+	    int p = records + i * REC;
+	    float dy = (float)(buf.getInt(p) * MICRO - lat);
+	    float dx = (float)(buf.getInt(p + 4) * MICRO - lon);
+	    if (dx > 180) dx -= 360;
+	    else if (dx < -180) dx += 360;
+	    dx *= cos;
+	    float d = (float)Math.sqrt(dx * dx + dy * dy) * 60;
+	    if (n == max && d >= dist[n-1]) continue;
+	    int j = n < max ? n++ : n - 1;
+	    while (j > 0 && dist[j-1] > d) {
+		ids[j] = ids[j-1];
+		dist[j] = dist[j-1];
+		--j;
+	    }
+	    ids[j] = i;
+	    dist[j] = d;
+	}
+	return n;
+    }
+
+    /**
+     * Nearest any airport outside the cells within r of the point's
+     * cell could be, nautical miles.
+     */
+    private static float bound(double lat, double lon, int r) {
+	double la = Math.floor(lat), lo = Math.floor(lon);
+	double south = la - r <= -90 ? 180 : lat - (la - r);
+	double north = la + r + 1 >= 90 ? 180 : la + r + 1 - lat;
+	// East-west degrees are shortest at the poleward edge
+	double edge = Math.min(90, Math.max(Math.abs(la - r),
+	  Math.abs(la + r + 1)));
+	double cos = Math.cos(Math.toRadians(edge));
+	double ew = Math.min(lon - (lo - r), lo + r + 1 - lon) * cos;
+	return (float)(Math.min(Math.min(south, north), ew) * 60);
+    }
+
+
+    // Building the file
+
+    /**
+     * Write an airport file.
+     * @param n      number of airports
+     * @param lat    latitudes, degrees
+     * @param lon    longitudes, degrees
+     * @param elev   elevations, feet
+     * @param ident  identifiers; only the first IDENT characters are
+     *               kept
+     */
+    public static void write(File f, int n, double[] lat, double[] lon,
+	    int[] elev, String[] ident) throws IOException
+    {
+	// Counting sort by cell
+	int[] cell = new int[n];
+	int[] start = new int[CELLS + 1];
+	for (int i = 0; i < n; ++i) {
+	    int row = Math.min(Math.max((int)Math.floor(lat[i]) + 90, 0),
+	      ROWS - 1);
+	    int col = ((int)Math.floor(lon[i]) + 180) % COLS;
+	    if (col < 0) col += COLS;
+	    cell[i] = row * COLS + col;
+	    ++start[cell[i] + 1];
+	}
+	for (int c = 0; c < CELLS; ++c) start[c + 1] += start[c];
+	int[] order = new int[n];
+	int[] next = new int[CELLS];
+	System.arraycopy(start, 0, next, 0, CELLS);
+	for (int i = 0; i < n; ++i) order[next[cell[i]]++] = i;
+
+	DataOutputStream out = new DataOutputStream(
+	  new BufferedOutputStream(new FileOutputStream(f), 65536));
+	try {
+	    out.writeInt(MAGIC);
+	    out.writeInt(n);
+	    for (int c = 0; c <= CELLS; ++c) out.writeInt(start[c]);
+	    for (int k = 0; k < n; ++k) {
+		int i = order[k];
+		out.writeInt((int)Math.round(lat[i] / MICRO));
+		out.writeInt((int)Math.round(lon[i] / MICRO));
+		out.writeShort(elev[i]);
+		String id = ident[i];
+		for (int j = 0; j < IDENT; ++j)
+		    out.writeByte(j < id.length() ? id.charAt(j) : 0);
+	    }
+	} finally {
+	    out.close();
+	}
+    }
+
+    /**
+     * Convert the OurAirports airports.csv to an airport file. Closed
+     * airports, heliports, seaplane bases and balloonports are left
+     * out, as are entries with no elevation.
+     * @return the number of airports written
+     */
+    public static int importCsv(File csv, File f) throws IOException {
+	int n = 0;
+	double[] lat = new double[65536];
+	double[] lon = new double[65536];
+	int[] elev = new int[65536];
+	String[] ident = new String[65536];
+	String[] fields = new String[16];
+	BufferedReader in = new BufferedReader(new FileReader(csv), 65536);
+	try {
+	    String line = in.readLine();		// column names
+	    while ((line = in.readLine()) != null) {
+		// id,ident,type,name,latitude_deg,longitude_deg,elevation_ft
+		if (split(line, fields) < 7) continue;
+		String type = fields[2];
+		if (!type.endsWith("_airport") || fields[6].length() == 0)
+		    continue;
+		if (n == lat.length) {
+		    lat = grow(lat);
+		    lon = grow(lon);
+		    int[] e = new int[n * 2];
+		    System.arraycopy(elev, 0, e, 0, n);
+		    elev = e;
+		    String[] s = new String[n * 2];
+		    System.arraycopy(ident, 0, s, 0, n);
+		    ident = s;
+		}
+		try {
+		    lat[n] = Double.parseDouble(fields[4]);
+		    lon[n] = Double.parseDouble(fields[5]);
+		    elev[n] = Integer.parseInt(fields[6]);
+		} catch (NumberFormatException e) {
+		    continue;
+		}
+		ident[n++] = fields[1];
+	    }
+	} finally {
+	    in.close();
+	}
+	write(f, n, lat, lon, elev, ident);
+	return n;
+    }
+
+    private static double[] grow(double[] a) {
+	double[] b = new double[a.length * 2];
+	System.arraycopy(a, 0, b, 0, a.length);
+	return b;
+    }
+
+    /**
+     * Split a CSV line into at most fields.length fields, removing
+     * the quotes. Commas in quotes are kept; a field with a line
+     * break in it isn't handled, but none of the ones we use have.
+     * @return number of fields
+     */
+    private static int split(String line, String[] fields) {
+	int n = 0, i = 0, len = line.length();
+	StringBuilder sb = new StringBuilder();
+	while (i <= len && n < fields.length) {
+	    sb.setLength(0);
+	    boolean quoted = false;
+	    for (; i < len; ++i) {
+		char c = line.charAt(i);
+		if (c == '"') {
+		    if (quoted && i + 1 < len && line.charAt(i + 1) == '"')
+			sb.append(line.charAt(++i));
+		    else
+			quoted = !quoted;
+		} else if (c == ',' && !quoted) {
+		    break;
+		} else {
+		    sb.append(c);
+		}
+	    }
+	    fields[n++] = sb.toString();
+	    ++i;
+	}
+	return n;
+    }
+}
@@ -0,0 +1,304 @@
+/**
+ * Altitude alerter.
+ */
+
+package org.efalk.altimeter;
+
+/**
+ * Checks every filtered sample against a small set of rules:
+ *
+ *  CAPTURE    target altitude: an APPROACH alert when within
+ *             APPROACH of it and heading for it, then once inside
+ *             the band, a DEVIATION alert on leaving it
+ *  BAND       hold between two altitudes: DEVIATION on leaving
+ *  MINIMUMS   MINIMUMS on descending through an altitude
+ *  SINK       SINK when descending faster than a rate
+ *
+ * A condition has to hold for DEBOUNCE before it fires, and a rule
+ * fires once, then has to be cleared by HYST (altitude) or VSI_HYST
+ * before it can fire again, so noise around a threshold doesn't make
+ * a string of alerts.
+ *
+ * Rules live in fixed parallel arrays and each costs a few compares
+ * per sample; nothing is allocated after construction. update() and
+ * the rule calls run on one thread (the sensor thread). Alerts go
+ * into a small ring, which another thread empties with drain(); one
+ * producer, one consumer, no locks. Altitudes are meters, rates
+ * meters/second.
+ *
+ * Pure computation, no Android dependencies, so it can be driven
+ * from a replayed log.
+ */
+public class AlertEngine {
+    // Rule types
+    public static final int CAPTURE = 1;
+    public static final int BAND = 2;
+    public static final int MINIMUMS = 3;
+    public static final int SINK = 4;
+
+    // Alerts
+    public static final int ALERT_APPROACH = 1;
+    public static final int ALERT_DEVIATION = 2;
+    public static final int ALERT_MINIMUMS = 3;
+    public static final int ALERT_SINK = 4;
+
+    public static final int MAX_RULES = 16;
+    public static final float APPROACH = 300;		// m, ~1000 ft
+    public static final float CAPTURE_BAND = 60;	// m, ~200 ft
+    private static final float HYST = 15;		// m, ~50 ft
+    private static final float VSI_HYST = 0.5f;		// m/s, ~100 fpm
+    private static final float TOWARD = 0.25f;		// m/s, ~50 fpm
+    private static final long DEBOUNCE = 1000000000L;	// ns
+
+    // Rule states
+    private static final int ARMED = 0;
+    private static final int APPROACHING = 1;
+    private static final int INSIDE = 2;
+    private static final int FIRED = 3;
+
+    /**
+     * Receives alerts from drain().
+     */
+    public interface Listener {
+	/**
+	 * @param rule   rule id, as returned when it was added
+	 * @param alert  ALERT_*
+	 * @param ts     sample timestamp, ns
+	 * @param alt    altitude, meters
+	 */
+	void onAlert(int rule, int alert, long ts, float alt);
+    }
+
+    private final int[] type = new int[MAX_RULES];	// 0 = free
+    private final float[] lo = new float[MAX_RULES];
+    private final float[] hi = new float[MAX_RULES];
+    private final int[] state = new int[MAX_RULES];
+    private final long[] since = new long[MAX_RULES];	// -1 = not pending
+    private int nRules = 0;		// highest slot in use + 1
+
+    private static final int QSIZE = 32;
+    private final int[] qRule = new int[QSIZE];
+    private final int[] qAlert = new int[QSIZE];
+    private final long[] qTs = new long[QSIZE];
+    private final float[] qAlt = new float[QSIZE];
+    private volatile int qHead = 0, qTail = 0;
+    private long dropped = 0;
+
+    /**
+     * Alert when approaching the target, and on leaving target+-band
+     * once it's been reached.
+     * @return rule id, or -1 if there's no room
+     */
+    public int addCapture(float target, float band) {
+	return add(CAPTURE, target - band, target + band);
+    }
+
+    /**
+     * Alert on leaving lo..hi, once inside it.
+     */
+    public int addBand(float lo, float hi) {
+	return add(BAND, lo, hi);
+    }
+
+    /**
+     * Alert on descending through alt.
+     */
+    public int addMinimums(float alt) {
+	return add(MINIMUMS, alt, alt);
+    }
+
+    /**
+     * Alert when descending faster than rate (a positive number).
+     */
+    public int addSink(float rate) {
+	return add(SINK, -rate, -rate);
+    }
+
+    private int add(int t, float l, float h) {
+	for (int i = 0; i < MAX_RULES; ++i) {
+	    if (type[i] == 0) {
+		type[i] = t;
+		lo[i] = l;
+		hi[i] = h;
+		state[i] = ARMED;
+		since[i] = -1;
+		if (i >= nRules) nRules = i + 1;
+		return i;
+	    }
+	}
+	return -1;
+    }
+
+    public void remove(int rule) {
+	if (rule < 0 || rule >= MAX_RULES) return;
+	type[rule] = 0;
+	while (nRules > 0 && type[nRules-1] == 0) --nRules;
+    }
+
+    public void clear() {
+	for (int i = 0; i < nRules; ++i) type[i] = 0;
+	nRules = 0;
+    }
+
+    /** Alerts lost because the ring was full, for diagnostics */
+    public long getDropped() {
+	return dropped;
+    }
+
+    /**
+     * Check one sample against all the rules.
+     * @param ts   timestamp, ns
+     * @param alt  filtered altitude, meters
+     * @param vsi  filtered vertical speed, meters/second
+     * @return true if an alert was queued
+     */
+    public boolean update(long ts, float alt, float vsi) {
+	boolean fired = false;
+	for (int i = 0; i < nRules; ++i) {
+	    switch (type[i]) {
+	      case CAPTURE: fired |= capture(i, ts, alt, vsi); break;
+	      case BAND: fired |= band(i, ts, alt); break;
+	      case MINIMUMS: fired |= minimums(i, ts, alt); break;
+	      case SINK: fired |= sink(i, ts, alt, vsi); break;
+	    }
+	}
+	return fired;
+    }
+
+    private boolean capture(int i, long ts, float alt, float vsi) {
+	float l = lo[i], h = hi[i];
+	boolean inside = alt >= l && alt <= h;
+	switch (state[i]) {
+	  case ARMED:
+	    if (inside) {
+		state[i] = INSIDE;
+		since[i] = -1;
+		return false;
+	    }
+	    boolean near = alt < l ? alt >= l - APPROACH && vsi > TOWARD
+			: alt <= h + APPROACH && vsi < -TOWARD;
+	    if (held(i, ts, near)) {
+		state[i] = APPROACHING;
+		return alert(i, ALERT_APPROACH, ts, alt);
+	    }
+	    return false;
+	  case APPROACHING:
+	    if (inside) {
+		state[i] = INSIDE;
+		since[i] = -1;
+	    } else if (alt < l - APPROACH - HYST ||
+		       alt > h + APPROACH + HYST) {
+		state[i] = ARMED;
+		since[i] = -1;
+	    }
+	    return false;
+	  case INSIDE:
+	    if (held(i, ts, alt < l - HYST || alt > h + HYST)) {
+		state[i] = FIRED;
+		return alert(i, ALERT_DEVIATION, ts, alt);
+	    }
+	    return false;
+	  default:		// FIRED: wait to get back inside
+	    if (inside) {
+		state[i] = INSIDE;
+		since[i] = -1;
+	    }
+	    return false;
+	}
+    }
+
+    private boolean band(int i, long ts, float alt) {
+	if (state[i] == ARMED) {
+	    // Not armed until we're well inside
+	    if (alt >= lo[i] + HYST && alt <= hi[i] - HYST) {
+		state[i] = INSIDE;
+		since[i] = -1;
+	    }
+	    return false;
+	}
+	if (state[i] == INSIDE) {
+	    if (held(i, ts, alt < lo[i] || alt > hi[i])) {
+		state[i] = ARMED;
+		return alert(i, ALERT_DEVIATION, ts, alt);
+	    }
+	}
+	return false;
+    }
+
+    private boolean minimums(int i, long ts, float alt) {
+	if (state[i] == ARMED) {
+	    if (alt > lo[i] + HYST) {
+		state[i] = INSIDE;		// above minimums
+		since[i] = -1;
+	    }
+	    return false;
+	}
+	if (held(i, ts, alt < lo[i])) {
+	    state[i] = ARMED;
+	    return alert(i, ALERT_MINIMUMS, ts, alt);
+	}
+	return false;
+    }
+
+    private boolean sink(int i, long ts, float alt, float vsi) {
+	if (state[i] == FIRED) {
+	    if (vsi > lo[i] + VSI_HYST) {
+		state[i] = ARMED;
+		since[i] = -1;
+	    }
+	    return false;
+	}
+	if (held(i, ts, vsi < lo[i])) {
+	    state[i] = FIRED;
+	    return alert(i, ALERT_SINK, ts, alt);
+	}
+	return false;
+    }
+
+    /**
+     * Debounce: true once cond has held for DEBOUNCE.
+     */
+    private boolean held(int i, long ts, boolean cond) {
+	if (!cond) {
+	    since[i] = -1;
+	    return false;
+	}
+	if (since[i] < 0) since[i] = ts;
+	if (ts - since[i] < DEBOUNCE) return false;
+	since[i] = -1;
+	return true;
+    }
+
+    private boolean alert(int rule, int alert, long ts, float alt) {
+	int h = qHead;
+	int next = (h + 1) % QSIZE;
+	if (next == qTail) {		// nobody's reading them
+	    ++dropped;
+	    return false;
+	}
+	qRule[h] = rule;
+	qAlert[h] = alert;
+	qTs[h] = ts;
+	qAlt[h] = alt;
+	qHead = next;
+	return true;
+    }
+
+    /**
+     * Deliver the queued alerts. Call from the consumer thread only.
+     * @param l  listener, or null to discard them
+     * @return number of alerts taken from the queue
+     */
+    public int drain(Listener l) {
+	int t = qTail;
+	int h = qHead;
+	int n = 0;
+	while (t != h) {
+	    if (l != null) l.onAlert(qRule[t], qAlert[t], qTs[t], qAlt[t]);
+	    t = (t + 1) % QSIZE;
+	    ++n;
+	}
+	qTail = t;
+	return n;
+    }
+}
@@ -1,8 +1,6 @@
 
 package org.efalk.altimeter;
 
-import java.text.DecimalFormat;
-
 import android.app.Activity;
 import android.content.Context;
 //import android.view.MotionEvent;
@@ -10,6 +8,7 @@ import android.view.View;
 import android.util.DisplayMetrics;
 import android.util.Log;
 import android.util.AttributeSet;
+import android.os.SystemClock;
 import android.graphics.Canvas;
 import android.graphics.Paint;
 import android.graphics.Path;
@@ -41,6 +40,12 @@ public class Altimeter extends View {
     private static final float KOLLSMAN_Y = 0.5f;	// center
     private static final float GAUGE_X = 0.09f;		// right edge
     private static final float GAUGE_Y = 0.5f;		// center
+    private static final float AGL_Y = 0.72f;		// center
+    private static final int AGL_STEP = 10;		// display units
+
+    // Low-power mode
+    private static final long LOW_POWER_PERIOD = 500;	// ms between frames
+    private static final int LOW_POWER_ALPHA = 96;	// dial face
 
     private Paint paint, lblPaint;
     private int wid, hgt;
@@ -51,14 +56,30 @@ public class Altimeter extends View {
     private float pressure = 1013;	// arbitrary
     private float kollsman = 1013;
     private float altitude = 0;		// meters
+    private float vsi = 0;		// meters/second
     private boolean inop = true;
-    private Barometer barometer;
-    private DecimalFormat fmt = new DecimalFormat("00.00");
+    private String klbl;		// Kollsman window text, cached
+    private float klblValue;
+    private int klblUnits = -1;
+    private final char[] kbuf = new char[8];
     private float xc, yc;
     private float kx, ky, kw, kh, kp;	// Kollsman window
     private float gx, gy;	// Gauge
     private RectF rk;
-    private Gauge gauge;
+    private Gauge gauge;		// built in the background
+    private int builtUnits = -1;	// units of gauge
+    private int buildingUnits = -1;	// units of the gauge being built
+    private boolean drawn = false;
+    private float drawnAlt;		// altitude last drawn, display units
+    private float pxPerUnit;		// fastest hand tip, px per unit
+    private int framesSkipped;
+    private boolean lowPower = false;
+    private int fg = Color.WHITE, fg2 = 0xffcccccc;	// hand colors
+    private float snap;			// low power: hand steps per turn
+    private final FrameLimiter limiter = new FrameLimiter();
+    private String aglLbl;		// null = not shown
+    private int aglShown = Integer.MIN_VALUE;
+    private int aglUnits = -1;
 
     // Pointer descriptions. Numbers give as fractions of display width.
     private static final float[] ptr10000Pts =
@@ -101,30 +122,140 @@ public class Altimeter extends View {
     public void setAltUnits(int units) {
 	if (units != altUnits) {
 	    altUnits = units;
-	    gauge = new Gauge(0, 50000,
-	      units == UNITS_FT ? 10 : 5, lblPaint, true);
-	    gauge.setXY((int)gx, (int)gy);
+	    // Before the first layout, this is all we need; the gauge is
+	    // built once the size is known.
+	    if (wid > 0) buildGauge();
 	}
     }
 
     /**
-     * Set barometric pressure.
-     * @param v    pressure, mB
-     * @param now  timestamp, ns
+     * Build the altitude gauge for the current units on a background
+     * thread, as it measures text, and swap it in when it's done. Until
+     * then the dial is drawn without it; the old gauge is only drawn
+     * while its units are still the ones on display.
+     */
+    private void buildGauge() {
+	if (builtUnits == altUnits || buildingUnits == altUnits) return;
+	final int units = altUnits;
+	final Paint p = new Paint(lblPaint);
+	buildingUnits = units;
+	new Thread(new Runnable() {
+	    public void run() {
+		final Gauge g = new Gauge(0, 50000,
+		  units == UNITS_FT ? 10 : 5, p, true);
+		post(new Runnable() {
+		    public void run() {
+			if (buildingUnits == units) buildingUnits = -1;
+			if (units != altUnits) return;	// changed again
+			g.setXY((int)gx, (int)gy);
+			g.setStyle(fg, !lowPower);
+			gauge = g;
+			builtUnits = units;
+			invalidate();
+		    }
+		});
+	    }
+	}, "gauge").start();
+    }
+
+    /**
+     * Set the latest reading. The filtering is done by whoever owns
+     * the Barometer, normally AltimeterService.
+     * @param pres  pressure, mB
+     * @param alt   altitude, meters
+     * @param vsi   vertical speed, meters/second
      */
-    public void setPressure(float v, long now) {
-	pressure = v;
-	altitude = barometer.p2aDamped(v, now);
+    public void setReading(float pres, float alt, float vsi) {
+	pressure = pres;
+	altitude = alt;
+	this.vsi = vsi;
+	if (!inop && !moved()) {
+	    ++framesSkipped;
+	    return;
+	}
 	inop = false;
+	// In low power, at most one frame per LOW_POWER_PERIOD; readings
+	// in between are picked up by the next one.
+	long wait = limiter.request(SystemClock.uptimeMillis());
+	if (wait == 0) invalidate();
+	else if (wait > 0) postInvalidateDelayed(wait);
+    }
+
+    /**
+     * Low-power display for long flights: dark palette, no
+     * anti-aliasing, hands moved in whole-pixel steps and no more
+     * than two frames a second. The owner should slow the sensor down
+     * to match.
+     */
+    public void setLowPower(boolean on) {
+	if (on == lowPower) return;
+	lowPower = on;
+	limiter.setPeriod(on ? LOW_POWER_PERIOD : 0);
+	fg = on ? 0xff909090 : Color.WHITE;
+	fg2 = on ? 0xff707070 : 0xffcccccc;
+	paint.setAntiAlias(!on);
+	lblPaint.setAntiAlias(!on);
+	if (gauge != null) gauge.setStyle(fg, !on);
+	if (getBackground() != null)
+	    getBackground().setAlpha(on ? LOW_POWER_ALPHA : 255);
 	invalidate();
     }
 
+    /**
+     * Would a redraw move anything by a pixel or more since the last
+     * one? Sensor noise changes the altitude on every sample, but a
+     * centimeter or two doesn't show. Compared against what was last
+     * drawn, so a slow drift still gets drawn once it adds up.
+     */
+    private boolean moved() {
+	if (wid <= 0) return true;
+	float alt = altitude;
+	if (altUnits == UNITS_FT)
+	    alt *= METER_FT;
+	if (Math.abs(alt - drawnAlt) * pxPerUnit >= 1)
+	    return true;
+	return gauge != null && builtUnits == altUnits && gauge.moves(alt);
+    }
+
+    /**
+     * Height above ground, meters, or NaN to hide it. Shown to the
+     * nearest AGL_STEP so it doesn't flicker; only a change in that
+     * causes a redraw.
+     */
+    public void setAgl(float meters) {
+	int v = Integer.MIN_VALUE;
+	if (!Float.isNaN(meters)) {
+	    float a = altUnits == UNITS_FT ? meters * METER_FT : meters;
+	    v = Math.round(a / AGL_STEP) * AGL_STEP;
+	}
+	if (v == aglShown && altUnits == aglUnits) return;
+	aglShown = v;
+	aglUnits = altUnits;
+	aglLbl = v == Integer.MIN_VALUE ? null : "AGL " + v;
+	invalidate();
+    }
+
+    /** Number of frames drawn since the view was created */
+    public int getFramesDrawn() {
+	return limiter.getFrames();
+    }
+
+    /** Frames drawn and mean onDraw time, normal and low power */
+    public String getDrawTimes() {
+	return limiter.drawTimes();
+    }
+
+    /** Number of readings not drawn as nothing would visibly move */
+    public int getFramesSkipped() {
+	return framesSkipped;
+    }
+
     /**
      * Set kollsman window value. v is in mB.
      */
     public void setKollsman(float v) {
 	kollsman = v;
-	barometer.setKollsman(v);
+	invalidate();
     }
 
     /**
@@ -134,6 +265,20 @@ public class Altimeter extends View {
 	return pressure;
     }
 
+    /**
+     * Return last computed altitude, meters
+     */
+    public float getAltitude() {
+	return altitude;
+    }
+
+    /**
+     * Return last computed vertical speed, meters/second
+     */
+    public float getVsi() {
+	return vsi;
+    }
+
     /**
      * Return last known kollsman setting, mB
      */
@@ -153,10 +298,6 @@ public class Altimeter extends View {
 	float ts = paint.getTextSize() * metrics.scaledDensity;
 	paint.setTextSize(ts);
 	lblPaint.setTextSize(ts * 1.5f);
-	gauge = new Gauge(0, 50000, 10, lblPaint, true);
-
-	barometer = new Barometer();
-	barometer.setKollsman(kollsman);
     }
 
     @Override
@@ -175,13 +316,35 @@ public class Altimeter extends View {
 	rk = new RectF(kx - kw, ky - kh/2, kx, ky + kh/2);
 	gx = wid * GAUGE_X;
 	gy = hgt * GAUGE_Y;
-	gauge.setXY((int)gx, (int)gy);
+	if (gauge != null) gauge.setXY((int)gx, (int)gy);
+	buildGauge();
 
 	makePath(ptr10000, ptr10000Pts);
 	makePath(ptr1000l, ptr1000lPts);
 	makePath(ptr1000r, ptr1000rPts);
 	makePath(ptr100l, ptr100lPts);
 	makePath(ptr100r, ptr100rPts);
+
+	// Tip speed of each hand in px per unit of altitude; one turn of
+	// the 100 hand is 1000 units, and so on.
+	pxPerUnit = Math.max(handLength(ptr100lPts) / 1000,
+	  Math.max(handLength(ptr1000lPts) / 10000,
+		   handLength(ptr10000Pts) / 100000)) * 2 * (float)Math.PI;
+	// One step moves the tip of the longest hand by a pixel
+	snap = handLength(ptr10000Pts) * 2 * (float)Math.PI;
+    }
+
+    /**
+     * Distance of the farthest point of a hand from the center, px.
+     */
+    private float handLength(float[] pts) {
+	float r = 0;
+	for (int i=0; i < pts.length; i += 2) {
+	    float x = pts[i] * wid;
+	    float y = pts[i+1] * hgt;
+	    r = Math.max(r, (float)Math.sqrt(x*x + y*y));
+	}
+	return r;
     }
 
     private void makePath(Path path, float[] pts) {
@@ -200,27 +363,44 @@ public class Altimeter extends View {
     @Override
     protected void onDraw(Canvas canvas)
     {
+	long t0 = System.nanoTime();
 	super.onDraw(canvas);
 	float alt = altitude;
 	if (altUnits == UNITS_FT)
 	    alt *= METER_FT;
-	gauge.setValue(alt);
-	gauge.draw(canvas);
+	drawnAlt = alt;
+	limiter.drawn(SystemClock.uptimeMillis());
+	if (gauge != null && builtUnits == altUnits) {
+	    gauge.setValue(alt);
+	    gauge.draw(canvas);
+	}
 	drawKollsman(canvas);
+	if (aglLbl != null && !inop) {
+	    paint.setColor(fg);
+	    centerText(canvas, paint, aglLbl, xc, hgt * AGL_Y, Gravity.CENTER,
+	      true);
+	}
 	if (inop)
 	    drawInop(canvas);
 	else {
-	    drawHand(canvas, ptr10000, Color.WHITE, alt/100000);
-	    drawHand(canvas, ptr1000l, Color.WHITE, alt/10000);
-	    drawHand(canvas, ptr1000r, 0xffcccccc, alt/10000);
-	    drawHand(canvas, ptr100l, Color.WHITE, alt/1000);
-	    drawHand(canvas, ptr100r, 0xffcccccc, alt/1000);
+	    drawHand(canvas, ptr10000, fg, alt/100000);
+	    drawHand(canvas, ptr1000l, fg, alt/10000);
+	    drawHand(canvas, ptr1000r, fg2, alt/10000);
+	    drawHand(canvas, ptr100l, fg, alt/1000);
+	    drawHand(canvas, ptr100r, fg2, alt/1000);
 	}
 	// TODO: look at the invalidated region, only redraw what's necessary.
+	if (!drawn) {
+	    drawn = true;
+	    StartupTrace.end("start");
+	}
+	limiter.drawTime(System.nanoTime() - t0);
     }
 
     private void drawHand(Canvas canvas, Path path, int color, float frac) {
 	frac -= (int) frac;
+	if (lowPower && snap > 0)
+	    frac = Math.round(frac * snap) / snap;
 	canvas.save(Canvas.MATRIX_SAVE_FLAG);
 	paint.setColor(color);
 	paint.setStyle(Paint.Style.FILL);
@@ -231,19 +411,19 @@ public class Altimeter extends View {
 
 
     private void drawKollsman(Canvas canvas) {
-	String lbl;
 	float ts = paint.getTextSize();
 	paint.setTextSize(ts*1.5f);
-	if (presUnits == UNITS_MB) {
-	    lbl = "" + (int)kollsman;
-	} else {
-	    lbl = fmt.format(kollsman * HG_MB);
+	if (klbl == null || klblValue != kollsman || klblUnits != presUnits) {
+	    klbl = formatKollsman();
+	    klblValue = kollsman;
+	    klblUnits = presUnits;
 	}
+	String lbl = klbl;
 
 	paint.setColor(Color.BLACK);
 	paint.setStyle(Paint.Style.FILL);
 	canvas.drawRect(rk, paint);
-	paint.setColor(Color.WHITE);
+	paint.setColor(fg);
 	paint.setStyle(Paint.Style.STROKE);
 	canvas.drawRect(rk, paint);
 	paint.setStyle(Paint.Style.FILL);
@@ -254,6 +434,32 @@ public class Altimeter extends View {
 	paint.setTextSize(ts);
     }
 
+    /**
+     * Format the Kollsman window: mB, or "Hg to two places. Done by
+     * hand rather than with DecimalFormat, which is slow to load.
+     */
+    private String formatKollsman() {
+	int v;
+	int dec;
+	if (presUnits == UNITS_MB) {
+	    v = (int)kollsman;
+	    dec = -1;
+	} else {
+	    v = Math.round(kollsman * HG_MB * 100);
+	    dec = 2;
+	}
+	int len = 0;
+	do {
+	    if (len == dec) kbuf[len++] = '.';
+	    kbuf[len++] = (char)('0' + v % 10);
+	    v /= 10;
+	} while (v > 0 || len <= dec + 1);
+	for (int i = 0, j = len-1; i < j; ++i, --j) {
+	    char c = kbuf[i]; kbuf[i] = kbuf[j]; kbuf[j] = c;
+	}
+	return new String(kbuf, 0, len);
+    }
+
     private void drawInop(Canvas canvas)
     {
 	float w = lblPaint.measureText("INOP") + kp*2;
@@ -8,186 +8,270 @@ package org.efalk.altimeter;
 import android.app.Activity;
 import android.app.AlertDialog;
 import android.app.Dialog;
+import android.content.BroadcastReceiver;
+import android.content.ComponentName;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
-import android.content.SharedPreferences;
-import android.content.pm.ActivityInfo;
+import android.content.IntentFilter;
+import android.content.ServiceConnection;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
-import android.hardware.Sensor;
-import android.hardware.SensorEvent;
-import android.hardware.SensorEventListener;
-import android.hardware.SensorManager;
+import android.location.Location;
+import android.location.LocationListener;
+import android.location.LocationManager;
+import android.media.ToneGenerator;
+import android.os.BatteryManager;
 import android.os.Bundle;
-import android.preference.PreferenceManager;
+import android.os.Environment;
+import android.os.IBinder;
+import android.text.InputType;
 import android.util.Log;
+import android.view.KeyEvent;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
 import android.view.WindowManager;
+import android.widget.EditText;
+import android.widget.Toast;
 
-public class AltimeterActivity extends Activity implements SensorEventListener
+import java.io.File;
+import java.io.IOException;
+
+public class AltimeterActivity extends Activity
+    implements AltimeterService.Listener, KollsmanPicker.Listener
 {
-    // Sensor-related variables
     static final String TAG = "Altimeter";
-    private SensorManager sensorManager;
+    private static final int LOW_BATTERY = 15;		// percent
+    private AltimeterService service;
     private Altimeter altimeter;
-    private float kollsman = 1013.25f;	// mB
-
-    // User preferences
-    int altUnits = Altimeter.UNITS_FT;
-    int presUnits = Altimeter.UNITS_HG;
-    int orientation = ActivityInfo.SCREEN_ORIENTATION_SENSOR;
-    boolean keepScreenOn;
+    private HistoryView historyView;
+    private StateStore state;
+    private FieldCalibration calibration;
+    private KollsmanPicker picker;
+    private float preview = Float.NaN;	// Kollsman being previewed, mB
+    private float lastAlt = Float.NaN;	// from the service, not previewed
+    private boolean lowPower = false;
+    private boolean lowBattery = false;
+    private boolean watchingBattery = false;
+    private ToneGenerator tones;
+    private boolean watchingLocation = false;
+    private float ground = Float.NaN;	// terrain elevation here, meters
+    private AirportDb airports;
+    // Building or opening airports.db; touched only on the UI thread
+    private static boolean loadingAirports = false;
+    private static final int NEAREST = 5;	// airports to offer
 
     @Override
     public void onCreate(Bundle savedState)
     {
-	SharedPreferences sp;
         super.onCreate(savedState);
+	StartupTrace.begin();
+	StartupTrace.mark("onCreate");
 
+	state = StateStore.get(this);
+	StartupTrace.mark("state");
 	setContentView(R.layout.altimeter);
+	StartupTrace.mark("content");
 	altimeter = (Altimeter) findViewById(R.id.altimeter);
+	historyView = (HistoryView) findViewById(R.id.history);
+	picker = new KollsmanPicker(this, this);
 
-	Object oldConfiguration = getLastNonConfigurationInstance();
-	if( oldConfiguration != null ) {
-	    restoreOldConfiguration(oldConfiguration);
-	} else if( savedState != null ) {
-	    restoreInstanceState(savedState);
-	} else {
-	    sp = PreferenceManager.getDefaultSharedPreferences(this);
-	    if( sp != null )
-		recallPreferences(sp);
-	}
+	// Only the history buffer is carried over a configuration
+	// change; everything else is in the state store.
+	History history = (History) getLastNonConfigurationInstance();
+	if (history != null)
+	    historyView.setHistory(history);
 
-	// Apply preferences
-	altimeter.setAltUnits(altUnits);
-	altimeter.setPresUnits(presUnits);
+	applyPreferences();
 	altimeter.setOnClickListener(new View.OnClickListener() {
 	    public void onClick(View v) {
 		getKollsman();
 	    }
 	});
-	setScreenOn();
 
-        sensorManager =
-          (SensorManager) getSystemService(Context.SENSOR_SERVICE);
-
-	altimeter.setKollsman(kollsman);
+	altimeter.setKollsman(state.getKollsman());
     }
 
     @Override
     public void onResume() {
         super.onResume();
-	enableSensors();
+	bindService(new Intent(AltimeterService.ACTION_DISPLAY)
+	  .setClass(this, AltimeterService.class), connection,
+	  BIND_AUTO_CREATE);
+	watchBattery(state.getLowPower() == StateStore.LOW_POWER_AUTO);
+	watchLocation(state.getAgl());
     }
 
+    /**
+     * Nothing to save here; the state store writes itself out in the
+     * background whenever something changes.
+     */
     @Override
     public void onPause() {
         super.onPause();
-	disableSensors();
-	try {
-	    SharedPreferences.Editor sp =
-	      PreferenceManager.getDefaultSharedPreferences(this).edit();
-	    storePreferences(sp);
-	    sp.commit();
-	} catch (Exception e) {}
+	if (service != null) {
+	    service.setListener(null);
+	    service = null;
+	}
+	unbindService(connection);
+	watchBattery(false);
+	watchLocation(false);
+	if (tones != null) {
+	    tones.release();
+	    tones = null;
+	}
+	calibration = null;
+	Log.d(TAG, "Altimeter frames drawn " + altimeter.getFramesDrawn() +
+	  ", skipped " + altimeter.getFramesSkipped() +
+	  " (" + altimeter.getDrawTimes() + ")" +
+	  "; history frames drawn " + historyView.getFramesDrawn() +
+	  " (" + historyView.getDrawTimes() + ")");
     }
 
-
-    // Save and restore state
+    /**
+     * All measurement happens in AltimeterService; we're only bound to
+     * it while visible.
+     */
+    private final ServiceConnection connection = new ServiceConnection() {
+	public void onServiceConnected(ComponentName name, IBinder b) {
+	    service = ((AltimeterService.LocalBinder)b).getService();
+	    service.setKollsman(state.getKollsman());
+	    service.setAdaptive(state.getAdaptiveRate());
+	    service.setFusion(state.getFusion());
+	    service.setVario(state.getVario());
+	    service.setNmea(state.getNmea(), state.getNmeaPort(),
+	      state.getNmeaRate());
+	    service.setLowPower(lowPower);
+	    applyAlerts();
+	    // If the process was killed while recording, carry on in
+	    // a new session.
+	    if (state.isRecording() && !service.isRecording())
+		service.startRecording(getLogDir(), state.getKollsman());
+	    service.setListener(AltimeterActivity.this);
+	}
+	public void onServiceDisconnected(ComponentName name) {
+	    service = null;
+	}
+    };
 
     /**
-     * Save state before configuration change.
+     * Keep the history buffer across a configuration change.
      */
     @Override
     public Object onRetainNonConfigurationInstance() {
-	kollsman = altimeter.getKollsman();
-	return this;
+	return historyView.getHistory();
     }
 
     /**
-     * Restore saved instance state after configuration change
+     * Apply the user preferences.  Called when the app starts up and
+     * after the preferences activity returns.
      */
-    private void restoreOldConfiguration(Object oldConfiguration) {
-	AltimeterActivity old = (AltimeterActivity)oldConfiguration;
-	// Primary state
-	altUnits = old.altUnits;
-	presUnits = old.presUnits;
-	sensorManager = old.sensorManager;
-	kollsman = old.kollsman;
-	orientation = old.orientation;
-	keepScreenOn = old.keepScreenOn;
+    private void applyPreferences() {
+	int altUnits = state.getAltUnits();
+	altimeter.setAltUnits(altUnits);
+	altimeter.setPresUnits(state.getPresUnits());
+	historyView.setAltUnits(altUnits);
+	historyView.setMinutes(state.getHistoryMinutes());
+	int orientation = state.getOrientation();
+	if (getRequestedOrientation() != orientation)
+	    setRequestedOrientation(orientation);
+	setScreenOn();
+	Globals.get(this).flingEnabled = state.getFlingEnabled();
+	BarographService.schedule(this, state.getBarograph());
+	applyLowPower();
+	applyAlerts();
     }
 
-    /**
-     * Save state before this app goes away.
-     */
-    @Override
-    protected void onSaveInstanceState(Bundle state) {
-	kollsman = altimeter.getKollsman();
-        state.putFloat("kollsman", kollsman);
-	state.putInt("altUnits", altUnits);
-	state.putInt("presUnits", presUnits);
-	state.putInt("orientation", orientation);
-	state.putBoolean("keepScreenOn", keepScreenOn);
+    private void applyAlerts() {
+	if (service != null)
+	    service.setAlerts(state.getAlertTarget(), state.getMinimums(),
+	      state.getSinkAlert());
     }
 
     /**
-     * Restore saved instance state after app comes back.
+     * Go in or out of the low-power display, per the preference and
+     * the battery.
      */
-    private void restoreInstanceState(Bundle state) {
-	// Primary state
-	kollsman = state.getFloat("kollsman");
-	altUnits = state.getInt("altUnits");
-	presUnits = state.getInt("presUnits");
-	keepScreenOn = state.getBoolean("keepScreenOn");
+    private void applyLowPower() {
+	int pref = state.getLowPower();
+	lowPower = pref == StateStore.LOW_POWER_ON ||
+	  pref == StateStore.LOW_POWER_AUTO && lowBattery;
+	altimeter.setLowPower(lowPower);
+	historyView.setLowPower(lowPower);
+	if (service != null)
+	    service.setLowPower(lowPower);
     }
 
     /**
-     * Store preferences before app goes away for good. User preferences
-     * set by the preferences activity do not need to be saved here.
+     * Follow the battery level while we're in front. The broadcast is
+     * sticky, so we get the current level straight away.
      */
-    private void storePreferences(SharedPreferences.Editor sp)
-    {
-	kollsman = altimeter.getKollsman();
-        sp.putFloat("kollsman", kollsman);
-	sp.commit();
+    private void watchBattery(boolean on) {
+	if (on == watchingBattery) return;
+	watchingBattery = on;
+	if (on) {
+	    registerReceiver(batteryReceiver,
+	      new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+	} else {
+	    unregisterReceiver(batteryReceiver);
+	}
     }
 
-    /**
-     * Load preferences when app starts up. User preferences are loaded
-     * in their own function.
-     */
-    protected void recallPreferences(SharedPreferences sp)
-    {
-	kollsman = sp.getFloat("kollsman", kollsman);
-	updatePreferences(sp);
-    }
+    private final BroadcastReceiver batteryReceiver = new BroadcastReceiver() {
+	@Override
+	public void onReceive(Context ctx, Intent intent) {
+	    int level = intent.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+	    int scale = intent.getIntExtra(BatteryManager.EXTRA_SCALE, 100);
+	    boolean low = level >= 0 && scale > 0 &&
+	      level * 100 <= LOW_BATTERY * scale;
+	    if (low != lowBattery) {
+		lowBattery = low;
+		applyLowPower();
+	    }
+	}
+    };
 
     /**
-     * Update user preferences.	 Called after a preferences activity
-     * returns or when app starts up.
+     * Follow the GPS while we're in front, for the height above
+     * ground. The service looks the terrain up; see onGround().
      */
-    protected void updatePreferences(SharedPreferences sp) {
-	/* Protip: ListPreference only works with string arrays.  If
-	 * you want to represent an integer value in a ListPreference
-	 * item, you'll have to convert it from String.  You will also
-	 * have to store it as String or preferences activity will crash.
-	 */
-	altUnits = Integer.parseInt(sp.getString("altUnits", ""+altUnits));
-	presUnits = Integer.parseInt(sp.getString("presUnits", ""+presUnits));
-	keepScreenOn = sp.getBoolean("keepScreenOn", keepScreenOn);
-	orientation = Integer.parseInt(sp.getString("orientation",
-	  ""+ActivityInfo.SCREEN_ORIENTATION_SENSOR));
-	if (getRequestedOrientation() != orientation)
-	    setRequestedOrientation(orientation);
+    private void watchLocation(boolean on) {
+	if (on == watchingLocation) return;
+	watchingLocation = on;
+	LocationManager lm =
+	  (LocationManager) getSystemService(Context.LOCATION_SERVICE);
+	if (on) {
+	    try {
+		lm.requestLocationUpdates(LocationManager.GPS_PROVIDER,
+		  1000, 0, locationListener);
+	    } catch (RuntimeException e) {
+		// No GPS
+		Log.e(TAG, "Unable to get location", e);
+	    }
+	} else {
+	    lm.removeUpdates(locationListener);
+	    ground = Float.NaN;
+	    altimeter.setAgl(Float.NaN);
+	}
     }
 
+    private final LocationListener locationListener = new LocationListener() {
+	public void onLocationChanged(Location loc) {
+	    if (service != null)
+		service.findGround(loc.getLatitude(), loc.getLongitude());
+	}
+	public void onProviderDisabled(String provider) {
+	    ground = Float.NaN;
+	    altimeter.setAgl(Float.NaN);
+	}
+	public void onProviderEnabled(String provider) { }
+	public void onStatusChanged(String provider, int status, Bundle b) { }
+    };
+
     private void setScreenOn() {
 	int f = WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON;
-	getWindow().setFlags(keepScreenOn ? f : 0, f);
+	getWindow().setFlags(state.getKeepScreenOn() ? f : 0, f);
     }
 
 
@@ -196,6 +280,13 @@ public class AltimeterActivity extends Activity implements SensorEventListener
     static protected final int MENU_ABOUT = 0;
     static protected final int MENU_PREFERENCES = 1;
     static protected final int MENU_KOLLSMAN = 2;
+    static protected final int MENU_RECORD = 3;
+    static protected final int MENU_EXPORT = 4;
+    static protected final int MENU_FIELD = 5;
+    static protected final int MENU_BAROGRAPH = 6;
+    static protected final int MENU_ALERT = 7;
+    static protected final int MENU_NEAREST = 8;
+    static protected final int MENU_MINIMUMS = 9;
 
     /**
      * Called before the options menu is opened for the first time.
@@ -210,6 +301,35 @@ public class AltimeterActivity extends Activity implements SensorEventListener
         menu.add(0, MENU_PREFERENCES, 0, R.string.preferences)
           .setAlphabeticShortcut('p')
           .setIcon(android.R.drawable.ic_menu_preferences);
+        menu.add(0, MENU_RECORD, 0, R.string.record)
+          .setAlphabeticShortcut('r')
+          .setIcon(android.R.drawable.ic_menu_save);
+        menu.add(0, MENU_FIELD, 0, R.string.fieldElevation)
+          .setAlphabeticShortcut('f')
+          .setIcon(android.R.drawable.ic_menu_mylocation);
+        menu.add(0, MENU_NEAREST, 0, R.string.nearestField)
+          .setAlphabeticShortcut('n')
+          .setIcon(android.R.drawable.ic_menu_compass);
+        menu.add(0, MENU_ALERT, 0, R.string.alert)
+          .setAlphabeticShortcut('l')
+          .setIcon(android.R.drawable.ic_menu_upload);
+        menu.add(0, MENU_MINIMUMS, 0, R.string.minimums)
+          .setAlphabeticShortcut('m')
+          .setIcon(android.R.drawable.ic_menu_revert);
+        menu.add(0, MENU_BAROGRAPH, 0, R.string.barograph)
+          .setAlphabeticShortcut('b')
+          .setIcon(android.R.drawable.ic_menu_recent_history);
+        menu.add(0, MENU_EXPORT, 0, R.string.export)
+          .setAlphabeticShortcut('e')
+          .setIcon(android.R.drawable.ic_menu_share);
+        return true;
+    }
+
+    @Override
+    public boolean onPrepareOptionsMenu(Menu menu) {
+	super.onPrepareOptionsMenu(menu);
+	menu.findItem(MENU_RECORD).setTitle(isRecording() ?
+	  R.string.stopRecording : R.string.record);
         return true;
     }
 
@@ -222,6 +342,21 @@ public class AltimeterActivity extends Activity implements SensorEventListener
 	      new Intent().setClass(this, AltimeterPreferences.class);
 	    startActivityForResult(intent, MENU_PREFERENCES);
 	    break;
+	  case MENU_RECORD:
+	    if (service != null) {
+		if (service.isRecording()) service.stopRecording();
+		else service.startRecording(getLogDir(),
+		  state.getKollsman());
+	    }
+	    break;
+	  case MENU_EXPORT: chooseExport(); break;
+	  case MENU_FIELD: askFieldElevation(); break;
+	  case MENU_NEAREST: nearestField(); break;
+	  case MENU_ALERT:
+	  case MENU_MINIMUMS: askAlertAltitude(item.getItemId()); break;
+	  case MENU_BAROGRAPH:
+	    startActivity(new Intent(this, BarographActivity.class));
+	    break;
           default: return false;
         }
         return true;
@@ -275,21 +410,13 @@ public class AltimeterActivity extends Activity implements SensorEventListener
     {
 	switch (requestCode) {
 	  case MENU_PREFERENCES:
-	    SharedPreferences sp =
-	      PreferenceManager.getDefaultSharedPreferences(this);
-	    updatePreferences(sp);
-	    altimeter.setAltUnits(altUnits);
-	    altimeter.setPresUnits(presUnits);
-	    setScreenOn();
+	    applyPreferences();
 	    break;
 	  case MENU_KOLLSMAN:
 	    if (data != null) {
-		float f = data.getIntExtra("value", 1013);
-		if (f != 0) {
-		    if (presUnits == Altimeter.UNITS_HG)
-			f *= .01 / Altimeter.HG_MB;
-		    altimeter.setKollsman(f);
-		}
+		int v = data.getIntExtra("value", 1013);
+		if (v != 0)
+		    setKollsman(fromPicker(v));
 	    }
 	    break;
 	}
@@ -299,40 +426,374 @@ public class AltimeterActivity extends Activity implements SensorEventListener
 
     private void getKollsman() {
 	Log.d(TAG, "Bring up Kollsman window");
-	float k = altimeter.getKollsman();
-	float p = altimeter.getPressure();
+	float k = toPicker(altimeter.getKollsman());
+	float p = toPicker(altimeter.getPressure());
 	float altConv = 1;
-	if (presUnits == Altimeter.UNITS_HG) {
-	    // Convert to Hg and mulitiply by 100 for display purposes
-	    k *= Altimeter.HG_MB * 100;
-	    p *= Altimeter.HG_MB * 100;
-	}
-	if (altUnits == Altimeter.UNITS_FT)
+	if (state.getAltUnits() == Altimeter.UNITS_FT)
 	    altConv = 1.0f/Altimeter.METER_FT;
-	Kollsman.launch(this, MENU_KOLLSMAN, (int)(k+.5), (int)(p+.5), altConv);
-    }
-
-    private void enableSensors() {
-	if (sensorManager != null) {
-	    Sensor sensor;
-	    sensor = sensorManager.getDefaultSensor(Sensor.TYPE_PRESSURE);
-	    if (sensor != null) {
-		sensorManager.registerListener(this, sensor,
-		    SensorManager.SENSOR_DELAY_UI);
-	    } else {
-		Log.e(TAG, "No pressure sensors on this device");
+	picker.show((int)(k+.5), (int)(p+.5), altConv);
+	picker.setBarom(p);
+    }
+
+    /**
+     * Convert mB to Kollsman wheel units: mB, or "Hg times 100 for
+     * display purposes.
+     */
+    private float toPicker(float mb) {
+	if (state.getPresUnits() == Altimeter.UNITS_HG)
+	    mb *= Altimeter.HG_MB * 100;
+	return mb;
+    }
+
+    /**
+     * Convert a value from the Kollsman wheel to mB.
+     */
+    private float fromPicker(float v) {
+	if (state.getPresUnits() == Altimeter.UNITS_HG)
+	    v *= .01f / Altimeter.HG_MB;
+	return v;
+    }
+
+    public void onKollsmanPreview(float value) {
+	preview = fromPicker(value);
+	altimeter.setKollsman(preview);
+	if (!Float.isNaN(lastAlt))
+	    altimeter.setReading(altimeter.getPressure(),
+	      previewAltitude(altimeter.getPressure(), lastAlt),
+	      altimeter.getVsi());
+    }
+
+    public void onKollsmanPicked(int value) {
+	preview = Float.NaN;
+	setKollsman(fromPicker(value));
+    }
+
+    public void onKollsmanCancelled() {
+	preview = Float.NaN;
+	altimeter.setKollsman(state.getKollsman());
+	if (!Float.isNaN(lastAlt))
+	    altimeter.setReading(altimeter.getPressure(), lastAlt,
+	      altimeter.getVsi());
+    }
+
+    /**
+     * The altitude the dial would show with the Kollsman setting being
+     * previewed: the service's damped altitude, shifted by the
+     * difference the new setting makes at the current pressure.
+     */
+    private float previewAltitude(float pres, float alt) {
+	if (Float.isNaN(preview)) return alt;
+	return alt + Barometer.p2a(preview, pres) -
+	  Barometer.p2a(state.getKollsman(), pres);
+    }
+
+    @Override
+    public boolean onKeyDown(int keyCode, KeyEvent event) {
+	if (keyCode == KeyEvent.KEYCODE_BACK && picker.isShowing()) {
+	    picker.cancel();
+	    return true;
+	}
+	return super.onKeyDown(keyCode, event);
+    }
+
+    /**
+     * Return the directory where recorded sessions are kept.
+     */
+    File getLogDir() {
+	return getDir("logs", MODE_PRIVATE);
+    }
+
+    private void setKollsman(float k) {
+	altimeter.setKollsman(k);
+	state.setKollsman(k);
+	if (service != null)
+	    service.setKollsman(k);
+    }
+
+    private boolean isRecording() {
+	return service != null && service.isRecording();
+    }
+
+    /**
+     * Let the user pick a recorded session and a format, then export
+     * it to external storage.
+     */
+    private void chooseExport() {
+	final File[] logs = Recorder.list(getLogDir());
+	if (logs.length == 0) {
+	    Toast.makeText(this, R.string.noRecordings, Toast.LENGTH_SHORT)
+	      .show();
+	    return;
+	}
+	String[] names = new String[logs.length];
+	for (int i = 0; i < logs.length; ++i)
+	    names[i] = logs[i].getName();
+	new AlertDialog.Builder(this)
+          .setTitle(R.string.export)
+          .setItems(names, new DialogInterface.OnClickListener() {
+	      public void onClick(DialogInterface d, int which) {
+		  chooseFormat(logs[which]);
+	      }})
+	  .show();
+    }
+
+    private void chooseFormat(final File log) {
+	new AlertDialog.Builder(this)
+          .setTitle(R.string.exportFormat)
+          .setItems(R.array.export_items, new DialogInterface.OnClickListener() {
+	      public void onClick(DialogInterface d, int which) {
+		  export(log, which);
+	      }})
+	  .show();
+    }
+
+    /**
+     * Export a session in the background. The exporters stream, so
+     * this takes the same small amount of memory for any session.
+     */
+    private void export(final File log, final int format) {
+	File dir = new File(Environment.getExternalStorageDirectory(),
+	  "Altimeter");
+	dir.mkdirs();
+	String name = log.getName();
+	name = name.substring(0, name.length() - Recorder.SUFFIX.length());
+	final File dest = new File(dir, name + Exporter.SUFFIX[format]);
+	new Thread(new Runnable() {
+	    public void run() {
+		String msg;
+		try {
+		    Exporter.export(log, dest, format);
+		    msg = getString(R.string.exported) + " " + dest;
+		} catch (IOException e) {
+		    Log.e(TAG, "Export failed", e);
+		    msg = getString(R.string.exportFailed) + " " +
+		      e.getMessage();
+		}
+		final String m = msg;
+		runOnUiThread(new Runnable() {
+		    public void run() {
+			Toast.makeText(AltimeterActivity.this, m,
+			  Toast.LENGTH_LONG).show();
+		    }
+		});
 	    }
-        }
+	}, "export").start();
     }
 
-    private void disableSensors() {
-        if (sensorManager != null)
-	    sensorManager.unregisterListener(this);
+    /**
+     * Ask for the field elevation, then calibrate to it.
+     */
+    private void askFieldElevation() {
+	final float conv = state.getAltUnits() == Altimeter.UNITS_FT ?
+	  Altimeter.METER_FT : 1;
+	final EditText input = new EditText(this);
+	input.setInputType(InputType.TYPE_CLASS_NUMBER |
+	  InputType.TYPE_NUMBER_FLAG_SIGNED | InputType.TYPE_NUMBER_FLAG_DECIMAL);
+	input.setText(Integer.toString(
+	  Math.round(state.getFieldElevation() * conv)));
+	new AlertDialog.Builder(this)
+          .setTitle(conv == 1 ? R.string.fieldElevationM :
+	    R.string.fieldElevationFt)
+	  .setView(input)
+	  .setPositiveButton(android.R.string.ok,
+	    new DialogInterface.OnClickListener() {
+	      public void onClick(DialogInterface d, int w) {
+		  try {
+		      float e = Float.parseFloat(input.getText().toString());
+		      startCalibration(e / conv);
+		  } catch (NumberFormatException e) { }
+	      }})
+	  .setNegativeButton(android.R.string.cancel, null)
+	  .show();
     }
 
-    public void onAccuracyChanged(Sensor sensor, int arg1) { }
+    /**
+     * Offer the airports nearest the last known location, and
+     * calibrate to the elevation of the one chosen. The database is
+     * built once, in the background, from the OurAirports
+     * airports.csv in Altimeter on external storage, and again
+     * whenever that's newer or the database is in an old format.
+     * While that's going on, asking again does nothing more.
+     */
+    private void nearestField() {
+	LocationManager lm =
+	  (LocationManager) getSystemService(Context.LOCATION_SERVICE);
+	Location loc = null;
+	try {
+	    loc = lm.getLastKnownLocation(LocationManager.GPS_PROVIDER);
+	    if (loc == null)
+		loc = lm.getLastKnownLocation(
+		  LocationManager.NETWORK_PROVIDER);
+	} catch (RuntimeException e) {
+	    Log.e(TAG, "Unable to get location", e);
+	}
+	if (loc == null) {
+	    Toast.makeText(this, R.string.noLocation,
+	      Toast.LENGTH_LONG).show();
+	    return;
+	}
+	if (airports != null) {
+	    showNearest(loc);
+	    return;
+	}
+	if (loadingAirports) {
+	    Toast.makeText(this, R.string.readingAirports,
+	      Toast.LENGTH_SHORT).show();
+	    return;
+	}
+	loadingAirports = true;
+	final Location l = loc;
+	final File db = new File(getFilesDir(), "airports.db");
+	final File csv = new File(Environment.getExternalStorageDirectory(),
+	  "Altimeter/airports.csv");
+	if (csv.lastModified() > db.lastModified())
+	    Toast.makeText(this, R.string.readingAirports,
+	      Toast.LENGTH_SHORT).show();
+	new Thread(new Runnable() {
+	    public void run() {
+		AirportDb a = null;
+		try {
+		    if (csv.exists() && (csv.lastModified() >
+			  db.lastModified() || !AirportDb.isCurrent(db)))
+			AirportDb.importCsv(csv, db);
+		    if (db.exists()) a = new AirportDb(db);
+		} catch (IOException e) {
+		    Log.e(TAG, "Unable to read airports", e);
+		    db.delete();
+		}
+		final AirportDb found = a;
+		runOnUiThread(new Runnable() {
+		    public void run() {
+			loadingAirports = false;
+			airports = found;
+			if (found != null) showNearest(l);
+			else Toast.makeText(AltimeterActivity.this,
+			  R.string.noAirports, Toast.LENGTH_LONG).show();
+		    }
+		});
+	    }
+	}, "airports").start();
+    }
+
+    private void showNearest(Location loc) {
+	final int[] ids = new int[NEAREST];
+	float[] dist = new float[NEAREST];
+	int n = airports.nearest(loc.getLatitude(), loc.getLongitude(),
+	  ids, dist);
+	boolean ft = state.getAltUnits() == Altimeter.UNITS_FT;
+	String[] items = new String[n];
+	for (int i = 0; i < n; ++i) {
+	    int e = airports.getElevationFt(ids[i]);
+	    items[i] = String.format("%s  %d %s  %.1f nm",
+	      airports.getIdent(ids[i]),
+	      ft ? e : Math.round(e / Altimeter.METER_FT), ft ? "ft" : "m",
+	      dist[i]);
+	}
+	new AlertDialog.Builder(this)
+	  .setTitle(R.string.nearestField)
+	  .setItems(items, new DialogInterface.OnClickListener() {
+	      public void onClick(DialogInterface d, int w) {
+		  startCalibration(
+		    airports.getElevationFt(ids[w]) / Altimeter.METER_FT);
+	      }})
+	  .setNegativeButton(android.R.string.cancel, null)
+	  .show();
+    }
+
+    /**
+     * Ask for the altitude to alert on, or the minimums, in the
+     * display units; blank for none. Both are kept in meters, so
+     * changing units doesn't change them.
+     * @param which  MENU_ALERT or MENU_MINIMUMS
+     */
+    private void askAlertAltitude(final int which) {
+	final float conv = state.getAltUnits() == Altimeter.UNITS_FT ?
+	  Altimeter.METER_FT : 1;
+	final EditText input = new EditText(this);
+	input.setInputType(InputType.TYPE_CLASS_NUMBER |
+	  InputType.TYPE_NUMBER_FLAG_SIGNED);
+	float t = which == MENU_ALERT ? state.getAlertTarget() :
+	  state.getMinimums();
+	if (!Float.isNaN(t))
+	    input.setText(Integer.toString(Math.round(t * conv)));
+	int title = which == MENU_ALERT ?
+	  (conv == 1 ? R.string.alertTargetM : R.string.alertTargetFt) :
+	  (conv == 1 ? R.string.minimumsM : R.string.minimumsFt);
+	new AlertDialog.Builder(this)
+	  .setTitle(title)
+	  .setView(input)
+	  .setPositiveButton(android.R.string.ok,
+	    new DialogInterface.OnClickListener() {
+	      public void onClick(DialogInterface d, int w) {
+		  String s = input.getText().toString().trim();
+		  try {
+		      float a = s.length() == 0 ? Float.NaN :
+			Float.parseFloat(s) / conv;
+		      if (which == MENU_ALERT) state.setAlertTarget(a);
+		      else state.setMinimums(a);
+		      applyAlerts();
+		  } catch (NumberFormatException e) { }
+	      }})
+	  .setNegativeButton(android.R.string.cancel, null)
+	  .show();
+    }
+
+    /**
+     * The terrain elevation at the last fix, from the service.
+     */
+    public void onGround(float meters) {
+	if (watchingLocation) ground = meters;
+    }
+
+    /**
+     * From the AlertEngine, through the service.
+     */
+    public void onAlert(int rule, int alert, long ts, float alt) {
+	int msg = AltimeterService.alertMessage(alert);
+	if (msg == 0) return;
+	Toast.makeText(this, msg, Toast.LENGTH_LONG).show();
+	tones = AltimeterService.soundAlert(tones, alert);
+    }
+
+    /**
+     * Average the pressure until the setting for this elevation is
+     * known; see onReading().
+     */
+    private void startCalibration(float meters) {
+	state.setFieldElevation(meters);
+	calibration = new FieldCalibration(meters);
+	Toast.makeText(this, R.string.calibrating, Toast.LENGTH_SHORT).show();
+    }
+
+    private void calibrationDone() {
+	FieldCalibration c = calibration;
+	calibration = null;
+	if (c.getState() != FieldCalibration.DONE) {
+	    Toast.makeText(this, R.string.calibrationFailed,
+	      Toast.LENGTH_LONG).show();
+	    return;
+	}
+	float k = c.getKollsman();
+	setKollsman(k);
+	String v = state.getPresUnits() == Altimeter.UNITS_HG ?
+	  String.format("%.2f", k * Altimeter.HG_MB) :
+	  String.format("%.1f", k);
+	Toast.makeText(this, getString(R.string.calibrated) + " " + v,
+	  Toast.LENGTH_LONG).show();
+	Log.d(TAG, "Calibrated: " + k + " mB from " + c.getSamples() +
+	  " samples, +-" + c.getInterval());
+    }
 
-    public void onSensorChanged(SensorEvent event) {
-	altimeter.setPressure(event.values[0], event.timestamp);
+    public void onReading(long ts, float pres, float alt, float vsi) {
+	lastAlt = alt;
+	altimeter.setReading(pres, previewAltitude(pres, alt), vsi);
+	// The damped pressure, as the raw one is too jumpy to read
+	if (picker.isShowing())
+	    picker.setBarom(toPicker(Barometer.a2p(state.getKollsman(), alt)));
+	historyView.add(ts, alt, vsi);
+	if (watchingLocation) altimeter.setAgl(alt - ground);
+	if (calibration != null &&
+	    calibration.add(ts, pres) != FieldCalibration.RUNNING)
+	    calibrationDone();
     }
 }
@@ -0,0 +1,707 @@
+/**
+ * @file
+ * Background service which owns the pressure sensor.
+ */
+
+package org.efalk.altimeter;
+
+import android.app.Notification;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
+import android.media.AudioManager;
+import android.media.ToneGenerator;
+import android.os.Binder;
+import android.os.Environment;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.PowerManager;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Owns the pressure listener, the altitude filter and the session
+ * recorder, so measurement carries on when the screen turns off or
+ * the user switches apps.
+ *
+ * The activity binds to this service while it's visible and
+ * registers a {@link Listener} for display. While recording, the
+ * service is also started and put in the foreground so it outlives
+ * the activity.
+ *
+ * Sensor events are handled on a private thread. Readings for the
+ * display are passed to the UI thread through a small primitive
+ * queue, with at most one pending post at a time. With nobody bound,
+ * no UI work is done at all.
+ *
+ * The sample rate follows what the altitude is doing (see
+ * {@link SampleRateController}): slow while it's level, fastest as
+ * soon as a climb or descent starts, the UI rate once its vertical
+ * speed settles. If the device supports it, the
+ * sensor is run in batched mode while steady and nobody is bound, so
+ * the sensor hub collects samples and hands them over a few times a
+ * minute instead of waking the sensor thread for each one. A partial
+ * wake lock is held while recording, since the pressure sensor is not
+ * a wake-up sensor and its events would otherwise be dropped while the
+ * CPU sleeps.
+ *
+ * Pressure spikes are removed by a {@link SpikeFilter}, run as a
+ * {@link Stage}, before the altitude filter; the recording keeps the
+ * raw pressure.
+ *
+ * Optionally, the VSI comes from {@link VerticalFusion}, which adds
+ * the accelerometer for a much quicker response. That needs the
+ * gravity and linear acceleration sensors at game rate, so it's only
+ * done while someone is watching or the altitude is changing.
+ *
+ * The {@link Variometer}, when it's on, gets every VSI straight from
+ * the sensor thread. Like recording, it keeps the service running in
+ * the foreground, and it keeps the sensor unbatched and at the fast
+ * rate so the tone follows within 100 ms (see VarioLatency in tools/).
+ * At the normal rate the sensor period alone would take most of
+ * that.
+ *
+ * The same goes for the {@link NmeaOutput}, which feeds NMEA altitude
+ * sentences to flight software on the device at its own rate.
+ *
+ * Altitude alerts from the {@link AlertEngine} go to the activity's
+ * listener when it's showing. Otherwise the service sounds the same
+ * tone itself and posts a notification, so an alert isn't lost just
+ * because the screen is off.
+ *
+ * Other apps can bind to {@link AltitudeStreamService} to get the
+ * readings in batches. It binds here with ACTION_STREAM and hands us
+ * its {@link AltitudeStream}. That keeps the sensor running like the
+ * activity does, batched no longer than the shortest subscriber's
+ * period, but doesn't hold a wake lock; a subscriber that needs data
+ * with the screen off has to keep the CPU up itself. This service is
+ * not exported; the activity binds with ACTION_DISPLAY, and only its
+ * unbinding stops the display work.
+ */
+public class AltimeterService extends Service implements SensorEventListener
+{
+    private static final String TAG = AltimeterActivity.TAG;
+    private static final int NOTIFICATION_ID = 1;
+    private static final int ALERT_NOTIFICATION_ID = 2;
+    private static final int BATCH_PERIOD = 100000;	// us
+    private static final int BATCH_LATENCY = 20000000;	// us
+    private static final int LOW_POWER_LATENCY = 500000;	// us
+    static final String ACTION_DISPLAY = "org.efalk.altimeter.DISPLAY";
+    static final String ACTION_STREAM = "org.efalk.altimeter.STREAM";
+    private static final long TERRAIN_BYTES = 64 << 20;	// address space
+
+    /**
+     * Receives readings, alerts from the {@link AlertEngine} and
+     * ground elevations, on the UI thread.
+     */
+    public interface Listener extends AlertEngine.Listener {
+	/**
+	 * @param ts    sensor timestamp, ns
+	 * @param pres  pressure, mB
+	 * @param alt   altitude, meters
+	 * @param vsi   vertical speed, meters/second
+	 */
+	void onReading(long ts, float pres, float alt, float vsi);
+
+	/**
+	 * The answer to {@link #findGround}.
+	 * @param meters  terrain elevation, or NaN if unknown
+	 */
+	void onGround(float meters);
+    }
+
+    public class LocalBinder extends Binder {
+	AltimeterService getService() {
+	    return AltimeterService.this;
+	}
+    }
+
+    private final IBinder binder = new LocalBinder();
+    private SensorManager sensorManager;
+    private HandlerThread thread;
+    private Handler sensorHandler;
+    private Handler uiHandler;
+    private PowerManager.WakeLock wakeLock;
+    private final Stage.Spikes spikes = new Stage.Spikes();
+    private final Stage.Tap despiked = new Stage.Tap();
+    private final Barometer barometer = new Barometer();
+    private final SampleRateController rateController =
+      new SampleRateController();
+    private volatile boolean adaptive = true;
+    private final VerticalFusion fusion = new VerticalFusion();
+    private final AlertEngine alerts = new AlertEngine();
+    private final Variometer variometer = new Variometer();
+    private volatile boolean vario = false;
+    private boolean foreground = false;
+    private volatile AltitudeStream stream;	// or null
+    private final NmeaOutput nmea = new NmeaOutput();
+    private volatile boolean nmeaOn = false;
+    private int nmeaRate = NmeaOutput.DEFAULT_RATE;
+    private volatile boolean fused = false;	// preference
+    private volatile boolean lowPower = false;	// low-power display
+    private boolean imu = false;		// touched only on sensor thread
+    private int rateLevel = SampleRateController.NORMAL;
+    private volatile Recorder recorder;	// touched only on sensor thread
+    private volatile boolean recording = false;
+    private Listener listener;
+    private volatile boolean bound = false;
+    private ToneGenerator tones;		// touched only on UI thread
+    private boolean sensing = false;		// touched only on sensor thread
+    private Terrain terrain;			// touched only on sensor thread
+
+    // Readings waiting for the UI thread. Single producer (sensor
+    // thread), single consumer (UI thread); overflow drops samples.
+    private static final int QSIZE = 256;
+    private final long[] qTs = new long[QSIZE];
+    private final float[] qPres = new float[QSIZE];
+    private final float[] qAlt = new float[QSIZE];
+    private final float[] qVsi = new float[QSIZE];
+    private volatile int qHead = 0, qTail = 0;
+    private volatile boolean posted = false;
+
+    @Override
+    public void onCreate() {
+	super.onCreate();
+	sensorManager = (SensorManager) getSystemService(Context.SENSOR_SERVICE);
+	thread = new HandlerThread("sensors",
+	  Process.THREAD_PRIORITY_MORE_FAVORABLE);
+	thread.start();
+	sensorHandler = new Handler(thread.getLooper());
+	spikes.then(despiked);
+	uiHandler = new Handler(Looper.getMainLooper());
+	PowerManager pm = (PowerManager) getSystemService(Context.POWER_SERVICE);
+	wakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG);
+	wakeLock.setReferenceCounted(false);
+	barometer.setFixedPoint(!Compat.hasFpu());
+    }
+
+    @Override
+    public void onDestroy() {
+	stopRecording();
+	variometer.stop();
+	nmea.stop();
+	if (tones != null) {
+	    tones.release();
+	    tones = null;
+	}
+	sensorHandler.post(new Runnable() {
+	    public void run() {
+		disableSensors();
+		thread.quit();
+	    }
+	});
+	super.onDestroy();
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+	String action = intent.getAction();
+	if (ACTION_STREAM.equals(action)) return binder;
+	if (!ACTION_DISPLAY.equals(action)) return null;
+	bound = true;
+	sensorHandler.post(reregister);
+	return binder;
+    }
+
+    @Override
+    public void onRebind(Intent intent) {
+	if (!ACTION_DISPLAY.equals(intent.getAction())) return;
+	bound = true;
+	sensorHandler.post(reregister);
+    }
+
+    @Override
+    public boolean onUnbind(Intent intent) {
+	if (!ACTION_DISPLAY.equals(intent.getAction())) return false;
+	bound = false;
+	listener = null;
+	sensorHandler.post(reregister);
+	if (!foreground) stopSelf();
+	return true;
+    }
+
+
+    // API for AltitudeStreamService.
+
+    /**
+     * Feed readings to this stream, or to none. UI thread.
+     */
+    void setStream(AltitudeStream s) {
+	stream = s;
+	sensorHandler.post(reregister);
+    }
+
+    /**
+     * The stream's subscriptions have changed. Any thread.
+     */
+    void streamChanged() {
+	sensorHandler.post(reregister);
+    }
+
+
+    // API for the activity. Call on the UI thread.
+
+    /**
+     * Set the display listener, or null for none.
+     */
+    public void setListener(Listener l) {
+	listener = l;
+    }
+
+    /**
+     * Set the altitude alerts.
+     * @param target    altitude to capture and hold, meters, or NaN
+     * @param minimums  meters, or NaN
+     * @param sink      maximum rate of descent, m/s, or 0
+     */
+    public void setAlerts(final float target, final float minimums,
+	    final float sink)
+    {
+	sensorHandler.post(new Runnable() {
+	    public void run() {
+		alerts.clear();
+		if (!Float.isNaN(target))
+		    alerts.addCapture(target, AlertEngine.CAPTURE_BAND);
+		if (!Float.isNaN(minimums))
+		    alerts.addMinimums(minimums);
+		if (sink > 0)
+		    alerts.addSink(sink);
+	    }
+	});
+    }
+
+    /**
+     * Set Kollsman window value, mB
+     */
+    public void setKollsman(final float k) {
+	sensorHandler.post(new Runnable() {
+	    public void run() {
+		barometer.setKollsman(k);
+	    }
+	});
+    }
+
+    /**
+     * Enable or disable adaptive sample rate.
+     */
+    public void setAdaptive(boolean a) {
+	if (a != adaptive) {
+	    adaptive = a;
+	    sensorHandler.post(reregister);
+	}
+    }
+
+    /**
+     * Enable or disable accelerometer fusion for the VSI.
+     */
+    public void setFusion(boolean f) {
+	if (f != fused) {
+	    fused = f;
+	    sensorHandler.post(reregister);
+	}
+    }
+
+    /**
+     * The display is in low-power mode: while someone is bound, run
+     * the sensor slowly, batched to match the display rate, with
+     * slower filters and no fusion.
+     */
+    public void setLowPower(boolean l) {
+	if (l != lowPower) {
+	    lowPower = l;
+	    sensorHandler.post(reregister);
+	}
+    }
+
+    /**
+     * Turn the audio variometer on or off.
+     */
+    public void setVario(boolean v) {
+	if (v == vario) return;
+	vario = v;
+	if (v) variometer.start();
+	else variometer.stop();
+	updateForeground();
+	sensorHandler.post(reregister);
+    }
+
+    /**
+     * Turn NMEA output on or off.
+     * @param port  TCP port to listen on, and UDP port to send to
+     * @param rate  sentences per second
+     */
+    public void setNmea(boolean on, int port, int rate) {
+	if (on) nmea.start(port, rate);
+	else nmea.stop();
+	nmeaRate = rate;
+	if (on != nmeaOn) {
+	    nmeaOn = on;
+	    updateForeground();
+	    sensorHandler.post(reregister);
+	}
+    }
+
+    /**
+     * Look up the terrain elevation at a point, for the height above
+     * ground; the listener gets it. The tiles, in Altimeter/terrain on
+     * external storage, are memory-mapped and a lookup can page one
+     * in, so it's done on the sensor thread rather than here.
+     */
+    public void findGround(final double lat, final double lon) {
+	sensorHandler.post(new Runnable() {
+	    public void run() {
+		if (terrain == null)
+		    terrain = new Terrain(new File(
+		      Environment.getExternalStorageDirectory(),
+		      "Altimeter/terrain"), TERRAIN_BYTES);
+		final float e = terrain.elevation(lat, lon);
+		uiHandler.post(new Runnable() {
+		    public void run() {
+			if (listener != null) listener.onGround(e);
+		    }
+		});
+	    }
+	});
+    }
+
+    public boolean isRecording() {
+	return recording;
+    }
+
+    /**
+     * Start recording a session to the given directory. The service
+     * goes into the foreground until the recording is stopped.
+     */
+    public void startRecording(final File dir, final float kollsman) {
+	if (recording) return;
+	recording = true;
+	StateStore.get(this).setRecording(true);
+	updateForeground();
+	sensorHandler.post(new Runnable() {
+	    public void run() {
+		try {
+		    recorder = new Recorder(dir, kollsman);
+		    Log.d(TAG, "Recording to " + recorder.getFile());
+		} catch (IOException e) {
+		    Log.e(TAG, "Unable to start recording", e);
+		    uiHandler.post(new Runnable() {
+			public void run() {
+			    stopRecording();
+			}
+		    });
+		}
+	    }
+	});
+	sensorHandler.post(reregister);
+    }
+
+    public void stopRecording() {
+	if (!recording) return;
+	recording = false;
+	StateStore.get(this).setRecording(false);
+	sensorHandler.post(new Runnable() {
+	    public void run() {
+		closeRecorder();
+	    }
+	});
+	updateForeground();
+	sensorHandler.post(reregister);
+    }
+
+    /**
+     * Recording, the vario and NMEA output all need us to carry on
+     * without the activity: started, in the foreground and holding a
+     * wake lock.
+     */
+    private void updateForeground() {
+	boolean f = recording || vario || nmeaOn;
+	if (f) {
+	    if (!foreground)
+		startService(new Intent(this, AltimeterService.class));
+	    // Again if already there, to update the notification
+	    Compat.startForeground(this, NOTIFICATION_ID, makeNotification());
+	    wakeLock.acquire();
+	} else if (foreground) {
+	    if (wakeLock.isHeld()) wakeLock.release();
+	    Compat.stopForeground(this, NOTIFICATION_ID);
+	    if (!bound) stopSelf();
+	}
+	foreground = f;
+    }
+
+    private void closeRecorder() {
+	Recorder r = recorder;
+	recorder = null;
+	if (r == null) return;
+	try {
+	    r.close();
+	} catch (IOException e) {
+	    Log.e(TAG, "Error closing recording", e);
+	}
+    }
+
+    private Notification makeNotification() {
+	CharSequence title = getString(R.string.app_name);
+	CharSequence text = getString(recording ? R.string.recording :
+	  vario ? R.string.varioOn : R.string.nmeaOn);
+	Notification n = new Notification(R.drawable.altimeter_icon, text,
+	  System.currentTimeMillis());
+	Intent intent = new Intent(this, AltimeterActivity.class);
+	PendingIntent pi = PendingIntent.getActivity(this, 0, intent, 0);
+	n.setLatestEventInfo(this, title, text, pi);
+	n.flags |= Notification.FLAG_ONGOING_EVENT | Notification.FLAG_NO_CLEAR;
+	return n;
+    }
+
+
+    // Sensors
+
+    private final Runnable reregister = new Runnable() {
+	public void run() {
+	    updateSensors();
+	}
+    };
+
+    /**
+     * Register or re-register the pressure listener for the current
+     * state: off if nobody is watching and we're not recording,
+     * otherwise at the rate the rate controller wants, or UI rate if
+     * it's disabled. Batched when steady and nobody is watching.
+     * Runs on the sensor thread.
+     */
+    private void updateSensors() {
+	disableSensors();
+	AltitudeStream stream = this.stream;
+	boolean streaming = stream != null && stream.isActive();
+	if (!bound && !recording && !vario && !streaming && !nmeaOn) return;
+	Sensor sensor = sensorManager.getDefaultSensor(Sensor.TYPE_PRESSURE);
+	if (sensor == null) {
+	    Log.e(TAG, "No pressure sensors on this device");
+	    return;
+	}
+	int rate = SensorManager.SENSOR_DELAY_UI;
+	int period = BATCH_PERIOD;
+	boolean steady = true;
+	if (adaptive) {
+	    rate = DELAYS[rateLevel];
+	    period = SampleRateController.PERIOD[rateLevel];
+	    steady = rateLevel == SampleRateController.SLOW;
+	} else {
+	    rateController.reset();
+	    rateLevel = rateController.getLevel();
+	}
+	int latency = bound || !steady ? 0 : BATCH_LATENCY;
+	if (streaming)
+	    latency = Math.min(latency, stream.getMinBatch() * 1000);
+	if (nmeaOn)
+	    latency = Math.min(latency, 1000000 / nmeaRate);
+	boolean low = lowPower && bound && !vario;
+	if (low) {
+	    rate = DELAYS[SampleRateController.SLOW];
+	    period = SampleRateController.PERIOD[SampleRateController.SLOW];
+	    latency = LOW_POWER_LATENCY;
+	} else if (vario) {
+	    rate = DELAYS[SampleRateController.FAST];
+	    period = SampleRateController.PERIOD[SampleRateController.FAST];
+	    latency = 0;
+	    steady = false;
+	}
+	barometer.setLowPower(low);
+	sensing = Compat.registerListener(sensorManager, this, sensor,
+	  rate, period, latency, sensorHandler);
+	if (fused && !low && (bound || !steady)) registerImu();
+    }
+
+    /**
+     * Add the gravity and linear acceleration sensors, for fusion.
+     */
+    private void registerImu() {
+	Sensor grav = sensorManager.getDefaultSensor(Compat.TYPE_GRAVITY);
+	Sensor lin =
+	  sensorManager.getDefaultSensor(Compat.TYPE_LINEAR_ACCELERATION);
+	if (grav == null || lin == null) {
+	    Log.w(TAG, "No gravity/linear acceleration sensors, no fusion");
+	    return;
+	}
+	int rate = SensorManager.SENSOR_DELAY_GAME;
+	imu = sensorManager.registerListener(this, grav, rate, sensorHandler) &&
+	  sensorManager.registerListener(this, lin, rate, sensorHandler);
+	sensing |= imu;
+    }
+
+    // Sensor rate for each SampleRateController level
+    private static final int[] DELAYS = {
+	SensorManager.SENSOR_DELAY_NORMAL,
+	SensorManager.SENSOR_DELAY_UI,
+	SensorManager.SENSOR_DELAY_FASTEST,
+    };
+
+    private void disableSensors() {
+	if (sensing) {
+	    sensorManager.unregisterListener(this);
+	    sensing = false;
+	    imu = false;
+	}
+    }
+
+    public void onAccuracyChanged(Sensor sensor, int arg1) { }
+
+    /**
+     * Runs on the sensor thread.
+     */
+    public void onSensorChanged(SensorEvent event) {
+	float[] v = event.values;
+	long ts = event.timestamp;
+	switch (event.sensor.getType()) {
+	  case Compat.TYPE_GRAVITY:
+	    fusion.gravity(v[0], v[1], v[2]);
+	    return;
+	  case Compat.TYPE_LINEAR_ACCELERATION:
+	    fusion.accel(ts, v[0], v[1], v[2]);
+	    return;
+	}
+	float pres = v[0];
+	spikes.process(ts, pres);
+	float p = despiked.value;
+	float alt = barometer.p2aDamped(p, ts);
+	float vsi = barometer.vsi;
+	fusion.baro(barometer.raw, vsi);
+	if (imu && fusion.isRunning()) vsi = fusion.getVsi();
+	if (vario) variometer.setVsi(vsi);
+	AltitudeStream stream = this.stream;
+	if (stream != null && stream.isActive())
+	    stream.add(ts, pres, alt, vsi);
+	if (nmeaOn) nmea.set(alt, barometer.kollsman, vsi);
+	boolean alert = alerts.update(ts, alt, vsi);
+	if (adaptive) {
+	    // The controller gets the reading as it came, so the sharp
+	    // start of a climb goes FAST before the spike filter has
+	    // let it through
+	    float raw = p == pres ? barometer.raw : barometer.p2a(pres);
+	    int l = rateController.update(ts, raw, alt, vsi);
+	    if (l != rateLevel) {
+		rateLevel = l;
+		// The rate is pinned in low-power mode and for the vario
+		if (!vario && (!lowPower || !bound))
+		    sensorHandler.post(reregister);
+	    }
+	}
+	Recorder r = recorder;
+	if (r != null) {
+	    try {
+		r.add(ts, pres, alt, vsi);
+	    } catch (IOException e) {
+		Log.e(TAG, "Error writing recording", e);
+		closeRecorder();
+	    }
+	}
+	if (bound) enqueue(ts, pres, alt, vsi);
+	// Alerts go out whether or not anyone's watching
+	if (alert && !posted) {
+	    posted = true;
+	    uiHandler.post(drain);
+	}
+    }
+
+    private void enqueue(long ts, float pres, float alt, float vsi) {
+	int h = qHead;
+	int next = (h + 1) % QSIZE;
+	if (next == qTail) return;		// UI thread is behind
+	qTs[h] = ts;
+	qPres[h] = pres;
+	qAlt[h] = alt;
+	qVsi[h] = vsi;
+	qHead = next;
+	if (!posted) {
+	    posted = true;
+	    uiHandler.post(drain);
+	}
+    }
+
+    /**
+     * Deliver queued readings to the listener, on the UI thread.
+     */
+    private final Runnable drain = new Runnable() {
+	public void run() {
+	    posted = false;
+	    int t = qTail;
+	    int h = qHead;
+	    Listener l = listener;
+	    while (t != h) {
+		if (l != null)
+		    l.onReading(qTs[t], qPres[t], qAlt[t], qVsi[t]);
+		t = (t + 1) % QSIZE;
+	    }
+	    qTail = t;
+	    alerts.drain(l != null ? l : alertSink);
+	}
+    };
+
+    /**
+     * Alerts while the activity isn't showing: the same tone, and a
+     * notification that opens it.
+     */
+    private final AlertEngine.Listener alertSink = new AlertEngine.Listener()
+    {
+	public void onAlert(int rule, int alert, long ts, float alt) {
+	    int msg = alertMessage(alert);
+	    if (msg == 0) return;
+	    tones = soundAlert(tones, alert);
+	    Context ctx = AltimeterService.this;
+	    CharSequence text = getString(msg);
+	    Notification n = new Notification(R.drawable.altimeter_icon, text,
+	      System.currentTimeMillis());
+	    Intent intent = new Intent(ctx, AltimeterActivity.class);
+	    PendingIntent pi = PendingIntent.getActivity(ctx, 0, intent, 0);
+	    n.setLatestEventInfo(ctx, getString(R.string.app_name), text, pi);
+	    n.flags |= Notification.FLAG_AUTO_CANCEL;
+	    NotificationManager nm = (NotificationManager)
+	      getSystemService(Context.NOTIFICATION_SERVICE);
+	    nm.notify(ALERT_NOTIFICATION_ID, n);
+	}
+    };
+
+    /**
+     * The message for an {@link AlertEngine} alert, or 0 if none.
+     */
+    static int alertMessage(int alert) {
+	switch (alert) {
+	  case AlertEngine.ALERT_APPROACH: return R.string.alertApproach;
+	  case AlertEngine.ALERT_DEVIATION: return R.string.alertDeviation;
+	  case AlertEngine.ALERT_MINIMUMS: return R.string.alertMinimums;
+	  case AlertEngine.ALERT_SINK: return R.string.alertSink;
+	}
+	return 0;
+    }
+
+    /**
+     * Sound an alert on the alarm stream.
+     * @param t  tone generator, or null to make one
+     * @return the tone generator, to pass in next time and release
+     *   when done
+     */
+    static ToneGenerator soundAlert(ToneGenerator t, int alert) {
+	try {
+	    if (t == null)
+		t = new ToneGenerator(AudioManager.STREAM_ALARM,
+		  ToneGenerator.MAX_VOLUME);
+	    t.startTone(alert == AlertEngine.ALERT_APPROACH ?
+	      ToneGenerator.TONE_PROP_BEEP2 :
+	      ToneGenerator.TONE_CDMA_ALERT_CALL_GUARD, 1000);
+	} catch (RuntimeException e) {
+	    Log.e(TAG, "Unable to sound alert", e);
+	}
+	return t;
+    }
+}
@@ -0,0 +1,308 @@
+/**
+ * Altitude readings for other apps.
+ */
+
+package org.efalk.altimeter;
+
+import android.os.Debug;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.IBinder;
+import android.os.Process;
+import android.os.RemoteCallbackList;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+
+/**
+ * The binder interface other apps get by binding to
+ * {@link AltitudeStreamService} with ACTION. Subscribers register an
+ * {@link IAltitudeCallback} and are called every batchMs with all the
+ * readings since the last call, as four primitive arrays in one
+ * oneway transaction, so the cost is one IPC per batch rather than
+ * one per sample. Each subscriber picks its own batch period and can
+ * thin the readings out to one per sampleMs.
+ *
+ * The sensor thread only copies each reading into a ring of RING
+ * entries and bumps a counter; no locks, no allocation. Batches are
+ * built and sent on a thread of our own at background priority, which
+ * only wakes when a subscriber is due. With no subscribers, nothing
+ * runs at all.
+ *
+ * A batch is read from at most the newest half of the ring, so the
+ * sensor thread can't be overwriting it meanwhile. RING is sized so
+ * that half of it holds MAX_BATCH at MAX_RATE, well beyond the FAST
+ * rate we ask for; should a sensor deliver faster still, the sensor
+ * thread wakes us once the oldest unsent reading is RING/4 back, and
+ * whoever has that much waiting gets it early.
+ *
+ * StreamClient, in tools/, is an on-device load test: several
+ * subscribers, each in its own process, log their throughput and CPU
+ * time, and we log what each of them cost us.
+ */
+class AltitudeStream extends IAltitudeStream.Stub {
+    private static final String TAG = AltimeterActivity.TAG;
+    static final String ACTION = "org.efalk.altimeter.ALTITUDE_STREAM";
+    static final int MIN_BATCH = 50;		// ms
+    static final int MAX_BATCH = 10000;		// ms
+    private static final int MAX_RATE = 200;	// Hz
+    // MAX_BATCH at MAX_RATE in half the ring; power of 2
+    private static final int RING = 4096;
+    private static final long NONE = Long.MIN_VALUE;
+
+    // Written by the sensor thread only
+    private final long[] rTs = new long[RING];
+    private final float[] rPres = new float[RING];
+    private final float[] rAlt = new float[RING];
+    private final float[] rVsi = new float[RING];
+    private volatile long head = 0;		// readings ever added
+
+    private static class Subscriber {
+	IAltitudeCallback cb;
+	long batch;		// ms
+	long spacing;		// ns
+	long cursor;		// next reading to send
+	long lastTs;		// last one sent, or NONE
+	long due;		// uptimeMillis
+	long batches, readings, lost;
+	long cpu;		// ns on our thread
+    }
+
+    // Touched only on our thread
+    private final ArrayList<Subscriber> subs = new ArrayList<Subscriber>();
+    private volatile int nSubs = 0;
+    private volatile int minBatch = MAX_BATCH;
+    private volatile long oldest = 0;	// lowest cursor of any subscriber
+    private volatile boolean catching = false;	// catchUp pending
+
+    private final HandlerThread thread;
+    private final Handler handler;
+    private final Runnable changed;
+
+    private final RemoteCallbackList<IAltitudeCallback> callbacks =
+      new RemoteCallbackList<IAltitudeCallback>() {
+	@Override
+	public void onCallbackDied(IAltitudeCallback cb) {
+	    remove(cb);
+	}
+    };
+
+    /**
+     * @param changed  run when the first subscriber arrives, the last
+     *                 one leaves or the shortest batch period changes
+     */
+    AltitudeStream(Runnable changed) {
+	this.changed = changed;
+	thread = new HandlerThread("stream",
+	  Process.THREAD_PRIORITY_BACKGROUND);
+	thread.start();
+	handler = new Handler(thread.getLooper());
+    }
+
+    void close() {
+	callbacks.kill();
+	thread.quit();
+    }
+
+    /** Anybody listening? */
+    boolean isActive() {
+	return nSubs > 0;
+    }
+
+    /** Shortest batch period of any subscriber, ms */
+    int getMinBatch() {
+	return minBatch;
+    }
+
+    /**
+     * Add a reading. Sensor thread only.
+     */
+    void add(long ts, float pres, float alt, float vsi) {
+	long h = head;
+	int i = (int)h & (RING - 1);
+	rTs[i] = ts;
+	rPres[i] = pres;
+	rAlt[i] = alt;
+	rVsi[i] = vsi;
+	head = h + 1;
+	if (h + 1 - oldest >= RING / 4 && !catching) {
+	    catching = true;
+	    handler.post(catchUp);
+	}
+    }
+
+
+    // IAltitudeStream. These come in on binder threads.
+
+    public void subscribe(final IAltitudeCallback cb, int batchMs,
+	    int sampleMs)
+    {
+	if (cb == null) throw new IllegalArgumentException("no callback");
+	final long batch = Math.max(MIN_BATCH, Math.min(batchMs, MAX_BATCH));
+	final long spacing = Math.max(sampleMs, 0) * 1000000L;
+	callbacks.register(cb);
+	handler.post(new Runnable() {
+	    public void run() {
+		Subscriber s = find(cb.asBinder());
+		if (s == null) {
+		    s = new Subscriber();
+		    s.cb = cb;
+		    s.cursor = head;
+		    s.lastTs = NONE;
+		    subs.add(s);
+		}
+		s.batch = batch;
+		s.spacing = spacing;
+		s.due = SystemClock.uptimeMillis() + batch;
+		update();
+	    }
+	});
+    }
+
+    public void unsubscribe(IAltitudeCallback cb) {
+	if (cb == null) return;
+	callbacks.unregister(cb);
+	remove(cb);
+    }
+
+    private void remove(final IAltitudeCallback cb) {
+	handler.post(new Runnable() {
+	    public void run() {
+		Subscriber s = find(cb.asBinder());
+		if (s != null) {
+		    subs.remove(s);
+		    report(s);
+		    update();
+		}
+	    }
+	});
+    }
+
+    private Subscriber find(IBinder b) {
+	for (int i = 0; i < subs.size(); ++i) {
+	    Subscriber s = subs.get(i);
+	    if (s.cb.asBinder() == b) return s;
+	}
+	return null;
+    }
+
+    /**
+     * The subscriptions have changed: tell the service and reschedule.
+     */
+    private void update() {
+	int n = subs.size();
+	int mb = MAX_BATCH;
+	for (int i = 0; i < n; ++i)
+	    mb = (int)Math.min(mb, subs.get(i).batch);
+	long o = head;
+	for (int i = 0; i < n; ++i)
+	    o = Math.min(o, subs.get(i).cursor);
+	oldest = o;
+	boolean tell = (n > 0) != (nSubs > 0) || mb != minBatch;
+	nSubs = n;
+	minBatch = mb;
+	if (tell) changed.run();
+	schedule();
+    }
+
+    private void schedule() {
+	handler.removeCallbacks(publish);
+	if (subs.isEmpty()) return;
+	long next = Long.MAX_VALUE;
+	for (int i = 0; i < subs.size(); ++i)
+	    next = Math.min(next, subs.get(i).due);
+	handler.postAtTime(publish, next);
+    }
+
+    private final Runnable publish = new Runnable() {
+	public void run() {
+	    long now = SystemClock.uptimeMillis();
+	    for (int i = subs.size() - 1; i >= 0; --i) {
+		Subscriber s = subs.get(i);
+		if (now < s.due) continue;
+		s.due += s.batch;
+		if (s.due <= now) s.due = now + s.batch;	// fell behind
+		if (!send(s)) subs.remove(i);
+	    }
+	    update();
+	}
+    };
+
+    /**
+     * The sensor thread says readings are piling up: send early to
+     * whoever is a quarter of the ring behind.
+     */
+    private final Runnable catchUp = new Runnable() {
+	public void run() {
+	    catching = false;
+	    long h = head;
+	    for (int i = subs.size() - 1; i >= 0; --i) {
+		Subscriber s = subs.get(i);
+		if (h - s.cursor >= RING / 4 && !send(s)) subs.remove(i);
+	    }
+	    update();
+	}
+    };
+
+    /**
+     * Log what a subscriber that's leaving had from us.
+     */
+    private void report(Subscriber s) {
+	Log.i(TAG, String.format("Altitude subscriber: %d batches, " +
+	  "%d readings, %d lost, %.1f us CPU per batch", s.batches,
+	  s.readings, s.lost, s.batches > 0 ? s.cpu / 1e3 / s.batches : 0.));
+    }
+
+    /**
+     * Send this subscriber what it hasn't had yet.
+     * @return false if it's gone
+     */
+    private boolean send(Subscriber s) {
+	long t0 = Debug.threadCpuTimeNanos();
+	long h = head;
+	// Half a ring back at most, clear of the sensor thread
+	long from = Math.max(s.cursor, h - RING / 2);
+	s.lost += from - s.cursor;
+	int n = 0;
+	long last = s.lastTs;
+	for (long j = from; j < h; ++j) {
+	    long ts = rTs[(int)j & (RING - 1)];
+	    if (last == NONE || ts - last >= s.spacing) {
+		++n;
+		last = ts;
+	    }
+	}
+	s.cursor = h;
+	if (n == 0) return true;
+	long[] ts = new long[n];
+	float[] pres = new float[n];
+	float[] alt = new float[n];
+	float[] vsi = new float[n];
+	int k = 0;
+	for (long j = from; j < h && k < n; ++j) {
+	    int i = (int)j & (RING - 1);
+	    if (s.lastTs == NONE || rTs[i] - s.lastTs >= s.spacing) {
+		ts[k] = rTs[i];
+		pres[k] = rPres[i];
+		alt[k] = rAlt[i];
+		vsi[k] = rVsi[i];
+		s.lastTs = rTs[i];
+		++k;
+	    }
+	}
+	try {
+	    s.cb.onReadings(ts, pres, alt, vsi);
+	    ++s.batches;
+	    s.readings += n;
+	    s.cpu += Debug.threadCpuTimeNanos() - t0;
+	    return true;
+	} catch (RemoteException e) {
+	    Log.w(TAG, "Altitude subscriber went away");
+	    callbacks.unregister(s.cb);
+	    report(s);
+	    return false;
+	}
+    }
+}
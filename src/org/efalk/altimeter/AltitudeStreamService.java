@@ -0,0 +1,66 @@
+/**
+ * The exported endpoint for other apps' altitude subscriptions.
+ */
+
+package org.efalk.altimeter;
+
+import android.app.Service;
+import android.content.ComponentName;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.IBinder;
+
+/**
+ * Other apps bind here with {@link AltitudeStream#ACTION} to get the
+ * {@link AltitudeStream}. This is the only exported service; all it
+ * does is own the stream and hand it to {@link AltimeterService},
+ * which stays private, so nothing outside the app can bind to that
+ * and pass itself off as the display.
+ *
+ * While anybody is bound here, we're bound to AltimeterService with
+ * ACTION_STREAM, which keeps it alive and feeding the stream.
+ */
+public class AltitudeStreamService extends Service {
+    private AltitudeStream stream;
+    private volatile AltimeterService altimeter;	// while connected
+
+    private final ServiceConnection connection = new ServiceConnection() {
+	public void onServiceConnected(ComponentName name, IBinder service) {
+	    altimeter =
+	      ((AltimeterService.LocalBinder)service).getService();
+	    altimeter.setStream(stream);
+	}
+	public void onServiceDisconnected(ComponentName name) {
+	    altimeter = null;
+	}
+    };
+
+    @Override
+    public void onCreate() {
+	super.onCreate();
+	stream = new AltitudeStream(new Runnable() {
+	    public void run() {
+		AltimeterService a = altimeter;
+		if (a != null) a.streamChanged();
+	    }
+	});
+	bindService(new Intent(AltimeterService.ACTION_STREAM)
+	  .setClass(this, AltimeterService.class), connection,
+	  BIND_AUTO_CREATE);
+    }
+
+    @Override
+    public void onDestroy() {
+	if (altimeter != null) altimeter.setStream(null);
+	altimeter = null;
+	unbindService(connection);
+	stream.close();
+	super.onDestroy();
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+	if (!AltitudeStream.ACTION.equals(intent.getAction())) return null;
+	return stream;
+    }
+}
@@ -0,0 +1,210 @@
+/**
+ * Long-term pressure record for the barograph.
+ */
+
+package org.efalk.altimeter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * A fixed-size ring of (time, pressure) readings in a small file, one
+ * reading per barograph wakeup. At 8 bytes a reading, CAPACITY covers
+ * more than five days at one reading per 15 minutes in 8 KB, and the
+ * file never grows.
+ *
+ * The header also counts wakeups and the time spent awake, so the
+ * real cost of the barograph can be read back on the device.
+ *
+ * File format, big-endian:
+ *
+ *   int   magic "BARO"
+ *   int   version
+ *   int   capacity, records
+ *   int   head, next slot to write
+ *   int   count, records in use
+ *   int   wakeups since the file was created
+ *   long  time the file was created, ms since the epoch
+ *   long  total time awake, ms
+ *   then capacity records:
+ *   int   time, seconds since the epoch
+ *   float station pressure, mB
+ */
+public class Barograph {
+    static final int MAGIC = 0x4241524f;	// "BARO"
+    static final int VERSION = 1;
+    static final int HDRSIZE = 40;
+    static final int RECSIZE = 8;
+    public static final int CAPACITY = 512;
+    public static final String FILENAME = "barograph.dat";
+
+    private final RandomAccessFile file;
+    private final byte[] buf = new byte[HDRSIZE];
+    private int capacity, head, count, wakeups;
+    private long since, awake;
+
+    /**
+     * Open the file, creating it if need be.
+     */
+    public Barograph(File f) throws IOException {
+	this(f, true);
+    }
+
+    /**
+     * Open the file. Writable, it's created if need be and started
+     * over if it can't be read. Read-only, either of those is an
+     * IOException instead, and the file is left alone.
+     */
+    public Barograph(File f, boolean writable) throws IOException {
+	file = new RandomAccessFile(f, writable ? "rw" : "r");
+	if (file.length() >= HDRSIZE) {
+	    file.seek(0);
+	    file.readFully(buf);
+	    if (getInt(buf, 0) == MAGIC && getInt(buf, 4) == VERSION) {
+		capacity = getInt(buf, 8);
+		head = getInt(buf, 12);
+		count = getInt(buf, 16);
+		wakeups = getInt(buf, 20);
+		since = (long)getInt(buf, 24) << 32 | getInt(buf, 28) & 0xffffffffL;
+		awake = (long)getInt(buf, 32) << 32 | getInt(buf, 36) & 0xffffffffL;
+		if (capacity > 0 && head >= 0 && head < capacity &&
+		    count >= 0 && count <= capacity)
+		    return;
+	    }
+	}
+	if (!writable) {
+	    file.close();
+	    throw new IOException("Not a barograph file: " + f);
+	}
+	// New or unreadable; start over
+	capacity = CAPACITY;
+	head = count = wakeups = 0;
+	since = System.currentTimeMillis();
+	awake = 0;
+	file.setLength(HDRSIZE + capacity * RECSIZE);
+	writeHeader();
+    }
+
+    public void close() throws IOException {
+	file.close();
+    }
+
+    /**
+     * Add a reading, overwriting the oldest one if the ring is full.
+     * @param time  ms since the epoch
+     * @param pres  pressure, mB
+     */
+    public void add(long time, float pres) throws IOException {
+	putInt(buf, 0, (int)(time / 1000));
+	putInt(buf, 4, Float.floatToIntBits(pres));
+	file.seek(HDRSIZE + head * RECSIZE);
+	file.write(buf, 0, RECSIZE);
+	head = (head + 1) % capacity;
+	if (count < capacity) ++count;
+	writeHeader();
+    }
+
+    /**
+     * Count one wakeup which kept the CPU up for the given time.
+     */
+    public void wakeup(long ms) throws IOException {
+	++wakeups;
+	awake += ms;
+	writeHeader();
+    }
+
+    /**
+     * Read the readings, oldest first, into the arrays, which should
+     * hold CAPACITY entries. Returns the number read.
+     * @param t  times, ms since the epoch
+     * @param p  pressures, mB
+     */
+    public int read(long[] t, float[] p) throws IOException {
+	int n = Math.min(count, Math.min(t.length, p.length));
+	byte[] data = new byte[capacity * RECSIZE];
+	file.seek(HDRSIZE);
+	file.readFully(data);
+	int slot = (head - n + capacity) % capacity;
+	for (int i = 0; i < n; ++i) {
+	    int o = slot * RECSIZE;
+	    t[i] = (getInt(data, o) & 0xffffffffL) * 1000;
+	    p[i] = Float.intBitsToFloat(getInt(data, o + 4));
+	    slot = (slot + 1) % capacity;
+	}
+	return n;
+    }
+
+    public int getWakeups() {
+	return wakeups;
+    }
+
+    /** Time the record was started, ms since the epoch */
+    public long getSince() {
+	return since;
+    }
+
+    /** Total time awake for readings, ms */
+    public long getAwake() {
+	return awake;
+    }
+
+    /**
+     * Wakeups per hour since the record was started.
+     */
+    public float wakeupsPerHour(long now) {
+	long ms = now - since;
+	return ms > 0 ? wakeups * 3600000f / ms : 0;
+    }
+
+    /**
+     * Pressure change over the last span ms, interpolating the
+     * reading span ms before the latest one. Returns NaN if the
+     * record doesn't go back that far, or has a gap of more than an
+     * hour at that point.
+     */
+    public static float tendency(long[] t, float[] p, int n, long span) {
+	if (n < 2) return Float.NaN;
+	long target = t[n-1] - span;
+	for (int i = n - 2; i >= 0; --i) {
+	    if (t[i] <= target) {
+		long dt = t[i+1] - t[i];
+		if (dt > 3600000L) return Float.NaN;
+		float f = dt > 0 ? (float)(target - t[i]) / dt : 0;
+		return p[n-1] - (p[i] + f * (p[i+1] - p[i]));
+	    }
+	}
+	return Float.NaN;
+    }
+
+    /**
+     * Write the header in one go; RandomAccessFile.writeInt() would
+     * make a system call per byte.
+     */
+    private void writeHeader() throws IOException {
+	putInt(buf, 0, MAGIC);
+	putInt(buf, 4, VERSION);
+	putInt(buf, 8, capacity);
+	putInt(buf, 12, head);
+	putInt(buf, 16, count);
+	putInt(buf, 20, wakeups);
+	putInt(buf, 24, (int)(since >> 32));
+	putInt(buf, 28, (int)since);
+	putInt(buf, 32, (int)(awake >> 32));
+	putInt(buf, 36, (int)awake);
+	file.seek(0);
+	file.write(buf, 0, HDRSIZE);
+    }
+
+    private static void putInt(byte[] b, int o, int v) {
+	b[o] = (byte)(v >> 24);
+	b[o+1] = (byte)(v >> 16);
+	b[o+2] = (byte)(v >> 8);
+	b[o+3] = (byte)v;
+    }
+
+    private static int getInt(byte[] b, int o) {
+	return (b[o] & 0xff) << 24 | (b[o+1] & 0xff) << 16 |
+	  (b[o+2] & 0xff) << 8 | (b[o+3] & 0xff);
+    }
+}
@@ -0,0 +1,143 @@
+/**
+ * @file
+ * Shows the barograph record.
+ */
+
+package org.efalk.altimeter;
+
+import android.app.Activity;
+import android.os.Bundle;
+import android.util.Log;
+import android.view.Menu;
+import android.view.MenuItem;
+import android.widget.TextView;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Pressure trend over the last 24 to 72 hours, the change over the
+ * last 3 hours, and what the barograph is costing in wakeups.
+ */
+public class BarographActivity extends Activity
+{
+    private static final String TAG = AltimeterActivity.TAG;
+    private static final long TENDENCY = 3 * 3600000L;	// ms
+    private static final int[] HOURS = {24, 48, 72};
+
+    private BarographView view;
+    private TextView summary;
+    private StateStore state;
+
+    @Override
+    public void onCreate(Bundle savedState)
+    {
+	super.onCreate(savedState);
+	state = StateStore.get(this);
+	setContentView(R.layout.barograph);
+	view = (BarographView) findViewById(R.id.barograph);
+	summary = (TextView) findViewById(R.id.barographSummary);
+	view.setPresUnits(state.getPresUnits());
+	view.setHours(48);
+    }
+
+    @Override
+    public void onResume() {
+	super.onResume();
+	load();
+    }
+
+    /**
+     * Read the record in the background, then show it. It's opened
+     * read-only: the service owns it, and a record we can't read is
+     * reported, not started over.
+     */
+    private void load() {
+	new Thread(new Runnable() {
+	    public void run() {
+		final long[] t = new long[Barograph.CAPACITY];
+		final float[] p = new float[Barograph.CAPACITY];
+		final int n;
+		final String msg;
+		File f = BarographService.file(BarographActivity.this);
+		try {
+		    if (f.exists()) {
+			Barograph b = new Barograph(f, false);
+			try {
+			    n = b.read(t, p);
+			    msg = describe(b, t, p, n);
+			} finally {
+			    b.close();
+			}
+		    } else {
+			n = 0;
+			msg = describe(null, t, p, 0);
+		    }
+		} catch (IOException e) {
+		    Log.e(TAG, "Unable to read barograph", e);
+		    return;
+		}
+		runOnUiThread(new Runnable() {
+		    public void run() {
+			view.setData(t, p, n);
+			summary.setText(msg);
+		    }
+		});
+	    }
+	}, "barograph").start();
+    }
+
+    /**
+     * @param b  the record, or null if there isn't one yet
+     */
+    private String describe(Barograph b, long[] t, float[] p, int n) {
+	StringBuilder sb = new StringBuilder();
+	if (!state.getBarograph())
+	    sb.append(getString(R.string.barographOff)).append('\n');
+	if (n > 0) {
+	    sb.append(format(p[n-1]));
+	    float d = Barograph.tendency(t, p, n, TENDENCY);
+	    if (!Float.isNaN(d)) {
+		int id = d >= 3.5f ? R.string.risingFast :
+		  d >= 1 ? R.string.rising :
+		  d <= -3.5f ? R.string.fallingFast :
+		  d <= -1 ? R.string.falling : R.string.steady;
+		sb.append(", ").append(getString(R.string.change3h))
+		  .append(d < 0 ? " -" : " +").append(format(Math.abs(d)))
+		  .append(" (").append(getString(id)).append(')');
+	    }
+	    sb.append('\n');
+	}
+	if (b == null) return sb.toString();
+	int w = b.getWakeups();
+	sb.append(String.format("%.1f ", b.wakeupsPerHour(
+	  System.currentTimeMillis())));
+	sb.append(getString(R.string.wakeupsPerHour));
+	if (w > 0)
+	    sb.append(String.format(", %.1f s ", b.getAwake() / 1000f / w))
+	      .append(getString(R.string.each));
+	return sb.toString();
+    }
+
+    private String format(float mb) {
+	if (state.getPresUnits() == Altimeter.UNITS_HG)
+	    return String.format("%.2f\"", mb * Altimeter.HG_MB);
+	return String.format("%.1f mB", mb);
+    }
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+	super.onCreateOptionsMenu(menu);
+	for (int i = 0; i < HOURS.length; ++i)
+	    menu.add(0, i, 0, HOURS[i] + " " + getString(R.string.hours));
+	return true;
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+	int i = item.getItemId();
+	if (i < 0 || i >= HOURS.length) return false;
+	view.setHours(HOURS[i]);
+	return true;
+    }
+}
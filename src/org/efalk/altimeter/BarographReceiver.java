@@ -0,0 +1,31 @@
+/**
+ * @file
+ * Wakes up for barograph readings, and restarts the alarm after boot.
+ */
+
+package org.efalk.altimeter;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+
+/**
+ * The barograph alarm lands here. Broadcast receivers can't wait for
+ * sensor events, so we take a wake lock and hand over to
+ * {@link BarographService}, which releases it when done. Alarms
+ * don't survive a reboot, so the alarm is also set up again at boot
+ * if barograph mode is on.
+ */
+public class BarographReceiver extends BroadcastReceiver
+{
+    @Override
+    public void onReceive(Context ctx, Intent intent) {
+	if (Intent.ACTION_BOOT_COMPLETED.equals(intent.getAction())) {
+	    if (StateStore.get(ctx).getBarograph())
+		BarographService.schedule(ctx, true);
+	    return;
+	}
+	BarographService.acquire(ctx);
+	ctx.startService(new Intent(ctx, BarographService.class));
+    }
+}
@@ -0,0 +1,201 @@
+/**
+ * @file
+ * Takes one barograph reading and goes away again.
+ */
+
+package org.efalk.altimeter;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.IBinder;
+import android.os.PowerManager;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Barograph mode. An inexact repeating alarm wakes the device every
+ * INTERVAL; {@link BarographReceiver} takes a wake lock and starts
+ * this service, which turns on the pressure sensor for a burst of
+ * BURST samples (or TIMEOUT, whichever comes first), stores the
+ * median in the {@link Barograph} file and releases the wake lock.
+ * That's one wakeup of a second or two per INTERVAL, and nothing
+ * runs in between.
+ *
+ * An inexact alarm lets the system line our wakeup up with other
+ * apps' so they share one. Batched sensor delivery would do a
+ * similar job, but only from API 19, and the sensor hub would be
+ * running the whole time.
+ */
+public class BarographService extends Service implements SensorEventListener
+{
+    private static final String TAG = AltimeterActivity.TAG;
+    static final long INTERVAL = AlarmManager.INTERVAL_FIFTEEN_MINUTES;
+    static final String ACTION_ALARM = "org.efalk.altimeter.BAROGRAPH";
+    private static final int BURST = 8;
+    private static final long TIMEOUT = 5000;	// ms
+
+    private static PowerManager.WakeLock wakeLock;
+
+    private SensorManager sensorManager;
+    private HandlerThread thread;
+    private Handler handler;
+    private final float[] samples = new float[BURST];
+    private int n = 0;
+    private boolean busy = false;	// touched only on our thread
+    private long startMs;
+
+    /**
+     * Start or stop the barograph alarm. Starting does nothing if it's
+     * already scheduled, so this can be called freely.
+     */
+    static void schedule(Context ctx, boolean on) {
+	Intent intent = new Intent(ctx, BarographReceiver.class)
+	  .setAction(ACTION_ALARM);
+	AlarmManager am =
+	  (AlarmManager) ctx.getSystemService(Context.ALARM_SERVICE);
+	if (on) {
+	    if (PendingIntent.getBroadcast(ctx, 0, intent,
+		  PendingIntent.FLAG_NO_CREATE) != null)
+		return;
+	    PendingIntent pi = PendingIntent.getBroadcast(ctx, 0, intent, 0);
+	    am.setInexactRepeating(AlarmManager.ELAPSED_REALTIME_WAKEUP,
+	      SystemClock.elapsedRealtime() + INTERVAL, INTERVAL, pi);
+	} else {
+	    PendingIntent pi = PendingIntent.getBroadcast(ctx, 0, intent,
+	      PendingIntent.FLAG_NO_CREATE);
+	    if (pi != null) {
+		am.cancel(pi);
+		pi.cancel();
+	    }
+	}
+    }
+
+    /**
+     * Called by the receiver: keep the CPU up until the reading is
+     * stored.
+     */
+    static synchronized void acquire(Context ctx) {
+	if (wakeLock == null) {
+	    PowerManager pm =
+	      (PowerManager) ctx.getSystemService(Context.POWER_SERVICE);
+	    wakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK,
+	      TAG + " barograph");
+	    wakeLock.setReferenceCounted(false);
+	}
+	wakeLock.acquire();
+    }
+
+    private static synchronized void release() {
+	if (wakeLock != null && wakeLock.isHeld())
+	    wakeLock.release();
+    }
+
+    /** Where the readings go */
+    static File file(Context ctx) {
+	return new File(ctx.getFilesDir(), Barograph.FILENAME);
+    }
+
+    @Override
+    public void onCreate() {
+	super.onCreate();
+	sensorManager = (SensorManager) getSystemService(Context.SENSOR_SERVICE);
+	thread = new HandlerThread("barograph",
+	  Process.THREAD_PRIORITY_BACKGROUND);
+	thread.start();
+	handler = new Handler(thread.getLooper());
+    }
+
+    @Override
+    public void onDestroy() {
+	thread.quit();
+	super.onDestroy();
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+	return null;
+    }
+
+    @Override
+    public void onStart(Intent intent, int startId) {
+	handler.post(new Runnable() {
+	    public void run() {
+		begin();
+	    }
+	});
+    }
+
+    private void begin() {
+	if (busy) return;
+	Sensor sensor = sensorManager.getDefaultSensor(Sensor.TYPE_PRESSURE);
+	if (sensor == null) {
+	    Log.e(TAG, "No pressure sensors on this device");
+	    finish();
+	    return;
+	}
+	busy = true;
+	n = 0;
+	startMs = SystemClock.elapsedRealtime();
+	sensorManager.registerListener(this, sensor,
+	  SensorManager.SENSOR_DELAY_NORMAL, handler);
+	handler.postDelayed(timeout, TIMEOUT);
+    }
+
+    private final Runnable timeout = new Runnable() {
+	public void run() {
+	    end();
+	}
+    };
+
+    public void onAccuracyChanged(Sensor sensor, int arg1) { }
+
+    public void onSensorChanged(SensorEvent event) {
+	if (n < BURST) samples[n++] = event.values[0];
+	if (n == BURST) end();
+    }
+
+    /**
+     * Stop the sensor and store the median of the burst.
+     */
+    private void end() {
+	if (!busy) return;
+	busy = false;
+	handler.removeCallbacks(timeout);
+	sensorManager.unregisterListener(this);
+	long ms = SystemClock.elapsedRealtime() - startMs;
+	try {
+	    Barograph b = new Barograph(file(this));
+	    try {
+		if (n > 0) {
+		    Arrays.sort(samples, 0, n);
+		    b.add(System.currentTimeMillis(), samples[n/2]);
+		}
+		b.wakeup(ms);
+	    } finally {
+		b.close();
+	    }
+	} catch (IOException e) {
+	    Log.e(TAG, "Unable to write barograph", e);
+	}
+	finish();
+    }
+
+    private void finish() {
+	release();
+	stopSelf();
+    }
+}
@@ -0,0 +1,142 @@
+package org.efalk.altimeter;
+
+import android.app.Activity;
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.util.AttributeSet;
+import android.util.DisplayMetrics;
+import android.view.View;
+
+
+/**
+ * Barograph trace: station pressure over the last day or three, "now"
+ * at the right edge, with a faint line every 6 hours and the pressure
+ * range labelled on the left. The data come from a {@link Barograph}
+ * file; there's at most a few hundred points, so they're drawn as they
+ * are.
+ */
+public class BarographView extends View {
+
+    private static final float MIN_SPAN = 4;		// mB
+    private static final long HOUR = 3600000L;		// ms
+
+    private Paint paint;
+    private DisplayMetrics metrics;
+    private int wid, hgt;
+    private int presUnits = Altimeter.UNITS_HG;
+    private long window = 48 * HOUR;
+    private long[] t = new long[0];
+    private float[] p = new float[0];
+    private int n = 0;
+    private float[] lines = new float[0];
+
+    public BarographView(Context context) {
+	super(context);
+	init(context);
+    }
+
+    public BarographView(Context context, AttributeSet attrs) {
+	super(context, attrs);
+	init(context);
+    }
+
+    private void init(Context context) {
+	metrics = new DisplayMetrics();
+	((Activity)context).getWindowManager()
+	    .getDefaultDisplay().getMetrics(metrics);
+	paint = new Paint();
+	paint.setAntiAlias(true);
+	paint.setTextSize(paint.getTextSize() * metrics.scaledDensity);
+    }
+
+    /**
+     * Set the readings, oldest first.
+     * @param t  times, ms since the epoch
+     * @param p  pressures, mB
+     * @param n  number of readings
+     */
+    public void setData(long[] t, float[] p, int n) {
+	this.t = t;
+	this.p = p;
+	this.n = n;
+	if (lines.length < n * 4) lines = new float[n * 4];
+	invalidate();
+    }
+
+    public void setPresUnits(int units) {
+	presUnits = units;
+	invalidate();
+    }
+
+    /**
+     * Set the time span of the chart, hours.
+     */
+    public void setHours(int hours) {
+	window = hours * HOUR;
+	invalidate();
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int ow, int oh) {
+	wid = w;
+	hgt = h;
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+	super.onDraw(canvas);
+	if (wid <= 0 || n == 0) return;
+	long now = System.currentTimeMillis();
+	long start = now - window;
+	float xs = (float)wid / window;
+
+	// Grid, every 6 hours
+	paint.setColor(Color.DKGRAY);
+	for (long g = now - now % (6 * HOUR); g > start; g -= 6 * HOUR) {
+	    float x = (g - start) * xs;
+	    canvas.drawLine(x, 0, x, hgt, paint);
+	}
+
+	float lo = Float.MAX_VALUE, hi = -Float.MAX_VALUE;
+	for (int i = 0; i < n; ++i) {
+	    if (t[i] < start) continue;
+	    if (p[i] < lo) lo = p[i];
+	    if (p[i] > hi) hi = p[i];
+	}
+	if (lo > hi) return;		// nothing in the window
+	if (hi - lo < MIN_SPAN) {
+	    float c = (hi + lo) / 2;
+	    lo = c - MIN_SPAN/2;
+	    hi = c + MIN_SPAN/2;
+	}
+	float ys = hgt / (hi - lo);
+	int k = 0;
+	float x0 = 0, y0 = 0;
+	for (int i = 0; i < n; ++i) {
+	    float x = (t[i] - start) * xs;
+	    float y = hgt - (p[i] - lo) * ys;
+	    // Don't join readings across a gap, e.g. the phone was off
+	    if (i > 0 && x >= 0 && t[i] - t[i-1] < 2 * HOUR) {
+		lines[k++] = x0; lines[k++] = y0;
+		lines[k++] = x; lines[k++] = y;
+	    }
+	    x0 = x;
+	    y0 = y;
+	}
+	paint.setColor(Color.WHITE);
+	canvas.drawLines(lines, 0, k, paint);
+
+	float pad = 2 * metrics.scaledDensity;
+	paint.setColor(Color.LTGRAY);
+	canvas.drawText(format(hi), pad, pad - paint.ascent(), paint);
+	canvas.drawText(format(lo), pad, hgt - pad - paint.descent(), paint);
+    }
+
+    private String format(float mb) {
+	if (presUnits == Altimeter.UNITS_HG)
+	    return String.format("%.2f", mb * Altimeter.HG_MB);
+	return String.format("%.0f", mb);
+    }
+}
@@ -43,21 +43,65 @@ public class Barometer {
     static private final double SCALE = 2.25577e-5;
     static private final double EXP = 5.25588;
     static private final float DAMPING = 0.85f;
+    // TODO: FAA standards actually say what the time constant
+    // for a VSI should be. Winging it for now.
     static private final float VSI_DAMPING = 0.95f;
+    // The damping factors above are per sample at this interval
+    // (SENSOR_DELAY_UI). At other rates they're scaled so the time
+    // constants stay the same.
+    static private final float REF_DT = 0.06f;	// seconds
+    // In low-power mode the display only changes once or twice a
+    // second; slow the filters down to match.
+    static private final float LOW_POWER_SLOWDOWN = 2.5f;
 
     float kollsman = ATM;
     float pres = ATM;		// Last recorded pressure
     float alt = 0;
     float vsi = 0;
+    float raw = 0;		// Last undamped altitude
     long lastTs = 0;
     long lastTime = 0;
+    private FixedAltitude fixed = null;	// integer engine, if in use
+
+    // p2aDamped(): altitude is damped, then its rate is damped for vsi
+    private final Stage.Damp altFilter = new Stage.Damp(DAMPING, REF_DT, true);
+    private final Stage.Tap altTap = new Stage.Tap();
+    private final Stage.Damp vsiFilter =
+      new Stage.Damp(VSI_DAMPING, REF_DT, false);
+    private final Stage.Tap vsiTap = new Stage.Tap();
+
+    public Barometer() {
+	altFilter.then(altTap)
+	  .then(new Stage.Rate())
+	  .then(vsiFilter)
+	  .then(vsiTap);
+    }
+
+    /**
+     * Lengthen the filter time constants for the low-power display.
+     */
+    public void setLowPower(boolean on) {
+	float r = on ? REF_DT * LOW_POWER_SLOWDOWN : REF_DT;
+	altFilter.setRefDt(r);
+	vsiFilter.setRefDt(r);
+    }
 
     public void resetKollsman() {
-	kollsman = ATM;
+	setKollsman(ATM);
     }
 
     public void setKollsman(float k) {
 	kollsman = k;
+	if (fixed != null) fixed.setKollsman(Math.round(k * 100));
+    }
+
+    /**
+     * Use the integer engine, {@link FixedAltitude}, for p2a(). It's
+     * much faster without an FPU, and within a few cm of the float
+     * formula at normal altitudes.
+     */
+    public void setFixedPoint(boolean f) {
+	fixed = f ? new FixedAltitude(Math.round(kollsman * 100)) : null;
     }
 
     /**
@@ -72,6 +116,8 @@ public class Barometer {
      */
     public float p2a(float pres) {
 	this.pres = pres;
+	if (fixed != null)
+	    return fixed.altitude(Math.round(pres * 100)) * .01f;
 	return ratio2a(pres / kollsman);
     }
 
@@ -82,6 +128,14 @@ public class Barometer {
 	return ratio2a(pres / sealevel);
     }
 
+    /**
+     * Convert pressure to ISA pressure altitude in meters, i.e. the
+     * altitude with the Kollsman window set to 1013.25 mB.
+     */
+    public static float pressureAltitude(float pres) {
+	return ratio2a(pres / ATM);
+    }
+
     /**
      * Convert sealevel pressure and altitude in meters to local pressure
      */
@@ -101,20 +155,10 @@ public class Barometer {
      * Also compute vsi
      */
     public float p2aDamped(float pres, long now) {
-	float x = p2a(pres);
-	if (lastTs > 0) {
-	    float oldAlt = alt;
-	    alt = x * (1-DAMPING) + alt * DAMPING;
-	    if (now > lastTs) {
-		// TODO: FAA standards actually say what the time constant
-		// for a VSI should be. Winging it for now.
-		float dt = .000000001f * (now - lastTs);
-		float rate = (alt - oldAlt) / dt;
-		vsi = rate * (1-VSI_DAMPING) + vsi * VSI_DAMPING;
-	    }
-	} else {
-	    alt = x;
-	}
+	raw = p2a(pres);
+	altFilter.process(now, raw);
+	alt = altTap.value;
+	vsi = vsiTap.value;
 	lastTs = now;
 	lastTime = System.currentTimeMillis();
 	return alt;
@@ -0,0 +1,129 @@
+/**
+ * Access to platform features newer than our minimum SDK.
+ */
+
+package org.efalk.altimeter;
+
+import android.app.Notification;
+import android.app.NotificationManager;
+import android.app.Service;
+import android.content.Context;
+import android.hardware.Sensor;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
+import android.os.Build;
+import android.os.Handler;
+import android.util.Log;
+
+import java.lang.reflect.Method;
+
+/**
+ * The app is built against the oldest SDK it supports. Newer calls
+ * are looked up by reflection once, and quietly fall back to the old
+ * way of doing things on devices which don't have them.
+ */
+final class Compat {
+    private static final String TAG = AltimeterActivity.TAG;
+
+    // Sensor types from API 9
+    static final int TYPE_GRAVITY = 9;
+    static final int TYPE_LINEAR_ACCELERATION = 10;
+
+    private static Method startForeground;	// API 5
+    private static Method stopForeground;	// API 5
+    private static Method registerBatched;	// API 19
+
+    static {
+	try {
+	    startForeground = Service.class.getMethod("startForeground",
+	      int.class, Notification.class);
+	    stopForeground = Service.class.getMethod("stopForeground",
+	      boolean.class);
+	} catch (NoSuchMethodException e) { }
+	try {
+	    registerBatched = SensorManager.class.getMethod("registerListener",
+	      SensorEventListener.class, Sensor.class, int.class, int.class,
+	      Handler.class);
+	} catch (NoSuchMethodException e) { }
+    }
+
+    private Compat() { }
+
+    /**
+     * Put a service in the foreground, with an ongoing notification.
+     */
+    static void startForeground(Service svc, int id, Notification n) {
+	if (startForeground != null) {
+	    try {
+		startForeground.invoke(svc, id, n);
+		return;
+	    } catch (Exception e) {
+		Log.w(TAG, "startForeground failed", e);
+	    }
+	}
+	svc.setForeground(true);
+	NotificationManager nm = (NotificationManager)
+	  svc.getSystemService(Context.NOTIFICATION_SERVICE);
+	nm.notify(id, n);
+    }
+
+    /**
+     * Take a service out of the foreground and remove its notification.
+     */
+    static void stopForeground(Service svc, int id) {
+	if (stopForeground != null) {
+	    try {
+		stopForeground.invoke(svc, true);
+		return;
+	    } catch (Exception e) {
+		Log.w(TAG, "stopForeground failed", e);
+	    }
+	}
+	NotificationManager nm = (NotificationManager)
+	  svc.getSystemService(Context.NOTIFICATION_SERVICE);
+	nm.cancel(id);
+	svc.setForeground(false);
+    }
+
+    /**
+     * False on devices which may not have a floating point unit.
+     * Plain "armeabi" only promises ARMv5, where all floating point is
+     * done in software; "armeabi-v7a" and everything else has one.
+     */
+    static boolean hasFpu() {
+	return !"armeabi".equals(Build.CPU_ABI);
+    }
+
+    /**
+     * True if the sensor stack can batch events (hold them in the
+     * sensor hub and deliver them in bursts).
+     */
+    static boolean canBatch() {
+	return registerBatched != null;
+    }
+
+    /**
+     * Register a sensor listener, letting the sensor hub hold events
+     * for up to maxLatency microseconds before delivering them. On
+     * devices without batching this is the same as the usual
+     * registerListener() with the given rate.
+     * @param rate        one of the SensorManager.SENSOR_DELAY_* values
+     * @param periodUs    sample period, used only when batching
+     * @param maxLatency  maximum delivery latency, microseconds
+     */
+    static boolean registerListener(SensorManager sm,
+	SensorEventListener l, Sensor sensor, int rate, int periodUs,
+	int maxLatency, Handler handler)
+    {
+	if (registerBatched != null && maxLatency > 0) {
+	    try {
+		Object rc = registerBatched.invoke(sm, l, sensor, periodUs,
+		  maxLatency, handler);
+		return ((Boolean)rc).booleanValue();
+	    } catch (Exception e) {
+		Log.w(TAG, "batched registerListener failed", e);
+	    }
+	}
+	return sm.registerListener(l, sensor, rate, handler);
+    }
+}
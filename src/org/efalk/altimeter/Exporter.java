@@ -0,0 +1,237 @@
+/**
+ * Convert recorded sessions to formats other tools can read.
+ */
+
+package org.efalk.altimeter;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.TimeZone;
+
+/**
+ * Streams a recorded session (see {@link Recorder}) to CSV or IGC.
+ * Samples are decoded one at a time by a {@link LogReader} and
+ * formatted straight into a fixed-size byte buffer which is written
+ * out whenever it fills up, so memory use doesn't depend on the
+ * length of the session. No Strings are built per sample.
+ *
+ * Sessions don't record a position, and a made-up one would put the
+ * flight somewhere it never was. That rules out GPX, whose track
+ * points must have a lat and lon. IGC B-records carry ISA pressure
+ * altitude (1013.25 mB datum) and are written at most once per
+ * second, as the format only resolves whole seconds; the position is
+ * zeroes with fix validity 'V', which is how the format says there's
+ * no fix.
+ */
+public abstract class Exporter {
+    public static final int CSV = 0;
+    public static final int IGC = 1;
+    public static final String[] SUFFIX = {".csv", ".igc"};
+
+    private static final int BUFSIZE = 8192;
+    private static final int MARGIN = 256;	// longest single record
+
+    private final byte[] buf = new byte[BUFSIZE];
+    private int len = 0;
+    private OutputStream out;
+    protected final Calendar cal =
+      new GregorianCalendar(TimeZone.getTimeZone("UTC"));
+
+    /**
+     * Return an exporter for the given format.
+     */
+    public static Exporter create(int format) {
+	switch (format) {
+	  case CSV: return new Csv();
+	  case IGC: return new Igc();
+	}
+	throw new IllegalArgumentException("unknown export format " + format);
+    }
+
+    /**
+     * Convenience: export a log file to a file.
+     */
+    public static void export(File log, File dest, int format)
+	throws IOException
+    {
+	LogReader rdr = new LogReader(log);
+	try {
+	    OutputStream os = new FileOutputStream(dest);
+	    try {
+		create(format).export(rdr, os);
+	    } finally {
+		os.close();
+	    }
+	} finally {
+	    rdr.close();
+	}
+    }
+
+    /**
+     * Export the rest of the session. The stream is flushed but
+     * not closed.
+     */
+    public void export(LogReader rdr, OutputStream os) throws IOException {
+	out = os;
+	len = 0;
+	begin(rdr);
+	long ts0 = 0;
+	boolean first = true;
+	while (rdr.next()) {
+	    if (first) {
+		ts0 = rdr.ts;
+		first = false;
+	    }
+	    sample(rdr, rdr.start + (rdr.ts - ts0) / 1000000);
+	    if (len > BUFSIZE - MARGIN) flush();
+	}
+	end(rdr);
+	flush();
+	out.flush();
+    }
+
+    /** Write the file header. */
+    protected abstract void begin(LogReader rdr) throws IOException;
+
+    /**
+     * Write one sample.
+     * @param time  wall-clock time of the sample, ms since the epoch
+     */
+    protected abstract void sample(LogReader rdr, long time)
+	throws IOException;
+
+    /** Write the file trailer. */
+    protected abstract void end(LogReader rdr) throws IOException;
+
+
+    // Formatting into the buffer. Callers must not write more than
+    // MARGIN bytes between checks of the buffer level.
+
+    private void flush() throws IOException {
+	out.write(buf, 0, len);
+	len = 0;
+    }
+
+    /** Append a string, which must be ASCII. Only for headers. */
+    protected void put(String s) throws IOException {
+	for (int i = 0; i < s.length(); ++i) {
+	    if (len == BUFSIZE) flush();
+	    buf[len++] = (byte)s.charAt(i);
+	}
+    }
+
+    protected void put(char c) {
+	buf[len++] = (byte)c;
+    }
+
+    /**
+     * Append an integer, zero-padded to at least width digits.
+     */
+    protected void put(long v, int width) {
+	if (v < 0) {
+	    buf[len++] = '-';
+	    v = -v;
+	    --width;
+	}
+	int n = 1;
+	for (long t = v; t >= 10; t /= 10) ++n;
+	if (n < width) n = width;
+	for (int i = len + n - 1; i >= len; --i) {
+	    buf[i] = (byte)('0' + v % 10);
+	    v /= 10;
+	}
+	len += n;
+    }
+
+    /**
+     * Append a value with a fixed number of decimals.
+     */
+    protected void put(double v, int decimals) {
+	long scale = 1;
+	for (int i = 0; i < decimals; ++i) scale *= 10;
+	long r = Math.round(v * scale);
+	if (r < 0) {
+	    buf[len++] = '-';
+	    r = -r;
+	}
+	put(r / scale, 1);
+	if (decimals > 0) {
+	    buf[len++] = '.';
+	    put(r % scale, decimals);
+	}
+    }
+
+    /**
+     * Append a time as ISO 8601, e.g. 2015-07-04T10:15:00.250Z
+     */
+    protected void putIso(long time) {
+	cal.setTimeInMillis(time);
+	put(cal.get(Calendar.YEAR), 4); put('-');
+	put(cal.get(Calendar.MONTH) + 1, 2); put('-');
+	put(cal.get(Calendar.DAY_OF_MONTH), 2); put('T');
+	put(cal.get(Calendar.HOUR_OF_DAY), 2); put(':');
+	put(cal.get(Calendar.MINUTE), 2); put(':');
+	put(cal.get(Calendar.SECOND), 2); put('.');
+	put(cal.get(Calendar.MILLISECOND), 3); put('Z');
+    }
+
+
+    /**
+     * time,pressure_mb,altitude_m,vsi_mps, with the time in ISO 8601
+     */
+    static class Csv extends Exporter {
+	protected void begin(LogReader rdr) throws IOException {
+	    put("time,pressure_mb,altitude_m,vsi_mps\n");
+	}
+
+	protected void sample(LogReader rdr, long time) {
+	    putIso(time); put(',');
+	    put(rdr.pres, 2); put(',');
+	    put(rdr.alt, 1); put(',');
+	    put(rdr.vsi, 2); put('\n');
+	}
+
+	protected void end(LogReader rdr) { }
+    }
+
+    /**
+     * IGC file with pressure-altitude B-records, one per second.
+     */
+    static class Igc extends Exporter {
+	private long lastSec;
+
+	protected void begin(LogReader rdr) throws IOException {
+	    lastSec = -1;
+	    put("AXXXALT Altimeter\r\n");
+	    cal.setTimeInMillis(rdr.start);
+	    put("HFDTEDATE:");
+	    put(cal.get(Calendar.DAY_OF_MONTH), 2);
+	    put(cal.get(Calendar.MONTH) + 1, 2);
+	    put(cal.get(Calendar.YEAR) % 100, 2);
+	    put("\r\nHFFTYFRTYPE:Altimeter\r\n");
+	    put("HFPRSPRESSALTSENSOR:Android barometer\r\n");
+	}
+
+	protected void sample(LogReader rdr, long time) throws IOException {
+	    long sec = time / 1000;
+	    if (sec == lastSec) return;
+	    lastSec = sec;
+	    cal.setTimeInMillis(time);
+	    put('B');
+	    put(cal.get(Calendar.HOUR_OF_DAY), 2);
+	    put(cal.get(Calendar.MINUTE), 2);
+	    put(cal.get(Calendar.SECOND), 2);
+	    put("0000000N00000000EV");	// no fix
+	    int palt = Math.round(Barometer.pressureAltitude(rdr.pres));
+	    put(palt, 5);
+	    put(0, 5);			// no GNSS altitude
+	    put("\r\n");
+	}
+
+	protected void end(LogReader rdr) { }
+    }
+}
@@ -0,0 +1,101 @@
+/**
+ * Works out the Kollsman setting from a known elevation.
+ */
+
+package org.efalk.altimeter;
+
+/**
+ * "I'm at field elevation X": average the pressure until the mean is
+ * known well enough, then the Kollsman setting is the sea level
+ * pressure for that mean at that elevation,
+ * {@link Barometer#a2sealevel}.
+ *
+ * The running mean and variance are kept with Welford's method.
+ * We're done as soon as the 95% confidence interval of the resulting
+ * setting is within TOLERANCE, after at least MIN_SAMPLES samples and
+ * MIN_TIME (consecutive samples are not independent, so the interval
+ * is optimistic for the first few). Walking around or riding an
+ * elevator widens the interval and holds things up; if it's not tight
+ * by MAX_TIME, we give up.
+ *
+ * Samples go through a {@link SpikeFilter} first. Pure computation,
+ * no allocation per sample.
+ */
+public class FieldCalibration {
+    public static final int RUNNING = 0;
+    public static final int DONE = 1;
+    public static final int FAILED = 2;
+
+    private static final float TOLERANCE = 0.05f;	// mB, ~0.4 m
+    private static final int MIN_SAMPLES = 10;
+    private static final long MIN_TIME = 2000000000L;	// ns
+    private static final long MAX_TIME = 30000000000L;	// ns
+    private static final double Z95 = 1.96;
+
+    private final float elevation;
+    private final SpikeFilter spikes = new SpikeFilter();
+    private int state = RUNNING;
+    private long n = 0;
+    private double mean = 0, m2 = 0;
+    private long startTs = 0;
+    private float kollsman = 0;
+
+    /**
+     * @param elevation  field elevation, meters
+     */
+    public FieldCalibration(float elevation) {
+	this.elevation = elevation;
+    }
+
+    public float getElevation() {
+	return elevation;
+    }
+
+    public int getState() {
+	return state;
+    }
+
+    /** The Kollsman setting, mB, once DONE */
+    public float getKollsman() {
+	return kollsman;
+    }
+
+    /** Number of samples used so far */
+    public long getSamples() {
+	return n;
+    }
+
+    /**
+     * Half-width of the 95% confidence interval of the setting, mB.
+     */
+    public float getInterval() {
+	if (n < 2) return Float.MAX_VALUE;
+	double sd = Math.sqrt(m2 / (n - 1));
+	return (float)(Z95 * sd / Math.sqrt(n)
+	  / Barometer.a2ratio(elevation));
+    }
+
+    /**
+     * Add one pressure sample.
+     * @param ts    timestamp, ns
+     * @param pres  pressure, mB
+     * @return the state after this sample
+     */
+    public int add(long ts, float pres) {
+	if (state != RUNNING) return state;
+	double x = spikes.filter(ts, pres);
+	if (n == 0) startTs = ts;
+	++n;
+	double d = x - mean;
+	mean += d / n;
+	m2 += d * (x - mean);
+	long t = ts - startTs;
+	if (n >= MIN_SAMPLES && t >= MIN_TIME && getInterval() <= TOLERANCE) {
+	    kollsman = Barometer.a2sealevel((float)mean, elevation);
+	    state = DONE;
+	} else if (t > MAX_TIME) {
+	    state = FAILED;
+	}
+	return state;
+    }
+}
@@ -0,0 +1,71 @@
+/**
+ * Integer pressure-to-altitude conversion.
+ */
+
+package org.efalk.altimeter;
+
+/**
+ * Pressure to altitude with no floating point per sample, for devices
+ * without an FPU (armeabi), where each Math.pow() in
+ * {@link Barometer#ratio2a} is a long soft-float call.
+ *
+ * The altitude only depends on the ratio of pressure to the Kollsman
+ * setting. The ratio is formed in 8.24 fixed point by multiplying by
+ * a reciprocal of the setting, computed once per setting, so there's
+ * no division either. A table of altitudes, in cm, at ratio steps of
+ * 1/512 from 1/16 (about 19 km) to 1.25 (about -1.8 km) is built once
+ * from the float formula, and the result is linearly interpolated
+ * between entries with integer arithmetic.
+ *
+ * The interpolation error grows with altitude as the curve bends: it's
+ * under 2 cm below 10,000 ft, under 5 cm below 10 km and under 0.5 m
+ * at the top of the table. Outside the table the altitude is clamped.
+ */
+public final class FixedAltitude {
+    private static final int FRAC = 24;			// ratio bits
+    private static final int STEP = 15;			// ratio bits/step
+    private static final int Q_MIN = 1 << (FRAC - 4);	// 1/16
+    private static final int Q_MAX = 5 << (FRAC - 2);	// 1.25
+    private static final int[] TABLE =			// cm
+      new int[((Q_MAX - Q_MIN) >> STEP) + 1];
+
+    static {
+	for (int i = 0; i < TABLE.length; ++i) {
+	    double r = (double)(Q_MIN + ((long)i << STEP)) / (1 << FRAC);
+	    TABLE[i] = Math.round(Barometer.ratio2a((float)r) * 100);
+	}
+    }
+
+    private long recip;		// 2^40 / kollsman
+
+    /**
+     * @param kollsman  Kollsman setting, hundredths of a mB
+     */
+    public FixedAltitude(int kollsman) {
+	setKollsman(kollsman);
+    }
+
+    /**
+     * @param kollsman  Kollsman setting, hundredths of a mB
+     */
+    public void setKollsman(int kollsman) {
+	recip = (1L << 40) / kollsman;
+    }
+
+    /**
+     * Convert pressure to altitude.
+     * @param pres  pressure, hundredths of a mB
+     * @return altitude, cm
+     */
+    public int altitude(int pres) {
+	int q = (int)((pres * recip) >> (40 - FRAC));
+	if (q <= Q_MIN) return TABLE[0];
+	if (q >= Q_MAX) return TABLE[TABLE.length - 1];
+	q -= Q_MIN;
+	int i = q >> STEP;
+	int f = q & ((1 << STEP) - 1);
+	int a = TABLE[i];
+	// |TABLE[i+1] - a| < 2^14, so this fits in an int
+	return a + ((TABLE[i+1] - a) * f >> STEP);
+    }
+}
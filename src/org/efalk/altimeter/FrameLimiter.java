@@ -0,0 +1,88 @@
+/**
+ * Frame rate limit for the low-power display.
+ */
+
+package org.efalk.altimeter;
+
+/**
+ * Lets a view draw at most one frame per period. A view asks with
+ * {@link #request} whenever it has something new to show, and
+ * reports each frame with {@link #drawn}. Requests between frames are
+ * folded into one delayed redraw, which shows the latest state. With
+ * a period of 0 every request is drawn straight away.
+ *
+ * Times are in ms, normally SystemClock.uptimeMillis(). This holds no
+ * reference to the view, so the same logic can be replayed off the
+ * device.
+ *
+ * The view can also report how long each onDraw took, with
+ * {@link #drawTime}; that's kept apart for normal and low-power
+ * frames, so the two can be compared on the device. It's the time on
+ * the UI thread only, not the rendering that may follow elsewhere.
+ */
+final class FrameLimiter {
+    /** {@link #request} result: a redraw is already on its way */
+    static final long PENDING = -1;
+
+    private long period;
+    private long lastFrame = Long.MIN_VALUE / 2;
+    private boolean pending = false;
+    private int frames = 0;
+    private final int[] timed = new int[2];	// normal, low power
+    private final long[] drawNs = new long[2];
+
+    /**
+     * Set the shortest time between frames, ms, 0 for no limit.
+     */
+    void setPeriod(long ms) {
+	period = ms;
+    }
+
+    /**
+     * Ask for a frame.
+     * @param now  current time, ms
+     * @return 0 to invalidate now, PENDING if a redraw is already
+     *   coming, else the delay to post an invalidate with, ms
+     */
+    long request(long now) {
+	if (pending) return PENDING;
+	long wait = lastFrame + period - now;
+	if (wait <= 0) return 0;
+	pending = true;
+	return wait;
+    }
+
+    /**
+     * Note that a frame was drawn.
+     */
+    void drawn(long now) {
+	lastFrame = now;
+	pending = false;
+	++frames;
+    }
+
+    /** Number of frames drawn */
+    int getFrames() {
+	return frames;
+    }
+
+    /**
+     * Note how long a frame took to draw, ns. It counts as low power
+     * if there's a period set.
+     */
+    void drawTime(long ns) {
+	int m = period > 0 ? 1 : 0;
+	++timed[m];
+	drawNs[m] += ns;
+    }
+
+    /** Frames timed, and the mean draw time, in each mode */
+    String drawTimes() {
+	return String.format("normal %d at %.0f us, low power %d at " +
+	  "%.0f us", timed[0], mean(0), timed[1], mean(1));
+    }
+
+    private double mean(int m) {
+	return timed[m] > 0 ? drawNs[m] / 1e3 / timed[m] : 0;
+    }
+}
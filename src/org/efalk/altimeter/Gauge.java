@@ -42,6 +42,7 @@ class Gauge {
 
     private int arrow;		// arrow: -1=left, 0=none, 1=right
     private final Paint paint;
+    private int fg = Color.WHITE;
     private Path path = new Path();
 
     /**
@@ -137,6 +138,14 @@ class Gauge {
 	path.close();
     }
 
+    /**
+     * Set the foreground color and anti-aliasing.
+     */
+    void setStyle(int color, boolean antiAlias) {
+	fg = color;
+	paint.setAntiAlias(antiAlias);
+    }
+
     /**
      * Set value to be displayed
      */
@@ -144,6 +153,16 @@ class Gauge {
 	value = v;
     }
 
+    /**
+     * Return true if showing v instead of the current value would
+     * change a digit or scroll them by a pixel or more.
+     */
+    boolean moves(float v) {
+	if (Math.floor(v / step) != Math.floor(value / step))
+	    return true;
+	return Math.abs(th * (v - value) / step) >= 1;
+    }
+
     /**
      * Draw it.
      */
@@ -154,7 +173,7 @@ class Gauge {
 
 	paint.setColor(Color.BLACK);
 	canvas.drawPath(path, paint);
-	paint.setColor(Color.WHITE);
+	paint.setColor(fg);
 	paint.setStyle(Paint.Style.STROKE);
 	canvas.drawPath(path, paint);
 	paint.setStyle(Paint.Style.FILL);
@@ -0,0 +1,222 @@
+/**
+ * Recent altitude and VSI history for the strip chart.
+ */
+
+package org.efalk.altimeter;
+
+/**
+ * Fixed-capacity ring buffer of recent samples. Old samples are
+ * simply overwritten; nothing is allocated after construction.
+ *
+ * Every sample gets a sequence number which increases forever; the
+ * sample with sequence number s lives at index s % capacity for as
+ * long as it's still in the buffer.
+ */
+public class History {
+    private final int cap;
+    private final long[] ts;		// ns
+    private final float[] alt;		// meters
+    private final float[] vsi;		// meters/second
+    private long seq = 0;		// sequence number of next sample
+
+    public History(int capacity) {
+	cap = capacity;
+	ts = new long[cap];
+	alt = new float[cap];
+	vsi = new float[cap];
+    }
+
+    public void add(long t, float a, float v) {
+	int i = (int)(seq % cap);
+	ts[i] = t;
+	alt[i] = a;
+	vsi[i] = v;
+	++seq;
+    }
+
+    /** Sequence number of the oldest sample still in the buffer */
+    public long first() {
+	return seq > cap ? seq - cap : 0;
+    }
+
+    /** Sequence number of the next sample to be added */
+    public long end() {
+	return seq;
+    }
+
+    public long ts(long s) { return ts[(int)(s % cap)]; }
+    public float alt(long s) { return alt[(int)(s % cap)]; }
+    public float vsi(long s) { return vsi[(int)(s % cap)]; }
+
+    /**
+     * Return one series by number, 0 = altitude, 1 = vsi
+     */
+    float value(int series, long s) {
+	return series == 0 ? alt[(int)(s % cap)] : vsi[(int)(s % cap)];
+    }
+
+
+    /**
+     * Incremental largest-triangle-three-buckets decimation of one
+     * series of a History down to about one point per pixel.
+     *
+     * Buckets are anchored to absolute time (bucket = ts / width), so
+     * a bucket's chosen point never changes once it has been picked,
+     * and the picture doesn't shimmer as it scrolls. A bucket is picked
+     * when the bucket after it closes, since LTTB needs the average
+     * of the following bucket. Each raw sample is therefore examined
+     * a bounded number of times, and the cost of a frame depends only
+     * on the number of buckets, i.e. the width of the view.
+     */
+    public static class Decimator {
+	private final History h;
+	private final int series;
+	private long bucketNs = 1;
+	private int nb = 0;			// buckets in ring
+	private int cur = -1;			// index of current bucket
+	private int count = 0;			// buckets in use
+
+	// Per-bucket ring
+	private long[] id = new long[0];
+	private long[] seq0 = new long[0];	// first sample
+	private int[] n = new int[0];
+	private double[] sumDt = new double[0];	// ns from bucket start
+	private double[] sumV = new double[0];
+	private long[] avgT = new long[0];
+	private float[] avgV = new float[0];
+	private long[] selT = new long[0];
+	private float[] selV = new float[0];
+	private boolean[] sel = new boolean[0];
+
+	/**
+	 * @param series  0 = altitude, 1 = vsi
+	 */
+	public Decimator(History h, int series) {
+	    this.h = h;
+	    this.series = series;
+	}
+
+	/**
+	 * Set the resolution and rebuild from the raw samples still
+	 * in the history. Called when the view changes size.
+	 * @param buckets  number of buckets, normally the width in pixels
+	 * @param window   time span, ns
+	 */
+	public void setResolution(int buckets, long window) {
+	    if (buckets < 1) buckets = 1;
+	    bucketNs = window / buckets;
+	    if (bucketNs < 1) bucketNs = 1;
+	    nb = buckets + 4;
+	    id = new long[nb];
+	    seq0 = new long[nb];
+	    n = new int[nb];
+	    sumDt = new double[nb];
+	    sumV = new double[nb];
+	    avgT = new long[nb];
+	    avgV = new float[nb];
+	    selT = new long[nb];
+	    selV = new float[nb];
+	    sel = new boolean[nb];
+	    cur = -1;
+	    count = 0;
+	    for (long s = h.first(); s < h.end(); ++s)
+		add(s);
+	}
+
+	/**
+	 * Account for a sample which has just been added to the history.
+	 */
+	public void add(long s) {
+	    if (nb == 0) return;
+	    long t = h.ts(s);
+	    float v = h.value(series, s);
+	    long bid = t / bucketNs;
+	    if (cur < 0 || bid != id[cur]) {
+		if (cur >= 0) close();
+		cur = (cur + 1) % nb;
+		if (count < nb) ++count;
+		id[cur] = bid;
+		seq0[cur] = s;
+		n[cur] = 0;
+		sumDt[cur] = sumV[cur] = 0;
+		sel[cur] = false;
+	    }
+	    ++n[cur];
+	    sumDt[cur] += t - bid * bucketNs;
+	    sumV[cur] += v;
+	}
+
+	/**
+	 * Close the current bucket and pick the point of the one
+	 * before it.
+	 */
+	private void close() {
+	    avgT[cur] = id[cur] * bucketNs + (long)(sumDt[cur] / n[cur]);
+	    avgV[cur] = (float)(sumV[cur] / n[cur]);
+	    if (count < 2) {
+		// First bucket ever: LTTB always keeps the first point
+		selT[cur] = h.ts(seq0[cur]);
+		selV[cur] = h.value(series, seq0[cur]);
+		sel[cur] = true;
+		return;
+	    }
+	    int b = (cur + nb - 1) % nb;
+	    if (sel[b]) return;
+	    int a = (b + nb - 1) % nb;
+	    long ta = selT[a];
+	    float va = selV[a];
+	    if (!sel[a]) {
+		ta = avgT[b];
+		va = avgV[b];
+	    }
+	    float ctx = (avgT[cur] - ta) * 1e-9f;
+	    float cv = avgV[cur] - va;
+	    long s0 = seq0[b];
+	    if (s0 < h.first()) s0 = h.first();
+	    long s1 = seq0[b] + n[b];
+	    float best = -1;
+	    for (long s = s0; s < s1; ++s) {
+		float bt = (h.ts(s) - ta) * 1e-9f;
+		float bv = h.value(series, s) - va;
+		float area = ctx * bv - bt * cv;
+		if (area < 0) area = -area;
+		if (area > best) {
+		    best = area;
+		    selT[b] = h.ts(s);
+		    selV[b] = h.value(series, s);
+		}
+	    }
+	    sel[b] = best >= 0;
+	}
+
+	/**
+	 * Copy the decimated series, oldest first, into the given arrays.
+	 * The still-open buckets are represented by their average and
+	 * by the latest sample. Returns the number of points.
+	 * Arrays must have room for {@link #maxPoints()} points.
+	 */
+	public int points(long[] t, float[] v) {
+	    int np = 0;
+	    for (int i = count - 1; i >= 0; --i) {
+		int b = (cur + nb - i) % nb;
+		if (sel[b]) {
+		    t[np] = selT[b];
+		    v[np++] = selV[b];
+		} else if (b != cur && n[b] > 0) {
+		    t[np] = avgT[b];
+		    v[np++] = avgV[b];
+		}
+	    }
+	    if (h.end() > h.first()) {
+		long s = h.end() - 1;
+		t[np] = h.ts(s);
+		v[np++] = h.value(series, s);
+	    }
+	    return np;
+	}
+
+	public int maxPoints() {
+	    return nb + 1;
+	}
+    }
+}
@@ -0,0 +1,254 @@
+package org.efalk.altimeter;
+
+import android.app.Activity;
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.os.SystemClock;
+import android.util.AttributeSet;
+import android.util.DisplayMetrics;
+import android.view.View;
+
+
+/**
+ * Strip chart of the last few minutes of altitude and VSI. Time runs
+ * left to right, with "now" at the right edge. Altitude is drawn in
+ * white, scaled to fill the view; VSI is drawn in green around a
+ * center zero line.
+ *
+ * The raw samples are kept in a {@link History} (owned by the activity
+ * so it survives rotation) and decimated to the view width as they
+ * arrive, so onDraw only ever handles about one point per pixel.
+ * Nothing is allocated while drawing.
+ *
+ * Samples closer together than window/CAPACITY are dropped on the way
+ * in, so however fast the sensor runs, the buffer always holds the
+ * whole chart: at 50 Hz a 10 minute chart keeps every other sample.
+ *
+ * In low-power mode, as for the dial, lines are drawn without
+ * anti-aliasing and at most one frame is drawn per LOW_POWER_PERIOD;
+ * at a pixel per second or so, the chart doesn't need more.
+ */
+public class HistoryView extends View {
+
+    private static final int CAPACITY = 16384;	// samples in the chart
+    private static final float MIN_ALT_SPAN = 30;	// meters
+    private static final float MIN_VSI_SPAN = 2.5f;	// meters/second
+    private static final long LOW_POWER_PERIOD = 1000;	// ms between frames
+
+    private Paint paint;
+    private DisplayMetrics metrics;
+    private int wid, hgt;
+    private int altUnits = Altimeter.UNITS_FT;
+    private long window = 5 * 60 * 1000000000L;	// ns
+    private long spacing = window / CAPACITY;	// ns between samples
+    private History history;
+    private History.Decimator altDec, vsiDec;
+    private final FrameLimiter limiter = new FrameLimiter();
+
+    // Scratch space for onDraw, sized by onSizeChanged()
+    private long[] pt = new long[0];
+    private float[] pv = new float[0];
+    private float[] lines = new float[0];
+    private final char[] lbl = new char[12];
+
+    public HistoryView(Context context) {
+	super(context);
+	init(context);
+    }
+
+    public HistoryView(Context context, AttributeSet attrs) {
+	super(context, attrs);
+	init(context);
+    }
+
+    private void init(Context context) {
+	metrics = new DisplayMetrics();
+	((Activity)context).getWindowManager()
+	    .getDefaultDisplay().getMetrics(metrics);
+	paint = new Paint();
+	paint.setAntiAlias(true);
+	paint.setTextSize(paint.getTextSize() * metrics.scaledDensity);
+	setHistory(new History(CAPACITY));
+    }
+
+    /**
+     * Attach to a (possibly already populated) history buffer.
+     */
+    public void setHistory(History h) {
+	history = h;
+	altDec = new History.Decimator(h, 0);
+	vsiDec = new History.Decimator(h, 1);
+	resize();
+    }
+
+    public History getHistory() {
+	return history;
+    }
+
+    public void setAltUnits(int units) {
+	altUnits = units;
+	invalidate();
+    }
+
+    /**
+     * Low-power display: no anti-aliasing, and no more than one frame
+     * per LOW_POWER_PERIOD.
+     */
+    public void setLowPower(boolean on) {
+	paint.setAntiAlias(!on);
+	limiter.setPeriod(on ? LOW_POWER_PERIOD : 0);
+	invalidate();
+    }
+
+    /** Number of frames drawn since the view was created */
+    public int getFramesDrawn() {
+	return limiter.getFrames();
+    }
+
+    /** Frames drawn and mean onDraw time, normal and low power */
+    public String getDrawTimes() {
+	return limiter.drawTimes();
+    }
+
+    /**
+     * Set the time span of the chart, minutes.
+     */
+    public void setMinutes(int minutes) {
+	long w = minutes * 60 * 1000000000L;
+	if (w != window) {
+	    window = w;
+	    spacing = w / CAPACITY;
+	    resize();
+	}
+    }
+
+    /**
+     * Add a sample.
+     * @param ts   timestamp, ns
+     * @param alt  altitude, meters
+     * @param vsi  vertical speed, meters/second
+     */
+    public void add(long ts, float alt, float vsi) {
+	long e = history.end();
+	long d = e > 0 ? ts - history.ts(e - 1) : spacing;
+	if (d >= 0 && d < spacing) return;
+	history.add(ts, alt, vsi);
+	long s = history.end() - 1;
+	altDec.add(s);
+	vsiDec.add(s);
+	long wait = limiter.request(SystemClock.uptimeMillis());
+	if (wait == 0) invalidate();
+	else if (wait > 0) postInvalidateDelayed(wait);
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int ow, int oh) {
+	wid = w;
+	hgt = h;
+	resize();
+    }
+
+    private void resize() {
+	if (wid <= 0) return;
+	altDec.setResolution(wid, window);
+	vsiDec.setResolution(wid, window);
+	int n = altDec.maxPoints();
+	pt = new long[n];
+	pv = new float[n];
+	lines = new float[n * 4];
+	invalidate();
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+	long t0 = System.nanoTime();
+	super.onDraw(canvas);
+	limiter.drawn(SystemClock.uptimeMillis());
+	drawChart(canvas);
+	limiter.drawTime(System.nanoTime() - t0);
+    }
+
+    private void drawChart(Canvas canvas) {
+	if (wid <= 0 || history.end() == 0) return;
+	long now = history.ts(history.end() - 1);
+
+	// VSI, centered on zero
+	paint.setColor(Color.DKGRAY);
+	canvas.drawLine(0, hgt/2, wid, hgt/2, paint);
+	int n = vsiDec.points(pt, pv);
+	float span = MIN_VSI_SPAN;
+	for (int i = 0; i < n; ++i) {
+	    float v = pv[i] < 0 ? -pv[i] : pv[i];
+	    if (v > span) span = v;
+	}
+	drawSeries(canvas, n, now, -span, span, Color.GREEN);
+
+	// Altitude, scaled to fit
+	n = altDec.points(pt, pv);
+	float lo = Float.MAX_VALUE, hi = -Float.MAX_VALUE;
+	for (int i = 0; i < n; ++i) {
+	    if (pv[i] < lo) lo = pv[i];
+	    if (pv[i] > hi) hi = pv[i];
+	}
+	if (hi - lo < MIN_ALT_SPAN) {
+	    float c = (hi + lo) / 2;
+	    lo = c - MIN_ALT_SPAN/2;
+	    hi = c + MIN_ALT_SPAN/2;
+	}
+	drawSeries(canvas, n, now, lo, hi, Color.WHITE);
+
+	// Altitude scale
+	float conv = altUnits == Altimeter.UNITS_FT ? Altimeter.METER_FT : 1;
+	float pad = 2 * metrics.scaledDensity;
+	paint.setColor(Color.LTGRAY);
+	int len = format(Math.round(hi * conv));
+	canvas.drawText(lbl, 0, len, pad, pad - paint.ascent(), paint);
+	len = format(Math.round(lo * conv));
+	canvas.drawText(lbl, 0, len, pad, hgt - pad - paint.descent(), paint);
+    }
+
+    /**
+     * Draw the first n points of pt/pv, mapping lo..hi to the full
+     * height of the view.
+     */
+    private void drawSeries(Canvas canvas, int n, long now,
+	float lo, float hi, int color)
+    {
+	float xs = (float)wid / window;
+	float ys = hgt / (hi - lo);
+	int k = 0;
+	float x0 = 0, y0 = 0;
+	for (int i = 0; i < n; ++i) {
+	    float x = wid - (now - pt[i]) * xs;
+	    float y = hgt - (pv[i] - lo) * ys;
+	    if (i > 0 && x >= 0) {
+		lines[k++] = x0; lines[k++] = y0;
+		lines[k++] = x; lines[k++] = y;
+	    }
+	    x0 = x;
+	    y0 = y;
+	}
+	paint.setColor(color);
+	canvas.drawLines(lines, 0, k, paint);
+    }
+
+    /**
+     * Format an integer into lbl[] without allocating. Returns length.
+     */
+    private int format(int v) {
+	int len = 0;
+	boolean neg = v < 0;
+	if (neg) v = -v;
+	do {
+	    lbl[len++] = (char)('0' + v % 10);
+	    v /= 10;
+	} while (v > 0);
+	if (neg) lbl[len++] = '-';
+	for (int i = 0, j = len-1; i < j; ++i, --j) {
+	    char c = lbl[i]; lbl[i] = lbl[j]; lbl[j] = c;
+	}
+	return len;
+    }
+}
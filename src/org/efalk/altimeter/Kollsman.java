@@ -9,14 +9,12 @@ import android.app.Activity;
 import android.content.ActivityNotFoundException;
 import android.content.Context;
 import android.content.Intent;
-import android.content.SharedPreferences;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.Region;
 import android.os.Bundle;
 import android.os.Handler;
-import android.preference.PreferenceManager;
 import android.util.AttributeSet;
 import android.util.DisplayMetrics;
 import android.view.MotionEvent;
@@ -57,6 +55,7 @@ public class Kollsman extends Activity
     public static void launch(Activity ctx, int resultCode,
 	    int initial, int barom, float convert)
     {
+	StartupTrace.begin();
 	Intent intent = new Intent(ctx, Kollsman.class);
 	intent.putExtra("initial", initial);
 	intent.putExtra("barom", barom);
@@ -72,8 +71,6 @@ public class Kollsman extends Activity
     @Override
     public void onCreate(Bundle savedState)
     {
-	SharedPreferences sp;
-
 	super.onCreate(savedState);
 
 	// Restore settings from previous invocation.
@@ -83,9 +80,7 @@ public class Kollsman extends Activity
 	else if( savedState != null )
 	    restoreInstanceState(savedState);
 	else {
-	    sp = PreferenceManager.getDefaultSharedPreferences(this);
-	    if( sp != null )
-		recallPreferences(sp);
+	    recallPreferences();
 	    Intent intent = getIntent();
 	    if( intent != null ) {
 		value = intent.getIntExtra("initial", 1013);
@@ -96,15 +91,13 @@ public class Kollsman extends Activity
 	    }
 	}
 
+	Globals.get(this).flingEnabled = flingEnabled;
 	setContentView(R.layout.kollsman);
+	StartupTrace.mark("content");
 
 	kview = (KollsmanView)findViewById(R.id.kview);
 	okButton = (Button)findViewById(R.id.ok);
-
-	// Make a guess as to the upper and lower limits
-	int lower = barom > 2000 ? 2700 : 900;
-	int upper = barom > 2000 ? 3300 : 1150;
-	kview.setParams(value, lower, upper, barom, convert);
+	kview.setParams(value, barom, convert);
 
 	okButton.setOnClickListener(new Button.OnClickListener() {
 	    public void onClick(View v) {
@@ -120,7 +113,7 @@ public class Kollsman extends Activity
 
     @Override
     public Object onRetainNonConfigurationInstance() {
-	value = kview.p;
+	value = kview.getValue();
 	return this;
     }
 
@@ -140,7 +133,7 @@ public class Kollsman extends Activity
      */
     @Override
     protected void onSaveInstanceState(Bundle state) {
-	value = kview.p;
+	value = kview.getValue();
 	state.putInt("value", value);
 	state.putInt("barom", barom);
 	state.putFloat("convert", convert);
@@ -161,9 +154,10 @@ public class Kollsman extends Activity
      * Load preferences when app starts up. User preferences are loaded
      * in their own function.
      */
-    protected void recallPreferences(SharedPreferences sp)
+    protected void recallPreferences()
     {
-	flingEnabled = sp.getBoolean("flingEnabled", flingEnabled);
+	// Already in memory; don't go to the disk for it
+	flingEnabled = StateStore.get(this).getFlingEnabled();
     }
 
 
@@ -172,17 +166,27 @@ public class Kollsman extends Activity
 
     private void sendResult() {
 	Intent intent = new Intent();
-	intent.putExtra("value", kview.p);
+	intent.putExtra("value", kview.getValue());
 	setResult(RESULT_OK, intent);
     }
 
     public static class KollsmanView extends View
 	implements GestureDetector.OnGestureListener
     {
+	private static final float HYSTERESIS = .75f;	// display units
+	// Units callers use, per mB: mB, "Hg times 100, Pa
+	private static final float[] SCALES = { 1, 100 * Altimeter.HG_MB, 100 };
+	// Widest plausible range of settings, mB. The records are 870
+	// and 1084.
+	private static final float LOWEST = 850, HIGHEST = 1100;
+	private static final int MAX_ROWS = 3000;
+	private static final int MARGIN = 8;	// cached rows off screen
 	private Paint paint;
 	private int wid, hgt;
+	// Positions on the wheel are rows; row i is the value i*step.
+	private int step = 1;
 	private int p = 1013, p0 = 900, p1 = 1200;
-	private int barom = 1013;
+	private float barom = 1013;
 	private float value = 1013;	// float version of p, for scrolling
 	private float aconv = 1;
 	private float th, tspace;
@@ -195,6 +199,22 @@ public class Kollsman extends Activity
 	private int settleTime = 250;	// ms
 	private Globals g;
 	private DisplayMetrics metrics;
+	private boolean drawn = false;
+	private OnValueChangeListener listener;
+	// Labels for the rows on screen, plus MARGIN each side, in a
+	// ring indexed by row & mask, so the cost doesn't depend on how
+	// wide the range is. A row is only recomputed when it's drawn
+	// and gen has moved on, and the altitude only re-formatted when
+	// the number changes.
+	private int mask;
+	private int[] rowKey;		// which row is in each slot
+	private String[] presLbl;
+	private int[] rowAlt;
+	private String[] rowLbl;
+	private float[] rowWid;
+	private int[] rowGen;
+	private int gen = 1;
+	private int top = 0, bot = -1;	// rows drawn last time
 	Handler animation;
 	long animate_t0, animate_t1;
 	float ady, ady0;
@@ -234,6 +254,24 @@ public class Kollsman extends Activity
 
 	    margin = 16 * metrics.scaledDensity;	// from bg drawable
 	    pad = 2 * metrics.scaledDensity;
+	    allocRows(64);
+	}
+
+	/**
+	 * Size the row cache for at least n rows.
+	 */
+	private void allocRows(int n) {
+	    int size = 16;
+	    while (size < n) size <<= 1;
+	    if (rowKey != null && rowKey.length == size) return;
+	    mask = size - 1;
+	    rowKey = new int[size];
+	    presLbl = new String[size];
+	    rowAlt = new int[size];
+	    rowLbl = new String[size];
+	    rowWid = new float[size];
+	    rowGen = new int[size];
+	    java.util.Arrays.fill(rowKey, Integer.MIN_VALUE);
 	}
 
 	/**
@@ -244,7 +282,9 @@ public class Kollsman extends Activity
 	 * @param aconv  conversion factor meters -> whatever
 	 *
 	 * We use integer values for pressure and altitude to avoid the
-	 * need for expensive formatting.
+	 * need for expensive formatting. If the range is very wide, as
+	 * for Pa, the wheel steps by a power of ten to keep it under
+	 * MAX_ROWS rows.
 	 */
 	public void setParams(int p, int p0, int p1, int barom, float aconv)
 	{
@@ -255,12 +295,99 @@ public class Kollsman extends Activity
 	    int p00 = (int)Barometer.a2sealevel(barom, -380);
 	    if (p0 < p00) p0 = p00;
 	    if (p < p00) p = p00;
-	    this.p = p;
-	    this.value = p;
-	    this.p0 = p0;
-	    this.p1 = p1;
+	    step = 1;
+	    while ((p1 - p0) / step > MAX_ROWS) step *= 10;
+	    this.p = Math.round((float)p / step);
+	    this.value = this.p;
+	    this.p0 = (p0 + step - 1) / step;
+	    this.p1 = p1 / step;
 	    this.barom = barom;
 	    this.aconv = 1f/aconv;
+	    java.util.Arrays.fill(rowKey, Integer.MIN_VALUE);
+	    ++gen;
+	    top = 0;
+	    bot = -1;
+	    drawn = false;		// time the next open
+	    invalidate();
+	}
+
+	/**
+	 * Update the current barometer reading, in the same units as
+	 * setParams(), from a live sensor. The rows on screen are
+	 * recomputed now, and the view only redrawn if one of them
+	 * changes; the rest wait until they're scrolled into view.
+	 */
+	public void setBarom(float barom) {
+	    if (barom == this.barom) return;
+	    this.barom = barom;
+	    ++gen;
+	    boolean changed = false;
+	    for (int i = top; i <= bot; ++i)
+		if (row(i)) changed = true;
+	    if (changed) invalidate();
+	}
+
+	/**
+	 * Bring row i up to date.
+	 * @return true if the displayed altitude changed
+	 */
+	private boolean row(int i) {
+	    int r = i & mask;
+	    if (rowKey[r] != i) {
+		rowKey[r] = i;
+		presLbl[r] = Integer.toString(i * step);
+		rowLbl[r] = null;
+		rowGen[r] = 0;
+	    }
+	    if (rowGen[r] == gen) return false;
+	    rowGen[r] = gen;
+	    float a = Barometer.p2a(i * step, barom) * aconv;
+	    // A little hysteresis, so a number sitting on a rounding
+	    // boundary doesn't flicker with every reading.
+	    if (rowLbl[r] != null && Math.abs(a - rowAlt[r]) < HYSTERESIS)
+		return false;
+	    rowAlt[r] = Math.round(a);
+	    rowLbl[r] = Integer.toString(rowAlt[r]);
+	    rowWid[r] = paint.measureText(rowLbl[r]);
+	    return true;
+	}
+
+	/**
+	 * As above, with the limits worked out from the units, which are
+	 * guessed from the current setting p: mB, "Hg times 100 or Pa,
+	 * or failing those, any units in proportion to mB.
+	 */
+	public void setParams(int p, int barom, float aconv)
+	{
+	    float scale = p / 1013.25f;
+	    for (int i = 0; i < SCALES.length; ++i) {
+		if (Math.abs(scale / SCALES[i] - 1) < .15f) {
+		    scale = SCALES[i];
+		    break;
+		}
+	    }
+	    setParams(p, (int)(LOWEST * scale), (int)(HIGHEST * scale + 1),
+	      barom, aconv);
+	}
+
+	/**
+	 * Called as the value changes, while scrolling as well as when
+	 * it settles.
+	 */
+	public interface OnValueChangeListener {
+	    /**
+	     * @param value  current value, possibly between steps
+	     */
+	    void onValueChange(float value);
+	}
+
+	public void setOnValueChangeListener(OnValueChangeListener l) {
+	    listener = l;
+	}
+
+	/** Return the value the wheel has settled on. */
+	public int getValue() {
+	    return p * step;
 	}
 
 	public void stopAnimations() {
@@ -273,7 +400,8 @@ public class Kollsman extends Activity
 	onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
 	    int w = getSuggestedMinimumWidth();
 	    int h = getSuggestedMinimumHeight();
-	    int minWid = (int)paint.measureText("9999      -99999");
+	    int minWid = (int)paint.measureText(
+	      Integer.toString(p1 * step) + "      -99999");
 	    minWid += 16 * metrics.density * 2;
 	    w = getDefaultSize(w, widthMeasureSpec);
 	    h = getDefaultSize(h, heightMeasureSpec);
@@ -294,6 +422,7 @@ public class Kollsman extends Activity
 	{
 	    wid = w;
 	    hgt = h;
+	    allocRows((int)(h / tspace) + 2 + 2 * MARGIN);
 	}
 
 	@Override
@@ -312,19 +441,25 @@ public class Kollsman extends Activity
 	    int pbot = (int)(value + (hgt/2 / tspace));
 	    if (ptop < p0) ptop = p0;
 	    if (pbot > p1) pbot = p1;
+	    top = ptop;
+	    bot = pbot;
 	    for (int i = ptop; i <= pbot; ++i) {
 		float y = ty + (i-value) * tspace;
-		canvas.drawText(""+i, tx, y, paint);
-		float alt = Math.round(Barometer.p2a(i, barom) * aconv);
-		String a = ""+(int)alt;
-		float awid = paint.measureText(a);
-		canvas.drawText(a, wid - margin - pad - awid, y, paint);
+		row(i);
+		int r = i & mask;
+		canvas.drawText(presLbl[r], tx, y, paint);
+		canvas.drawText(rowLbl[r], wid - margin - pad - rowWid[r], y,
+		  paint);
 	    }
 
 	    // The hairline
 	    canvas.clipRect(0, 0, wid, hgt, Region.Op.REPLACE);
 	    paint.setColor(Color.RED);
 	    canvas.drawLine(0, hgt/2, wid-1, hgt/2, paint);
+	    if (!drawn) {
+		drawn = true;
+		StartupTrace.end("kollsman open");
+	    }
 	}
 
 	@Override
@@ -424,6 +559,7 @@ public class Kollsman extends Activity
 		    if( now > animate_t0 + settleTime ) {
 			settling = false;
 			value = p;
+			changed();
 			invalidate();
 		    } else {
 			doScroll(-ady*dt);
@@ -446,9 +582,14 @@ public class Kollsman extends Activity
 	    }
 	    value += dy / tspace;
 	    scrolling = true;
+	    changed();
 	    invalidate();
 	}
 
+	private void changed() {
+	    if (listener != null) listener.onValueChange(value * step);
+	}
+
 	/**
 	 * Scrolling finished, settle to the nearest integer value.
 	 */
@@ -0,0 +1,94 @@
+/**
+ * Kollsman setting picker inside the main window.
+ */
+
+package org.efalk.altimeter;
+
+import android.app.Activity;
+import android.view.View;
+import android.widget.Button;
+
+/**
+ * The Kollsman wheel as a panel over the history view, rather than
+ * the {@link Kollsman} activity. It opens without a new window or a
+ * trip through the activity manager, and the main activity isn't
+ * paused, so the service stays bound and readings keep coming in;
+ * the owner can preview the altitude on the dial as the wheel turns.
+ *
+ * Values are in the same units as for {@link Kollsman#launch}.
+ */
+class KollsmanPicker {
+
+    interface Listener {
+	/** The wheel has moved; value may be between steps */
+	void onKollsmanPreview(float value);
+	/** Ok was pressed */
+	void onKollsmanPicked(int value);
+	/** Cancelled; put the old setting back */
+	void onKollsmanCancelled();
+    }
+
+    private final View panel;
+    private final Kollsman.KollsmanView kview;
+    private final Listener listener;
+
+    /**
+     * @param a  activity whose layout includes R.layout.kollsman_picker
+     */
+    KollsmanPicker(Activity a, Listener l) {
+	listener = l;
+	panel = a.findViewById(R.id.kpicker);
+	kview = (Kollsman.KollsmanView) a.findViewById(R.id.kpview);
+	kview.setOnValueChangeListener(
+	  new Kollsman.KollsmanView.OnValueChangeListener() {
+	    public void onValueChange(float value) {
+		listener.onKollsmanPreview(value);
+	    }
+	});
+	((Button) a.findViewById(R.id.kpok)).setOnClickListener(
+	  new View.OnClickListener() {
+	    public void onClick(View v) {
+		hide();
+		listener.onKollsmanPicked(kview.getValue());
+	    }
+	});
+	((Button) a.findViewById(R.id.kpcancel)).setOnClickListener(
+	  new View.OnClickListener() {
+	    public void onClick(View v) {
+		cancel();
+	    }
+	});
+    }
+
+    /**
+     * Open the picker; see {@link Kollsman#launch} for the arguments.
+     */
+    void show(int initial, int barom, float convert) {
+	StartupTrace.begin();
+	kview.setParams(initial, barom, convert);
+	panel.setVisibility(View.VISIBLE);
+    }
+
+    /**
+     * Feed a live barometer reading to the altitude column.
+     */
+    void setBarom(float barom) {
+	kview.setBarom(barom);
+    }
+
+    boolean isShowing() {
+	return panel.getVisibility() == View.VISIBLE;
+    }
+
+    /** Close without changing anything. */
+    void cancel() {
+	if (!isShowing()) return;
+	hide();
+	listener.onKollsmanCancelled();
+    }
+
+    private void hide() {
+	kview.stopAnimations();
+	panel.setVisibility(View.GONE);
+    }
+}
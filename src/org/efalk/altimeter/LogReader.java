@@ -0,0 +1,80 @@
+/**
+ * Reads back a session written by Recorder.
+ */
+
+package org.efalk.altimeter;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Streaming decoder for a raw session log. Samples are read one at a
+ * time into the public fields, so reading a session of any length
+ * uses a fixed amount of memory:
+ *
+ *   LogReader rdr = new LogReader(file);
+ *   while (rdr.next()) {
+ *       ... rdr.ts, rdr.pres, rdr.alt, rdr.vsi ...
+ *   }
+ *   rdr.close();
+ */
+public class LogReader {
+    private final DataInputStream in;
+
+    /** Session start, ms since the epoch */
+    public final long start;
+    /** Kollsman setting at start of session, mB */
+    public final float kollsman;
+
+    // Current sample
+    public long ts;		// ns
+    public float pres;		// mB
+    public float alt;		// meters
+    public float vsi;		// meters/second
+
+    public LogReader(File file) throws IOException {
+	this(new FileInputStream(file));
+    }
+
+    public LogReader(InputStream is) throws IOException {
+	in = new DataInputStream(new BufferedInputStream(is, 8192));
+	try {
+	    if (in.readInt() != Recorder.MAGIC)
+		throw new IOException("not an altimeter log");
+	    int version = in.readInt();
+	    if (version != Recorder.VERSION)
+		throw new IOException("unsupported log version " + version);
+	    start = in.readLong();
+	    kollsman = in.readFloat();
+	} catch (IOException e) {
+	    in.close();
+	    throw e;
+	}
+    }
+
+    /**
+     * Advance to the next sample. Returns false at end of file. A
+     * partial record at the end, e.g. from a session that was cut
+     * short, is treated as end of file.
+     */
+    public boolean next() throws IOException {
+	try {
+	    ts = in.readLong();
+	    pres = in.readFloat();
+	    alt = in.readFloat();
+	    vsi = in.readFloat();
+	    return true;
+	} catch (EOFException e) {
+	    return false;
+	}
+    }
+
+    public void close() throws IOException {
+	in.close();
+    }
+}
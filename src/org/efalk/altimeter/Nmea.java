@@ -0,0 +1,104 @@
+/**
+ * NMEA sentences for flight software.
+ */
+
+package org.efalk.altimeter;
+
+/**
+ * Formats baro altitude sentences straight into a byte array, with
+ * no Strings and no allocation, so they can be built at any rate:
+ *
+ *   $PGRMZ,2345,f,3*2B		Garmin: pressure altitude, feet
+ *   $LXWP0,N,,714.8,1.25,,,,,,,,*51	LX: pressure altitude, m; vario, m/s
+ *
+ * Both take the ISA pressure altitude (Kollsman 1013.25), as the
+ * receiving software expects; it applies its own QNH. Each method
+ * returns the length written, including the checksum and CR LF.
+ * MAX_LENGTH bytes is always enough room.
+ */
+final class Nmea {
+    static final int MAX_LENGTH = 82;		// per NMEA 0183
+
+    private static final byte[] PGRMZ = ascii("$PGRMZ,");
+    private static final byte[] FEET = ascii(",f,3");
+    private static final byte[] LXWP0 = ascii("$LXWP0,N,,");
+    private static final byte[] LX_TAIL = ascii(",,,,,,,,");
+    private static final byte[] HEX = ascii("0123456789ABCDEF");
+
+    private Nmea() { }
+
+    private static byte[] ascii(String s) {
+	byte[] b = new byte[s.length()];
+	for (int i = 0; i < b.length; ++i) b[i] = (byte)s.charAt(i);
+	return b;
+    }
+
+    /**
+     * @param alt  pressure altitude, meters
+     */
+    static int pgrmz(byte[] b, int off, float alt) {
+	int i = put(b, off, PGRMZ);
+	i = number(b, i, alt * Altimeter.METER_FT, 0);
+	i = put(b, i, FEET);
+	return end(b, off, i) - off;
+    }
+
+    /**
+     * @param alt  pressure altitude, meters
+     * @param vsi  meters/second
+     */
+    static int lxwp0(byte[] b, int off, float alt, float vsi) {
+	int i = put(b, off, LXWP0);
+	i = number(b, i, alt, 1);
+	b[i++] = ',';
+	i = number(b, i, vsi, 2);
+	i = put(b, i, LX_TAIL);
+	return end(b, off, i) - off;
+    }
+
+    private static int put(byte[] b, int i, byte[] s) {
+	System.arraycopy(s, 0, b, i, s.length);
+	return i + s.length;
+    }
+
+    /**
+     * Write v rounded to the given number of decimals.
+     */
+    private static int number(byte[] b, int i, float v, int decimals) {
+	if (Float.isNaN(v) || Float.isInfinite(v)) return i;	// empty
+	long scale = decimals == 0 ? 1 : decimals == 1 ? 10 : 100;
+	long n = Math.round(v * (double)scale);
+	if (n < 0) {
+	    b[i++] = '-';
+	    n = -n;
+	}
+	// Digits backwards, then reverse
+	int start = i;
+	int d = 0;
+	do {
+	    if (d++ == decimals && decimals > 0) b[i++] = '.';
+	    b[i++] = (byte)('0' + n % 10);
+	    n /= 10;
+	} while (n > 0 || d <= decimals);
+	for (int j = i - 1; start < j; ++start, --j) {
+	    byte t = b[start];
+	    b[start] = b[j];
+	    b[j] = t;
+	}
+	return i;
+    }
+
+    /**
+     * Append the checksum of everything after the '$', and CR LF.
+     */
+    private static int end(byte[] b, int off, int i) {
+	int sum = 0;
+	for (int j = off + 1; j < i; ++j) sum ^= b[j];
+	b[i++] = '*';
+	b[i++] = HEX[(sum >> 4) & 0xf];
+	b[i++] = HEX[sum & 0xf];
+	b[i++] = '\r';
+	b[i++] = '\n';
+	return i;
+    }
+}
@@ -0,0 +1,258 @@
+/**
+ * NMEA altitude output for flight software on the same device.
+ */
+
+package org.efalk.altimeter;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+
+/**
+ * Sends $PGRMZ and $LXWP0 sentences (see {@link Nmea}) at a fixed
+ * rate, to any app connected to our TCP port on the loopback address
+ * and as UDP datagrams to the same port number there, which is how
+ * flight bags and loggers usually take NMEA from other apps.
+ *
+ * Everything runs on one thread with non-blocking channels and a
+ * Selector, so a stalled client can't hold anything up: each client
+ * has an OUT_BUF byte queue, and if a sentence doesn't fit, that
+ * client misses it. Sentences are built once per tick into a reused
+ * buffer and copied to each client. The sensor thread just stores
+ * the latest filtered altitude in volatiles.
+ */
+class NmeaOutput implements Runnable {
+    private static final String TAG = AltimeterActivity.TAG;
+    static final int DEFAULT_PORT = 10110;	// NMEA over IP
+    static final int DEFAULT_RATE = 2;		// Hz
+    private static final int MAX_CLIENTS = 8;
+    private static final int OUT_BUF = 1024;	// bytes per client
+
+    // From the sensor thread
+    private volatile float alt = Float.NaN;	// meters, per kollsman
+    private volatile float kollsman = 1013.25f;
+    private volatile float vsi = 0;
+
+    private volatile boolean running = false;
+    private Thread thread;
+    private Selector selector;
+    private int port = DEFAULT_PORT;
+    private long period = 1000 / DEFAULT_RATE;	// ms
+
+    // Output thread only
+    private final byte[] sentences = new byte[2 * Nmea.MAX_LENGTH];
+    private final ByteBuffer packet = ByteBuffer.wrap(sentences);
+    private final ByteBuffer scratch = ByteBuffer.allocate(256);
+    private int nClients = 0;
+    private long dropped = 0;
+
+    /**
+     * Latest reading. Sensor thread; cheap.
+     * @param alt       filtered altitude, meters
+     * @param kollsman  the setting it's relative to, mB
+     * @param vsi       meters/second
+     */
+    void set(float alt, float kollsman, float vsi) {
+	this.kollsman = kollsman;
+	this.vsi = vsi;
+	this.alt = alt;
+    }
+
+    /**
+     * Start sending, or restart with new settings.
+     */
+    synchronized void start(int port, int rate) {
+	long p = 1000 / Math.max(1, Math.min(rate, 10));
+	if (running && port == this.port && p == period) return;
+	stop();
+	this.port = port;
+	period = p;
+	running = true;
+	thread = new Thread(this, "nmea");
+	thread.start();
+    }
+
+    synchronized void stop() {
+	if (!running) return;
+	running = false;
+	Selector s = selector;
+	if (s != null) s.wakeup();
+	try {
+	    thread.join();
+	} catch (InterruptedException e) { }
+	thread = null;
+    }
+
+    public void run() {
+	Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+	Log.d(TAG, "NMEA output on port " + port);
+	try {
+	    serve();
+	} catch (IOException e) {
+	    Log.e(TAG, "NMEA output failed", e);
+	}
+	Log.d(TAG, "NMEA output stopped, " + dropped + " sentences dropped");
+    }
+
+    /**
+     * Open the channels and send until stopped. No Android calls in
+     * here, so NmeaCheck, in tools/, can run it off the device.
+     */
+    void serve() throws IOException {
+	ServerSocketChannel server = null;
+	DatagramChannel udp = null;
+	try {
+	    selector = Selector.open();
+	    InetAddress lo = InetAddress.getByName("127.0.0.1");
+	    server = ServerSocketChannel.open();
+	    server.configureBlocking(false);
+	    server.socket().setReuseAddress(true);
+	    server.socket().bind(new InetSocketAddress(lo, port));
+	    server.register(selector, SelectionKey.OP_ACCEPT);
+	    udp = DatagramChannel.open();
+	    udp.configureBlocking(false);
+	    udp.connect(new InetSocketAddress(lo, port));
+	    loop(server, udp);
+	} finally {
+	    close(server);
+	    close(udp);
+	    if (selector != null) {
+		for (SelectionKey k : selector.keys()) close(k.channel());
+		try {
+		    selector.close();
+		} catch (IOException e) { }
+	    }
+	    selector = null;
+	    nClients = 0;
+	    running = false;
+	}
+    }
+
+    /** Sentences clients missed because they weren't keeping up */
+    long getDropped() {
+	return dropped;
+    }
+
+    private void loop(ServerSocketChannel server, DatagramChannel udp)
+	throws IOException
+    {
+	long next = System.currentTimeMillis();
+	while (running) {
+	    long wait = next - System.currentTimeMillis();
+	    if (wait > 0) {
+		if (selector.select(wait) == 0) continue;
+		Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+		while (it.hasNext()) {
+		    SelectionKey k = it.next();
+		    it.remove();
+		    if (!k.isValid()) continue;
+		    if (k.isAcceptable()) accept(server);
+		    else if (k.isReadable()) read(k);
+		    if (k.isValid() && k.isWritable()) flush(k);
+		}
+		continue;
+	    }
+	    next += period;
+	    long now = System.currentTimeMillis();
+	    if (next <= now) next = now + period;	// fell behind
+	    tick(udp);
+	}
+    }
+
+    /**
+     * Build this tick's sentences and send them everywhere.
+     */
+    private void tick(DatagramChannel udp) {
+	float a = alt;
+	if (Float.isNaN(a)) return;		// no reading yet
+	float pa = Barometer.pressureAltitude(Barometer.a2p(kollsman, a));
+	int n = Nmea.pgrmz(sentences, 0, pa);
+	n += Nmea.lxwp0(sentences, n, pa, vsi);
+	packet.clear();
+	packet.limit(n);
+	try {
+	    udp.write(packet);
+	} catch (IOException e) {
+	    // Nobody listening on UDP; that's fine
+	}
+	if (nClients == 0) return;
+	for (SelectionKey k : selector.keys()) {
+	    Object o = k.attachment();
+	    if (o == null || !k.isValid()) continue;
+	    ByteBuffer out = (ByteBuffer)o;
+	    if (out.remaining() < n) {
+		++dropped;		// client isn't keeping up
+		continue;
+	    }
+	    out.put(sentences, 0, n);
+	    flush(k);
+	}
+    }
+
+    private void accept(ServerSocketChannel server) throws IOException {
+	SocketChannel c = server.accept();
+	if (c == null) return;
+	if (nClients >= MAX_CLIENTS) {
+	    close(c);
+	    return;
+	}
+	c.configureBlocking(false);
+	c.register(selector, SelectionKey.OP_READ,
+	  ByteBuffer.allocate(OUT_BUF));
+	++nClients;
+    }
+
+    /**
+     * Anything clients send is ignored; we only read to see them hang
+     * up.
+     */
+    private void read(SelectionKey k) {
+	try {
+	    scratch.clear();
+	    if (((SocketChannel)k.channel()).read(scratch) < 0) drop(k);
+	} catch (IOException e) {
+	    drop(k);
+	}
+    }
+
+    /**
+     * Write as much of this client's queue as it will take; ask for a
+     * write event if there's any left.
+     */
+    private void flush(SelectionKey k) {
+	ByteBuffer out = (ByteBuffer)k.attachment();
+	try {
+	    out.flip();
+	    ((SocketChannel)k.channel()).write(out);
+	    out.compact();
+	} catch (IOException e) {
+	    drop(k);
+	    return;
+	}
+	k.interestOps(out.position() > 0 ?
+	  SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+    }
+
+    private void drop(SelectionKey k) {
+	k.cancel();
+	close(k.channel());
+	--nClients;
+    }
+
+    private static void close(java.io.Closeable c) {
+	if (c == null) return;
+	try {
+	    c.close();
+	} catch (IOException e) { }
+    }
+}
@@ -0,0 +1,134 @@
+/**
+ * Records a session of barometer readings to a file.
+ */
+
+package org.efalk.altimeter;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+
+/**
+ * Writes the raw sample stream of a session, plus its rollups (see
+ * {@link Rollup}). One session is one "yyyyMMdd-HHmmss.alt" file.
+ *
+ * File format, big-endian:
+ *
+ *   int   MAGIC
+ *   int   VERSION
+ *   long  session start, ms since the epoch
+ *   float Kollsman setting at start of session, mB
+ *
+ * followed by fixed-size records:
+ *
+ *   long  sensor timestamp, ns
+ *   float pressure, mB
+ *   float altitude, meters
+ *   float vertical speed, meters/second
+ *
+ * The raw stream and the rollups are buffered, and pushed to the file
+ * every FLUSH_INTERVAL of sensor time, so a crash loses no more than
+ * that, plus the rollup buckets still open.
+ */
+public class Recorder {
+    public static final int MAGIC = 0x414c5447;		// "ALTG"
+    public static final int VERSION = 1;
+    public static final int HDRSIZE = 20;
+    public static final int RECSIZE = 20;
+    public static final String SUFFIX = ".alt";
+    static final long FLUSH_INTERVAL = 10000000000L;	// ns
+
+    private final File file;
+    private final DataOutputStream out;
+    private final Rollup rollup;
+    private long lastFlush = -1;		// ns
+
+    /**
+     * Start a new session in the given directory.
+     */
+    public Recorder(File dir, float kollsman) throws IOException {
+	long now = System.currentTimeMillis();
+	SimpleDateFormat fmt = new SimpleDateFormat("yyyyMMdd-HHmmss");
+	file = new File(dir, fmt.format(new Date(now)) + SUFFIX);
+	out = new DataOutputStream(
+	  new BufferedOutputStream(new FileOutputStream(file), 8192));
+	try {
+	    out.writeInt(MAGIC);
+	    out.writeInt(VERSION);
+	    out.writeLong(now);
+	    out.writeFloat(kollsman);
+	    rollup = new Rollup(file);
+	} catch (IOException e) {
+	    // Don't leave a session behind that has no rollups
+	    try {
+		out.close();
+	    } catch (IOException e2) { }
+	    file.delete();
+	    throw e;
+	}
+    }
+
+    /**
+     * Return the sessions in a directory, most recent first.
+     */
+    public static File[] list(File dir) {
+	File[] files = dir.listFiles(new FilenameFilter() {
+	    public boolean accept(File d, String name) {
+		return name.endsWith(SUFFIX);
+	    }
+	});
+	if (files == null) return new File[0];
+	Arrays.sort(files);
+	for (int i = 0, j = files.length-1; i < j; ++i, --j) {
+	    File f = files[i]; files[i] = files[j]; files[j] = f;
+	}
+	return files;
+    }
+
+    /**
+     * Return the raw log file for this session.
+     */
+    public File getFile() {
+	return file;
+    }
+
+    /**
+     * Record one sample.
+     * @param ts    sensor timestamp, ns
+     * @param pres  pressure, mB
+     * @param alt   altitude, meters
+     * @param vsi   vertical speed, meters/second
+     */
+    public void add(long ts, float pres, float alt, float vsi)
+	throws IOException
+    {
+	out.writeLong(ts);
+	out.writeFloat(pres);
+	out.writeFloat(alt);
+	out.writeFloat(vsi);
+	rollup.add(ts, alt, vsi);
+	if (lastFlush < 0) lastFlush = ts;
+	else if (ts - lastFlush >= FLUSH_INTERVAL) {
+	    out.flush();
+	    rollup.flush();
+	    lastFlush = ts;
+	}
+    }
+
+    /**
+     * Finish the session.
+     */
+    public void close() throws IOException {
+	try {
+	    out.close();
+	} finally {
+	    rollup.close();
+	}
+    }
+}
@@ -0,0 +1,247 @@
+/**
+ * Streaming multi-resolution summary of a recording.
+ */
+
+package org.efalk.altimeter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Keeps min/max/mean altitude and VSI in 1 s, 10 s and 1 min buckets
+ * while a session is being recorded. Only the 1 s tier sees raw
+ * samples; each closed bucket is merged into the next tier up, so the
+ * per-sample cost is a handful of compares no matter how many tiers
+ * there are.
+ *
+ * Closed buckets are collected in fixed-size primitive arrays and
+ * appended to one file per tier next to the raw log, e.g.
+ * "20150704-101500.alt" gets "20150704-101500.r1", ".r10" and ".r60".
+ * A chart of an hours-long session reads the coarse file instead of
+ * decoding the raw stream. They're written out when BLOCK are waiting
+ * and on {@link #flush}, which the recorder calls on a time bound.
+ *
+ * Each rollup file is a series of fixed-size big-endian records:
+ *
+ *   int   bucket index, counting from the first sample
+ *   int   number of raw samples in the bucket
+ *   float altMin, altMax, altMean	(meters)
+ *   float vsiMin, vsiMax, vsiMean	(meters/second)
+ */
+public class Rollup {
+    /** Bucket widths, seconds */
+    public static final int[] TIERS = {1, 10, 60};
+    static final int RECSIZE = 32;
+    private static final int BLOCK = 64;	// buckets buffered per tier
+
+    private final Tier[] tiers = new Tier[TIERS.length];
+    private long t0 = -1;			// timestamp of first sample, ns
+
+    /**
+     * Create a rollup writer.
+     * @param base  raw log file; tier files are named after it
+     */
+    public Rollup(File base) throws IOException {
+	try {
+	    for (int i = 0; i < TIERS.length; ++i) {
+		tiers[i] = new Tier(file(base, i), TIERS[i] / TIERS[0]);
+		if (i > 0) tiers[i-1].up = tiers[i];
+	    }
+	} catch (IOException e) {
+	    // Don't leak or leave behind the files that did open
+	    for (int i = 0; i < tiers.length && tiers[i] != null; ++i) {
+		try {
+		    tiers[i].out.close();
+		} catch (IOException e2) { }
+		file(base, i).delete();
+	    }
+	    throw e;
+	}
+    }
+
+    /**
+     * Return the rollup file for a given tier of a raw log file.
+     */
+    public static File file(File base, int tier) {
+	String name = base.getName();
+	int dot = name.lastIndexOf('.');
+	if (dot > 0) name = name.substring(0, dot);
+	return new File(base.getParentFile(), name + ".r" + TIERS[tier]);
+    }
+
+    /**
+     * Add one sample.
+     * @param ts   timestamp, ns
+     * @param alt  altitude, meters
+     * @param vsi  vertical speed, meters/second
+     */
+    public void add(long ts, float alt, float vsi) throws IOException {
+	if (t0 < 0) t0 = ts;
+	int idx = (int)((ts - t0) / (TIERS[0] * 1000000000L));
+	tiers[0].add(idx, 1, alt, alt, alt, vsi, vsi, vsi);
+    }
+
+    /**
+     * Write the closed buckets out to the tier files. The buckets
+     * still being filled aren't written until they close.
+     */
+    public void flush() throws IOException {
+	for (int i = 0; i < tiers.length; ++i) {
+	    tiers[i].flush();
+	    tiers[i].out.flush();
+	}
+    }
+
+    /**
+     * Flush the partial buckets and close the tier files.
+     */
+    public void close() throws IOException {
+	IOException err = null;
+	for (int i = 0; i < tiers.length; ++i) {
+	    try {
+		tiers[i].close();
+	    } catch (IOException e) {
+		if (err == null) err = e;
+	    }
+	}
+	if (err != null) throw err;
+    }
+
+    /**
+     * Read one tier of a recorded session. The whole file is read in
+     * one pass straight into primitive arrays.
+     */
+    public static Series load(File base, int tier) throws IOException {
+	File f = file(base, tier);
+	int n = (int)(f.length() / RECSIZE);
+	Series s = new Series(TIERS[tier], n);
+	DataInputStream in = new DataInputStream(
+	  new BufferedInputStream(new FileInputStream(f), 8192));
+	try {
+	    for (int i = 0; i < n; ++i) {
+		s.index[i] = in.readInt();
+		s.count[i] = in.readInt();
+		s.altMin[i] = in.readFloat();
+		s.altMax[i] = in.readFloat();
+		s.altMean[i] = in.readFloat();
+		s.vsiMin[i] = in.readFloat();
+		s.vsiMax[i] = in.readFloat();
+		s.vsiMean[i] = in.readFloat();
+	    }
+	} finally {
+	    in.close();
+	}
+	return s;
+    }
+
+    /**
+     * One tier of a session as loaded from disk.
+     */
+    public static class Series {
+	public final int seconds;		// bucket width
+	public final int n;
+	public final int[] index, count;
+	public final float[] altMin, altMax, altMean;
+	public final float[] vsiMin, vsiMax, vsiMean;
+
+	Series(int seconds, int n) {
+	    this.seconds = seconds;
+	    this.n = n;
+	    index = new int[n];
+	    count = new int[n];
+	    altMin = new float[n];
+	    altMax = new float[n];
+	    altMean = new float[n];
+	    vsiMin = new float[n];
+	    vsiMax = new float[n];
+	    vsiMean = new float[n];
+	}
+    }
+
+    /**
+     * One resolution. Holds the bucket currently being filled plus a
+     * block of closed buckets waiting to be written.
+     */
+    private final class Tier {
+	private final int ratio;		// width in units of tier 0
+	private final DataOutputStream out;
+	private Tier up;			// next coarser tier
+
+	private int cur = -1;			// current bucket index
+	private int n;
+	private float amin, amax, vmin, vmax;
+	private double asum, vsum;
+
+	private int npend = 0;
+	private final int[] pIndex = new int[BLOCK];
+	private final int[] pCount = new int[BLOCK];
+	private final float[] pData = new float[BLOCK * 6];
+
+	Tier(File f, int ratio) throws IOException {
+	    this.ratio = ratio;
+	    out = new DataOutputStream(
+	      new BufferedOutputStream(new FileOutputStream(f), 4096));
+	}
+
+	/**
+	 * Merge a sample or a closed finer-grained bucket into this tier.
+	 * @param idx  bucket index in units of tier 0
+	 */
+	void add(int idx, int count, float amin, float amax, float amean,
+		float vmin, float vmax, float vmean) throws IOException
+	{
+	    idx /= ratio;
+	    if (idx != cur) {
+		if (n > 0) closeBucket();
+		cur = idx;
+		n = 0;
+		this.amin = amin; this.amax = amax;
+		this.vmin = vmin; this.vmax = vmax;
+		asum = vsum = 0;
+	    }
+	    if (amin < this.amin) this.amin = amin;
+	    if (amax > this.amax) this.amax = amax;
+	    if (vmin < this.vmin) this.vmin = vmin;
+	    if (vmax > this.vmax) this.vmax = vmax;
+	    asum += (double)amean * count;
+	    vsum += (double)vmean * count;
+	    n += count;
+	}
+
+	private void closeBucket() throws IOException {
+	    float amean = (float)(asum / n);
+	    float vmean = (float)(vsum / n);
+	    int k = npend * 6;
+	    pIndex[npend] = cur;
+	    pCount[npend] = n;
+	    pData[k] = amin; pData[k+1] = amax; pData[k+2] = amean;
+	    pData[k+3] = vmin; pData[k+4] = vmax; pData[k+5] = vmean;
+	    if (++npend == BLOCK) flush();
+	    if (up != null)
+		up.add(cur * ratio, n, amin, amax, amean, vmin, vmax, vmean);
+	}
+
+	private void flush() throws IOException {
+	    for (int i = 0; i < npend; ++i) {
+		out.writeInt(pIndex[i]);
+		out.writeInt(pCount[i]);
+		for (int j = i*6; j < i*6+6; ++j)
+		    out.writeFloat(pData[j]);
+	    }
+	    npend = 0;
+	}
+
+	void close() throws IOException {
+	    if (n > 0) closeBucket();
+	    n = 0;
+	    flush();
+	    out.close();
+	}
+    }
+}
@@ -0,0 +1,127 @@
+/**
+ * Picks the pressure sensor rate from what the altitude is doing.
+ */
+
+package org.efalk.altimeter;
+
+/**
+ * Adaptive sampling. While the altitude is steady there's no point in
+ * running the sensor at the UI rate, so we drop to a slow rate. As
+ * soon as a climb or descent starts, or its rate changes, we go to
+ * the fastest rate. A steady climb or descent only needs the UI rate.
+ *
+ * "Starting" is judged against the sensor noise, which is tracked
+ * while the vertical speed is steady: a raw sample more than
+ * NOISE_SIGMAS standard deviations from the filtered altitude, two in
+ * a row beyond PAIR_SIGMAS on the same side, or a filtered VSI more
+ * than VSI_FLOOR from its recent mean switches to FAST on that very
+ * sample. The filter lags in a climb, so residuals are taken from
+ * their recent mean rather than from zero. Going back down is
+ * deliberately slow: the vertical speed has to stay steady for HOLD
+ * seconds at each level, and only SLOW needs it level.
+ *
+ * Pure computation, no Android dependencies, so it can be driven
+ * from a replayed log.
+ */
+public class SampleRateController {
+    public static final int SLOW = 0;
+    public static final int NORMAL = 1;
+    public static final int FAST = 2;
+
+    /** Nominal sample period at each level, microseconds */
+    public static final int[] PERIOD = {200000, 60000, 20000};
+
+    private static final float NOISE_SIGMAS = 6;	// one sample
+    private static final float PAIR_SIGMAS = 3;		// two in a row
+    private static final float MIN_NOISE = 0.1f;	// meters
+    private static final float VSI_FLOOR = 0.5f;	// m/s, ~100 fpm
+    private static final float VSI_QUIET = 0.25f;	// m/s, ~50 fpm
+    private static final float NOISE_ALPHA = 0.02f;	// noise EWMA weight
+    private static final long HOLD = 30000000000L;	// ns
+
+    private int level = NORMAL;
+    private float var = MIN_NOISE * MIN_NOISE;	// residual variance, m^2
+    private float bias = 0;		// mean residual, filter lag, m
+    private float steadyVsi = 0;	// m/s
+    private long quietSince = -1;		// ns
+    private long changes = 0;
+    private int lastSide = 0;		// side of last large residual
+
+    public int getLevel() {
+	return level;
+    }
+
+    /** Number of level changes so far, for diagnostics */
+    public long getChanges() {
+	return changes;
+    }
+
+    /** Current estimate of the altitude noise, meters (1 sigma) */
+    public float getNoise() {
+	return (float)Math.sqrt(var);
+    }
+
+    public void reset() {
+	level = NORMAL;
+	quietSince = -1;
+    }
+
+    /**
+     * Process one sample and return the rate level to use from now on.
+     * @param ts   timestamp, ns
+     * @param raw  unfiltered altitude, meters
+     * @param alt  filtered altitude, meters
+     * @param vsi  filtered vertical speed, meters/second
+     */
+    public int update(long ts, float raw, float alt, float vsi) {
+	// In a steady climb the filtered altitude lags the raw one by a
+	// fixed amount, so measure from the mean residual, not from 0.
+	float resid = raw - alt - bias;
+	float r2 = resid * resid;
+	float avsi = vsi < 0 ? -vsi : vsi;
+	float dvsi = vsi - steadyVsi;
+	if (dvsi < 0) dvsi = -dvsi;
+	bias += NOISE_ALPHA * resid;
+	steadyVsi += NOISE_ALPHA * (vsi - steadyVsi);
+	int side = 0;
+	if (r2 > PAIR_SIGMAS * PAIR_SIGMAS * var)
+	    side = resid > 0 ? 1 : -1;
+	boolean pair = side != 0 && side == lastSide;
+	lastSide = side;
+
+	if (r2 > NOISE_SIGMAS * NOISE_SIGMAS * var || pair ||
+	    dvsi > VSI_FLOOR)
+	{
+	    // Something's happening
+	    quietSince = -1;
+	    return setLevel(FAST);
+	}
+
+	if (dvsi < VSI_QUIET) {
+	    // Only learn the noise while steady, so a change of climb
+	    // rate doesn't inflate it.
+	    var += NOISE_ALPHA * (r2 - var);
+	    if (var < MIN_NOISE * MIN_NOISE) var = MIN_NOISE * MIN_NOISE;
+	    // Level, or a steady climb or descent, which NORMAL can
+	    // follow; only level flight gets SLOW.
+	    int floor = avsi < VSI_QUIET ? SLOW : NORMAL;
+	    if (quietSince < 0)
+		quietSince = ts;
+	    else if (ts - quietSince > HOLD && level > floor) {
+		quietSince = ts;
+		return setLevel(level - 1);
+	    }
+	} else {
+	    quietSince = -1;
+	}
+	return level;
+    }
+
+    private int setLevel(int l) {
+	if (l != level) {
+	    level = l;
+	    ++changes;
+	}
+	return level;
+    }
+}
@@ -0,0 +1,105 @@
+/**
+ * Removes isolated spikes from the pressure readings.
+ */
+
+package org.efalk.altimeter;
+
+/**
+ * Causal Hampel filter. Each new sample is compared with the median
+ * of the previous WINDOW samples; if it's further from it than SIGMAS
+ * times the robust spread (1.4826 * median absolute deviation), it's
+ * taken to be a spike (door slam, gust, squeezed phone) and replaced
+ * by the median. Otherwise it passes through untouched, with no
+ * smoothing.
+ *
+ * An outlier that follows another one on the same side is taken to
+ * confirm it: the pressure really has moved, and it passes. So a
+ * genuine step, or a climb or descent that starts too sharply for
+ * the spread to follow, costs one sample of latency, and only
+ * one-sample spikes are removed; a longer one is let through from
+ * its second sample, as it can't be told from a step that soon.
+ *
+ * The window is a fixed primitive ring, and the median is found by
+ * insertion sort in a scratch array; nothing is allocated per sample.
+ */
+public class SpikeFilter {
+    private static final int WINDOW = 7;
+    private static final float SIGMAS = 3;
+    private static final float MIN_SPREAD = 0.03f;	// mB, ~0.25 m
+    private static final long MAX_GAP = 2000000000L;	// ns
+
+    private final float[] ring = new float[WINDOW];
+    private final float[] tmp = new float[WINDOW];
+    private int n = 0;			// samples in ring
+    private int pos = 0;		// next slot
+    private long lastTs = 0;
+    private int lastSide = 0;		// side of the last outlier, or 0
+    private long rejected = 0;
+
+    /** Number of samples replaced so far, for diagnostics */
+    public long getRejected() {
+	return rejected;
+    }
+
+    public void reset() {
+	n = 0;
+	pos = 0;
+	lastSide = 0;
+    }
+
+    /**
+     * Filter one sample.
+     * @param ts  timestamp, ns
+     * @param x   pressure, mB
+     * @return x, or the median of the window if x is a spike
+     */
+    public float filter(long ts, float x) {
+	if (ts - lastTs > MAX_GAP) reset();	// stale window
+	lastTs = ts;
+	float y = x;
+	int side = 0;
+	if (n == WINDOW) {
+	    float med = median(ring);
+	    for (int i = 0; i < WINDOW; ++i) {
+		float d = ring[i] - med;
+		tmp[i] = d < 0 ? -d : d;
+	    }
+	    sort(tmp);
+	    float spread = 1.4826f * tmp[WINDOW/2];
+	    if (spread < MIN_SPREAD) spread = MIN_SPREAD;
+	    float d = x - med;
+	    if (d > SIGMAS * spread) side = 1;
+	    else if (d < -SIGMAS * spread) side = -1;
+	    if (side != 0 && side != lastSide) {
+		y = med;
+		++rejected;
+	    }
+	} else {
+	    ++n;
+	}
+	lastSide = side;
+	// The raw sample goes in the window either way, so the median
+	// catches up with a real step.
+	ring[pos] = x;
+	pos = (pos + 1) % WINDOW;
+	return y;
+    }
+
+    private float median(float[] a) {
+	System.arraycopy(a, 0, tmp, 0, WINDOW);
+	sort(tmp);
+	return tmp[WINDOW/2];
+    }
+
+    private static void sort(float[] a) {
+	for (int i = 1; i < a.length; ++i) {
+	    float v = a[i];
+	    int j = i - 1;
+	    while (j >= 0 && a[j] > v) {
+		a[j+1] = a[j];
+		--j;
+	    }
+	    a[j+1] = v;
+	}
+    }
+}
@@ -0,0 +1,261 @@
+/**
+ * Building blocks for filtering sensor streams.
+ */
+
+package org.efalk.altimeter;
+
+/**
+ * One stage of a filter pipeline. A stage takes a stream of
+ * (timestamp, value) pairs and passes zero or more pairs on to the
+ * next stage. Values are primitives all the way through; nothing is
+ * boxed or allocated per sample, so a pipeline can sit in a sensor
+ * callback.
+ *
+ * Stages are chained with {@link #then}, which returns its argument:
+ *
+ *   Stage.Tap alt = new Stage.Tap();
+ *   Stage.Tap vsi = new Stage.Tap();
+ *   Stage head = new Stage.Spikes();
+ *   head.then(new Stage.Altitude(1013.25f))
+ *     .then(new Stage.Damp(0.85f, 0.06f, true)).then(alt)
+ *     .then(new Stage.Rate())
+ *     .then(new Stage.Damp(0.95f, 0.06f, false)).then(vsi);
+ *
+ * Feed the head one sample at a time with {@link #process(long,float)}
+ * or a whole array with {@link #process(long[],float[],int,int)}, and
+ * read the results from {@link Tap}s, or collect them into arrays with
+ * a {@link Collect}. Timestamps are in ns. Not thread-safe; a pipeline
+ * belongs to one thread.
+ *
+ * {@link Barometer#p2aDamped} is built from these stages.
+ */
+public abstract class Stage {
+    private Stage next;
+
+    /**
+     * Send this stage's output to s, and return s.
+     */
+    public Stage then(Stage s) {
+	next = s;
+	return s;
+    }
+
+    /**
+     * Process one sample.
+     */
+    public abstract void process(long ts, float v);
+
+    /**
+     * Process n samples from the arrays, starting at off.
+     */
+    public void process(long[] ts, float[] v, int off, int n) {
+	for (int i = off; i < off + n; ++i)
+	    process(ts[i], v[i]);
+    }
+
+    /**
+     * Start over, here and downstream.
+     */
+    public void reset() {
+	if (next != null) next.reset();
+    }
+
+    /** Pass a sample to the next stage. */
+    protected final void emit(long ts, float v) {
+	if (next != null) next.process(ts, v);
+    }
+
+
+    /**
+     * Pressure spike rejection, see {@link SpikeFilter}. mB in, mB out.
+     */
+    public static class Spikes extends Stage {
+	public final SpikeFilter filter = new SpikeFilter();
+
+	public void process(long ts, float v) {
+	    emit(ts, filter.filter(ts, v));
+	}
+
+	public void reset() {
+	    filter.reset();
+	    super.reset();
+	}
+    }
+
+    /**
+     * Pressure to altitude. mB in, meters out.
+     */
+    public static class Altitude extends Stage {
+	private float kollsman;
+
+	public Altitude(float kollsman) {
+	    this.kollsman = kollsman;
+	}
+
+	public void setKollsman(float k) {
+	    kollsman = k;
+	}
+
+	public void process(long ts, float v) {
+	    emit(ts, Barometer.ratio2a(v / kollsman));
+	}
+    }
+
+    /**
+     * Multiply by a constant, e.g. Altimeter.METER_FT for feet.
+     */
+    public static class Scale extends Stage {
+	private final float k;
+
+	public Scale(float k) {
+	    this.k = k;
+	}
+
+	public void process(long ts, float v) {
+	    emit(ts, v * k);
+	}
+    }
+
+    /**
+     * Exponential smoothing, out = in * (1-d) + out * d. The damping
+     * factor d is given per sample at a reference interval and
+     * rescaled for the actual interval, so the time constant doesn't
+     * depend on the sample rate. It's only recomputed when the
+     * interval changes by more than 10%, so Math.pow() is rarely
+     * called.
+     */
+    public static class Damp extends Stage {
+	private final float factor;
+	private float refDt;
+	private final boolean seed;
+	private float kDt;
+	private float d;
+	private float value = 0;
+	private long lastTs = 0;
+	private boolean started = false;
+
+	/**
+	 * @param factor  damping per sample at refDt
+	 * @param refDt   reference interval, seconds
+	 * @param seed    start from the first input rather than from 0
+	 */
+	public Damp(float factor, float refDt, boolean seed) {
+	    this.factor = factor;
+	    this.refDt = refDt;
+	    this.seed = seed;
+	    kDt = refDt;
+	    d = factor;
+	}
+
+	public void process(long ts, float v) {
+	    if (!started) {
+		started = true;
+		value = seed ? v : v * (1-d);
+	    } else {
+		float dt = .000000001f * (ts - lastTs);
+		if (dt > 0) setInterval(dt);
+		value = v * (1-d) + value * d;
+	    }
+	    lastTs = ts;
+	    emit(ts, value);
+	}
+
+	/**
+	 * Change the reference interval, which scales the time
+	 * constant by the same factor.
+	 */
+	public void setRefDt(float refDt) {
+	    this.refDt = refDt;
+	    kDt = Float.NaN;		// recompute d on the next sample
+	}
+
+	private void setInterval(float dt) {
+	    float r = dt / kDt;
+	    if (r > 0.9f && r < 1.1f) return;
+	    kDt = dt;
+	    d = (float)Math.pow(factor, dt / refDt);
+	}
+
+	public void reset() {
+	    started = false;
+	    value = 0;
+	    super.reset();
+	}
+    }
+
+    /**
+     * Rate of change per second. Emits nothing for the first sample,
+     * or for a sample with the same timestamp as the one before.
+     */
+    public static class Rate extends Stage {
+	private float last;
+	private long lastTs;
+	private boolean started = false;
+
+	public void process(long ts, float v) {
+	    if (started && ts > lastTs)
+		emit(ts, (v - last) / (.000000001f * (ts - lastTs)));
+	    started = true;
+	    last = v;
+	    lastTs = ts;
+	}
+
+	public void reset() {
+	    started = false;
+	    super.reset();
+	}
+    }
+
+    /**
+     * Remembers the latest sample and passes it on.
+     */
+    public static class Tap extends Stage {
+	public long ts = 0;
+	public float value = 0;
+
+	public void process(long ts, float v) {
+	    this.ts = ts;
+	    value = v;
+	    emit(ts, v);
+	}
+
+	public void reset() {
+	    ts = 0;
+	    value = 0;
+	    super.reset();
+	}
+    }
+
+    /**
+     * Collects samples into arrays, up to a fixed capacity; further
+     * samples are dropped until {@link #clear}. Passes them on too.
+     */
+    public static class Collect extends Stage {
+	public final long[] ts;
+	public final float[] values;
+	public int count = 0;
+
+	public Collect(int capacity) {
+	    ts = new long[capacity];
+	    values = new float[capacity];
+	}
+
+	public void clear() {
+	    count = 0;
+	}
+
+	public void process(long t, float v) {
+	    if (count < ts.length) {
+		ts[count] = t;
+		values[count] = v;
+		++count;
+	    }
+	    emit(t, v);
+	}
+
+	public void reset() {
+	    count = 0;
+	    super.reset();
+	}
+    }
+}
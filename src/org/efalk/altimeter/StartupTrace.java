@@ -0,0 +1,71 @@
+/**
+ * Timing of app startup and of opening the Kollsman window.
+ */
+
+package org.efalk.altimeter;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Records a few named milestones and logs them, relative to the start,
+ * when the first frame has been drawn:
+ *
+ *   I/Altimeter: trace cold start 412 ms: onCreate 180, content 305, ...
+ *
+ * On a cold start the clock starts when this class is loaded, which is
+ * as close to process start as we can get on old devices; otherwise it
+ * starts at {@link #begin}. Only one trace runs at a time. UI thread
+ * only.
+ */
+final class StartupTrace {
+    private static final String TAG = AltimeterActivity.TAG;
+    private static final int MAX = 8;
+
+    private static long t0 = SystemClock.uptimeMillis();
+    private static boolean running = true;
+    private static boolean cold = true;
+    private static final String[] names = new String[MAX];
+    private static final long[] times = new long[MAX];
+    private static int n = 0;
+
+    private StartupTrace() { }
+
+    /**
+     * Start timing, unless this is a cold start, which is already
+     * being timed.
+     */
+    static void begin() {
+	if (running && cold) return;
+	t0 = SystemClock.uptimeMillis();
+	n = 0;
+	running = true;
+    }
+
+    /** Note a milestone. */
+    static void mark(String name) {
+	if (running && n < MAX) {
+	    names[n] = name;
+	    times[n++] = SystemClock.uptimeMillis();
+	}
+    }
+
+    /**
+     * Finish timing and log the result.
+     * @param what  what was timed; "cold " is prepended for a cold start
+     */
+    static void end(String what) {
+	if (!running) return;
+	long now = SystemClock.uptimeMillis();
+	StringBuilder sb = new StringBuilder("trace ");
+	if (cold) sb.append("cold ");
+	sb.append(what).append(' ').append(now - t0).append(" ms");
+	for (int i = 0; i < n; ++i) {
+	    sb.append(i == 0 ? ": " : ", ");
+	    sb.append(names[i]).append(' ').append(times[i] - t0);
+	}
+	Log.i(TAG, sb.toString());
+	running = false;
+	cold = false;
+    }
+}
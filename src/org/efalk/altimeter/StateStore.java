@@ -0,0 +1,256 @@
+/**
+ * @file
+ * Persistent app state, kept in memory and written back lazily.
+ */
+
+package org.efalk.altimeter;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.pm.ActivityInfo;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+/**
+ * The one place app state lives: the Kollsman setting, units, whether
+ * a recording is in progress, and the user preferences. This is a
+ * singleton, so it outlives configuration changes and activity
+ * restarts; only a cold start reads the preferences file, once.
+ *
+ * Setters only change the in-memory copy and schedule a write. Writes
+ * are coalesced for FLUSH_DELAY ms and then committed on a private
+ * background thread, so the UI thread never waits for the disk.
+ * (SharedPreferences.Editor.apply() would do the same, but it's
+ * API 9.)
+ *
+ * User preferences are written by the preferences activity; we pick
+ * up the changes through a change listener.
+ *
+ * Getters and setters are for the UI thread.
+ */
+public class StateStore
+    implements SharedPreferences.OnSharedPreferenceChangeListener
+{
+    private static final String TAG = AltimeterActivity.TAG;
+    private static final long FLUSH_DELAY = 500;	// ms
+
+    // Values of the lowPower preference
+    public static final int LOW_POWER_OFF = 0;
+    public static final int LOW_POWER_AUTO = 1;	// on low battery
+    public static final int LOW_POWER_ON = 2;
+    private static volatile StateStore instance = null;
+
+    private final SharedPreferences sp;
+    private final Handler io;
+    private boolean dirty = false;
+
+    // State we write
+    private float kollsman = 1013.25f;	// mB
+    private float fieldElevation = 0;	// meters, last one used
+    private boolean recording = false;
+    private float alertTarget = Float.NaN;	// meters, NaN = none
+    private float minimums = Float.NaN;		// meters, NaN = none
+
+    // User preferences
+    private int altUnits = Altimeter.UNITS_FT;
+    private int presUnits = Altimeter.UNITS_HG;
+    private int orientation = ActivityInfo.SCREEN_ORIENTATION_SENSOR;
+    private boolean keepScreenOn = false;
+    private int historyMinutes = 5;
+    private boolean adaptiveRate = true;
+    private boolean fusion = false;
+    private boolean vario = false;
+    private boolean nmea = false;
+    private boolean agl = false;
+    private int nmeaPort = NmeaOutput.DEFAULT_PORT;
+    private int nmeaRate = NmeaOutput.DEFAULT_RATE;
+    private boolean barograph = false;
+    private boolean flingEnabled = true;
+    private int lowPower = LOW_POWER_AUTO;
+    private float sinkAlert = 0;		// m/s, 0 = none
+
+    public static StateStore get(Context ctx) {
+	if (instance == null) {
+	    synchronized(StateStore.class) {
+		if (instance == null) {
+		    instance = new StateStore(ctx.getApplicationContext());
+		}
+	    }
+	}
+	return instance;
+    }
+
+    private StateStore(Context ctx) {
+	sp = PreferenceManager.getDefaultSharedPreferences(ctx);
+	kollsman = sp.getFloat("kollsman", kollsman);
+	fieldElevation = sp.getFloat("fieldElevation", fieldElevation);
+	recording = sp.getBoolean("recording", recording);
+	alertTarget = sp.getFloat("alertTarget", alertTarget);
+	minimums = sp.getFloat("minimumsMeters", minimums);
+	loadPreferences();
+	// The preferences object only holds a weak reference to this
+	sp.registerOnSharedPreferenceChangeListener(this);
+	HandlerThread t = new HandlerThread("state",
+	  Process.THREAD_PRIORITY_BACKGROUND);
+	t.start();
+	io = new Handler(t.getLooper());
+	// Minimums used to be a preference in whatever units were set;
+	// take it in the units it was entered in, once
+	if (sp.contains("minimums")) {
+	    try {
+		String m = sp.getString("minimums", "").trim();
+		minimums = Float.parseFloat(m);
+		if (altUnits == Altimeter.UNITS_FT)
+		    minimums /= Altimeter.METER_FT;
+	    } catch (RuntimeException e) {
+		minimums = Float.NaN;
+	    }
+	    schedule();
+	}
+    }
+
+    public float getKollsman() { return kollsman; }
+    public float getFieldElevation() { return fieldElevation; }
+    public boolean isRecording() { return recording; }
+    public float getAlertTarget() { return alertTarget; }
+    public int getAltUnits() { return altUnits; }
+    public int getPresUnits() { return presUnits; }
+    public int getOrientation() { return orientation; }
+    public boolean getKeepScreenOn() { return keepScreenOn; }
+    public int getHistoryMinutes() { return historyMinutes; }
+    public boolean getAdaptiveRate() { return adaptiveRate; }
+    public boolean getFusion() { return fusion; }
+    public boolean getVario() { return vario; }
+    public boolean getNmea() { return nmea; }
+    public boolean getAgl() { return agl; }
+    public int getNmeaPort() { return nmeaPort; }
+    public int getNmeaRate() { return nmeaRate; }
+    public boolean getBarograph() { return barograph; }
+    public boolean getFlingEnabled() { return flingEnabled; }
+    public int getLowPower() { return lowPower; }
+    public float getMinimums() { return minimums; }
+    public float getSinkAlert() { return sinkAlert; }
+
+    /**
+     * Set Kollsman window value, mB
+     */
+    public synchronized void setKollsman(float k) {
+	if (k == kollsman) return;
+	kollsman = k;
+	schedule();
+    }
+
+    public synchronized void setFieldElevation(float e) {
+	if (e == fieldElevation) return;
+	fieldElevation = e;
+	schedule();
+    }
+
+    /**
+     * Set the altitude alert target, meters, or NaN for none
+     */
+    public synchronized void setAlertTarget(float a) {
+	if (a == alertTarget || Float.isNaN(a) && Float.isNaN(alertTarget))
+	    return;
+	alertTarget = a;
+	schedule();
+    }
+
+    /**
+     * Set the minimums, meters, or NaN for none
+     */
+    public synchronized void setMinimums(float m) {
+	if (m == minimums || Float.isNaN(m) && Float.isNaN(minimums))
+	    return;
+	minimums = m;
+	schedule();
+    }
+
+    public synchronized void setRecording(boolean r) {
+	if (r == recording) return;
+	recording = r;
+	schedule();
+    }
+
+    private void schedule() {
+	if (!dirty) {
+	    dirty = true;
+	    io.postDelayed(flush, FLUSH_DELAY);
+	}
+    }
+
+    /**
+     * Write out whatever has changed. Runs on the background thread.
+     */
+    private final Runnable flush = new Runnable() {
+	public void run() {
+	    float k, fe, at, mins;
+	    boolean r;
+	    synchronized (StateStore.this) {
+		dirty = false;
+		k = kollsman;
+		fe = fieldElevation;
+		r = recording;
+		at = alertTarget;
+		mins = minimums;
+	    }
+	    try {
+		sp.edit()
+		  .putFloat("kollsman", k)
+		  .putFloat("fieldElevation", fe)
+		  .putBoolean("recording", r)
+		  .putFloat("alertTarget", at)
+		  .putFloat("minimumsMeters", mins)
+		  .remove("minimums")
+		  .commit();
+	    } catch (Exception e) {
+		Log.e(TAG, "Unable to save state", e);
+	    }
+	}
+    };
+
+    public void onSharedPreferenceChanged(SharedPreferences p, String key) {
+	if (!key.equals("kollsman") && !key.equals("fieldElevation") &&
+	    !key.equals("recording") && !key.equals("alertTarget") &&
+	    !key.equals("minimumsMeters") && !key.equals("minimums"))
+	    loadPreferences();
+    }
+
+    /**
+     * Read the user preferences.
+     */
+    private void loadPreferences() {
+	/* Protip: ListPreference only works with string arrays.  If
+	 * you want to represent an integer value in a ListPreference
+	 * item, you'll have to convert it from String.  You will also
+	 * have to store it as String or preferences activity will crash.
+	 */
+	altUnits = Integer.parseInt(sp.getString("altUnits", ""+altUnits));
+	presUnits = Integer.parseInt(sp.getString("presUnits", ""+presUnits));
+	keepScreenOn = sp.getBoolean("keepScreenOn", keepScreenOn);
+	historyMinutes = Integer.parseInt(sp.getString("historyMinutes",
+	  ""+historyMinutes));
+	adaptiveRate = sp.getBoolean("adaptiveRate", adaptiveRate);
+	fusion = sp.getBoolean("fusion", fusion);
+	vario = sp.getBoolean("vario", vario);
+	nmea = sp.getBoolean("nmea", nmea);
+	agl = sp.getBoolean("agl", agl);
+	nmeaRate = Integer.parseInt(sp.getString("nmeaRate", ""+nmeaRate));
+	try {
+	    nmeaPort = Integer.parseInt(sp.getString("nmeaPort", "").trim());
+	    if (nmeaPort <= 0 || nmeaPort > 65535)
+		nmeaPort = NmeaOutput.DEFAULT_PORT;
+	} catch (NumberFormatException e) {
+	    nmeaPort = NmeaOutput.DEFAULT_PORT;
+	}
+	barograph = sp.getBoolean("barograph", barograph);
+	flingEnabled = sp.getBoolean("flingEnabled", flingEnabled);
+	lowPower = Integer.parseInt(sp.getString("lowPower", ""+lowPower));
+	sinkAlert = Float.parseFloat(sp.getString("sinkAlert", ""+sinkAlert));
+	orientation = Integer.parseInt(sp.getString("orientation",
+	  ""+orientation));
+    }
+}
@@ -0,0 +1,188 @@
+/**
+ * Terrain elevation from SRTM tiles.
+ */
+
+package org.efalk.altimeter;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Locale;
+
+/**
+ * Ground elevation at a point, from SRTM-style .hgt files in one
+ * directory: one file per 1x1 degree tile, named for its southwest
+ * corner (N37W123.hgt), holding a square grid of big-endian 16-bit
+ * meters, north row first, 1201 or 3601 samples on a side. Edges are
+ * shared with the neighbouring tiles.
+ *
+ * Tiles are memory-mapped rather than read, so opening one costs no
+ * I/O and the kernel pages in only the parts we touch. Up to
+ * MAX_TILES are kept mapped, least recently used first out, and no
+ * more than maxBytes of address space between them; a 1" tile is
+ * 26 MB, so on a 32-bit device this matters. Java can't unmap
+ * explicitly; an evicted mapping goes when it's garbage collected.
+ * Tiles that aren't there are remembered too, so they're not looked
+ * for again on every fix.
+ *
+ * The elevation is interpolated bilinearly between the four samples
+ * around the point. Once the tile is mapped a lookup allocates
+ * nothing. Not thread safe.
+ */
+public class Terrain {
+    private static final String TAG = AltimeterActivity.TAG;
+    public static final String SUFFIX = ".hgt";
+    private static final int MAX_TILES = 16;
+    private static final short VOID = -32768;	// no data
+
+    private final File dir;
+    private final long maxBytes;
+
+    // The cache: parallel arrays, one tile (or missing tile) per
+    // slot; a slot with a key but no map is a tile that isn't there.
+    private final int[] key = new int[MAX_TILES];	// -1 = empty
+    private final ByteBuffer[] map = new ByteBuffer[MAX_TILES];
+    private final int[] size = new int[MAX_TILES];	// samples per side
+    private final long[] used = new long[MAX_TILES];	// LRU clock
+    private long clock = 0;
+    private long mapped = 0;			// bytes
+    private int last = -1;			// slot of the last lookup
+
+    /**
+     * @param dir       where the .hgt files are
+     * @param maxBytes  most address space to keep mapped
+     */
+    public Terrain(File dir, long maxBytes) {
+	this.dir = dir;
+	this.maxBytes = maxBytes;
+	for (int i = 0; i < MAX_TILES; ++i) key[i] = -1;
+    }
+
+    /**
+     * Ground elevation, meters above sea level, or NaN if there's no
+     * tile or no data here.
+     */
+    public float elevation(double lat, double lon) {
+	if (!(lat >= -90 && lat < 90 && lon >= -180 && lon <= 180))
+	    return Float.NaN;
+	if (lon == 180) lon = -180;
+	int la = (int)Math.floor(lat);
+	int lo = (int)Math.floor(lon);
+	int k = (la + 90) * 360 + (lo + 180);
+	int s = last;
+	if (s < 0 || key[s] != k) {
+	    s = find(k);
+	    if (s < 0) s = load(k, la, lo);
+	    last = s;
+	}
+	used[s] = ++clock;
+	ByteBuffer b = map[s];
+	if (b == null) return Float.NaN;
+	int n = size[s] - 1;
+	// Grid coordinates, row 0 at the north edge
+	double y = (la + 1 - lat) * n;
+	double x = (lon - lo) * n;
+	int r = Math.min((int)y, n - 1);
+	int c = Math.min((int)x, n - 1);
+	float fy = (float)(y - r), fx = (float)(x - c);
+	int i = (r * (n + 1) + c) * 2;
+	int rowBytes = (n + 1) * 2;
+	short h00 = b.getShort(i), h01 = b.getShort(i + 2);
+	short h10 = b.getShort(i + rowBytes);
+	short h11 = b.getShort(i + rowBytes + 2);
+	if (h00 == VOID || h01 == VOID || h10 == VOID || h11 == VOID)
+	    return nearest(h00, h01, h10, h11, fx, fy);
+	float top = h00 + (h01 - h00) * fx;
+	float bot = h10 + (h11 - h10) * fx;
+	return top + (bot - top) * fy;
+    }
+
+    /**
+     * Some of the samples are voids: use the nearest good one.
+     */
+    private static float nearest(short h00, short h01, short h10,
+	    short h11, float fx, float fy)
+    {
+	short h = fy < .5f ? (fx < .5f ? h00 : h01) : (fx < .5f ? h10 : h11);
+	if (h != VOID) return h;
+	if (h00 != VOID) return h00;
+	if (h01 != VOID) return h01;
+	if (h10 != VOID) return h10;
+	if (h11 != VOID) return h11;
+	return Float.NaN;
+    }
+
+    private int find(int k) {
+	for (int i = 0; i < MAX_TILES; ++i)
+	    if (key[i] == k) return i;
+	return -1;
+    }
+
+    /**
+     * Map a tile into a free or least recently used slot.
+     */
+    private int load(int k, int la, int lo) {
+	File f = new File(dir, name(la, lo));
+	long len = f.length();		// 0 if it's not there
+	int n = (int)Math.round(Math.sqrt(len / 2));
+	if (n < 2 || (long)n * n * 2 != len) {
+	    if (len != 0) Log.w(TAG, "Not a terrain tile: " + f);
+	    len = 0;
+	}
+	// Make room
+	while (mapped + len > maxBytes && evict(true) >= 0) { }
+	int s = find(-1);
+	if (s < 0) s = evict(false);
+	key[s] = k;
+	map[s] = null;
+	size[s] = 0;
+	if (len > 0 && mapped + len <= maxBytes) {
+	    try {
+		RandomAccessFile raf = new RandomAccessFile(f, "r");
+		try {
+		    map[s] = raf.getChannel()
+		      .map(FileChannel.MapMode.READ_ONLY, 0, len);
+		    size[s] = n;
+		    mapped += len;
+		} finally {
+		    raf.close();	// the mapping stays valid
+		}
+	    } catch (IOException e) {
+		Log.e(TAG, "Unable to map " + f, e);
+	    }
+	}
+	return s;
+    }
+
+    /**
+     * Empty the least recently used slot.
+     * @param mappedOnly  only consider slots with a tile mapped
+     * @return the slot, or -1 if there's none to empty
+     */
+    private int evict(boolean mappedOnly) {
+	int s = -1;
+	for (int i = 0; i < MAX_TILES; ++i) {
+	    if (key[i] == -1 || mappedOnly && map[i] == null) continue;
+	    if (s < 0 || used[i] < used[s]) s = i;
+	}
+	if (s < 0) return -1;
+	if (map[s] != null) mapped -= (long)size[s] * size[s] * 2;
+	key[s] = -1;
+	map[s] = null;
+	size[s] = 0;
+	if (last == s) last = -1;
+	return s;
+    }
+
+    /**
+     * Tile file name for the tile with this southwest corner.
+     */
+    static String name(int lat, int lon) {
+	return String.format(Locale.US, "%c%02d%c%03d%s", lat < 0 ? 'S' : 'N',
+	  Math.abs(lat), lon < 0 ? 'W' : 'E', Math.abs(lon), SUFFIX);
+    }
+}
@@ -0,0 +1,240 @@
+/**
+ * Audio variometer.
+ */
+
+package org.efalk.altimeter;
+
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTrack;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Climb and sink tones from the vertical speed, the way gliding
+ * varios do it: above LIFT, beeps whose pitch and rate rise with the
+ * climb; below SINK, a steady low tone that drops with the sink;
+ * silence in between.
+ *
+ * The tone is synthesized on a thread of its own at urgent-audio
+ * priority and streamed to an AudioTrack in CHUNK-frame pieces. Each
+ * chunk reads the latest vertical speed, so a new reading is heard
+ * after at most one chunk plus whatever the track has buffered. The
+ * samples come from a one-cycle sine table stepped through by a 32-bit
+ * phase accumulator, and each beep is ramped in and out over RAMP so
+ * it doesn't click. Nothing is allocated once the thread is running.
+ *
+ * The sample-to-sound latency is measured for each new reading: the
+ * time since setVsi() plus the audio already queued in the track
+ * ahead of the chunk it lands in. It's logged when the tone stops.
+ */
+public class Variometer implements Runnable {
+    private static final String TAG = AltimeterActivity.TAG;
+
+    public static final float LIFT = 0.2f;	// m/s, beeps above
+    public static final float SINK = -2;	// m/s, sink tone below
+    private static final float CLIMB_HZ = 700;	// at LIFT
+    private static final float CLIMB_HZ_MS = 150;	// Hz per m/s
+    private static final float MAX_HZ = 1800;
+    private static final float SINK_HZ = 450;	// at SINK
+    private static final float SINK_HZ_MS = 40;
+    private static final float MIN_HZ = 200;
+    private static final float BEEPS = 1.5f;	// per second, at LIFT
+    private static final float BEEPS_MS = 0.75f;	// per second per m/s
+    private static final float MAX_BEEPS = 8;
+    private static final long STALE = 2000000000L;	// ns, then quiet
+
+    static final int RATE = 22050;		// Hz
+    static final int CHUNK = 256;		// frames, 11.6 ms
+    private static final int RAMP = RATE / 200;	// frames, 5 ms
+    private static final int TABLE_BITS = 10;
+    private static final short[] WAVE = new short[1 << TABLE_BITS];
+    private static final int ONE = 1 << 15;	// full gain
+    private static final int VOLUME = (int)(0.7 * ONE);
+
+    static {
+	for (int i = 0; i < WAVE.length; ++i)
+	    WAVE[i] = (short)Math.round(32767 *
+	      Math.sin(2 * Math.PI * i / WAVE.length));
+    }
+
+    // From the sensor thread
+    private volatile float vsi = 0;
+    private volatile long vsiTime = 0;		// System.nanoTime(), 0 = none
+
+    private volatile boolean running = false;
+    private Thread thread;
+
+    // Synthesis state, audio thread only
+    private int phase = 0;
+    private int step = 0;			// phase step per frame
+    private int gain = 0;
+    private int target = 0;			// gain we're ramping to
+    private boolean beeping = false;		// climb cadence
+    private int cycle = 0;			// frames per beep + gap
+    private int nextCycle = 0;			// from the next beep on
+    private int pos = 0;			// frames into the cycle
+    private final short[] buf = new short[CHUNK];
+
+    // Latency statistics, ns
+    private long lastTime = 0;
+    private int nLatency = 0;
+    private long sumLatency = 0;
+    private long maxLatency = 0;
+
+    /**
+     * New vertical speed, m/s. Any thread; cheap.
+     */
+    public void setVsi(float v) {
+	vsi = v;
+	vsiTime = System.nanoTime();
+    }
+
+    public synchronized void start() {
+	if (running) return;
+	running = true;
+	thread = new Thread(this, "vario");
+	thread.start();
+    }
+
+    /**
+     * Stop the tone and wait for the audio thread to finish.
+     */
+    public synchronized void stop() {
+	if (!running) return;
+	running = false;
+	try {
+	    thread.join();
+	} catch (InterruptedException e) { }
+	thread = null;
+    }
+
+    public void run() {
+	Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+	try {
+	    play();
+	} finally {
+	    // Also if the audio failed, so start() can try again
+	    running = false;
+	}
+    }
+
+    /**
+     * Open the track and feed it until stopped or it fails.
+     */
+    private void play() {
+	int min = AudioTrack.getMinBufferSize(RATE,
+	  AudioFormat.CHANNEL_CONFIGURATION_MONO,
+	  AudioFormat.ENCODING_PCM_16BIT);
+	// Smallest buffer the device allows, in whole chunks
+	int bytes = Math.max(min, 2 * CHUNK * 2);
+	bytes = (bytes + 2 * CHUNK - 1) / (2 * CHUNK) * (2 * CHUNK);
+	AudioTrack track;
+	try {
+	    track = new AudioTrack(AudioManager.STREAM_MUSIC, RATE,
+	      AudioFormat.CHANNEL_CONFIGURATION_MONO,
+	      AudioFormat.ENCODING_PCM_16BIT, bytes, AudioTrack.MODE_STREAM);
+	} catch (IllegalArgumentException e) {
+	    Log.e(TAG, "Unable to open audio", e);
+	    return;
+	}
+	if (track.getState() != AudioTrack.STATE_INITIALIZED) {
+	    Log.e(TAG, "Unable to open audio");
+	    track.release();
+	    return;
+	}
+	Log.d(TAG, "Vario buffer " + bytes / 2 * 1000 / RATE + " ms");
+	nLatency = 0;
+	sumLatency = maxLatency = 0;
+	long written = 0;
+	track.play();
+	while (running) {
+	    long now = System.nanoTime();
+	    long t = vsiTime;
+	    float v = t == 0 || now - t > STALE ? 0 : vsi;
+	    if (t != lastTime) {
+		lastTime = t;
+		long queued = written -
+		  (track.getPlaybackHeadPosition() & 0xffffffffL);
+		latency(now - t + queued * 1000000000L / RATE);
+	    }
+	    setTone(v);
+	    render(buf, CHUNK);
+	    int n = track.write(buf, 0, CHUNK);	// blocks while full
+	    if (n < 0) {
+		Log.e(TAG, "Audio write failed: " + n);
+		break;
+	    }
+	    written += n;
+	}
+	track.stop();
+	track.release();
+	Log.d(TAG, "Vario latency mean " + getMeanLatency() + " ms, max " +
+	  getMaxLatency() + " ms over " + nLatency + " readings");
+    }
+
+    private void latency(long ns) {
+	++nLatency;
+	sumLatency += ns;
+	if (ns > maxLatency) maxLatency = ns;
+    }
+
+    /** Mean sample-to-sound latency, ms */
+    public int getMeanLatency() {
+	return nLatency == 0 ? 0 : (int)(sumLatency / nLatency / 1000000);
+    }
+
+    /** Worst sample-to-sound latency, ms */
+    public int getMaxLatency() {
+	return (int)(maxLatency / 1000000);
+    }
+
+    /**
+     * Set pitch and cadence for this vertical speed. The pitch follows
+     * at once; a new beep rate takes effect at the next beep, except
+     * that going from quiet to climbing starts a beep straight away.
+     */
+    void setTone(float v) {
+	float hz;
+	if (v >= LIFT) {
+	    hz = Math.min(CLIMB_HZ + (v - LIFT) * CLIMB_HZ_MS, MAX_HZ);
+	    float beeps = Math.min(BEEPS + (v - LIFT) * BEEPS_MS, MAX_BEEPS);
+	    nextCycle = (int)(RATE / beeps);
+	    if (!beeping) {
+		cycle = nextCycle;
+		pos = 0;
+		beeping = true;
+	    }
+	} else if (v <= SINK) {
+	    hz = Math.max(SINK_HZ + (v - SINK) * SINK_HZ_MS, MIN_HZ);
+	    beeping = false;
+	    target = VOLUME;
+	} else {
+	    hz = 0;
+	    beeping = false;
+	    target = 0;
+	}
+	if (hz > 0) step = (int)(hz * 4294967296.0 / RATE);
+    }
+
+    /**
+     * Fill n frames of buf.
+     */
+    void render(short[] buf, int n) {
+	int dg = VOLUME / RAMP;
+	for (int i = 0; i < n; ++i) {
+	    if (beeping) {
+		// Tone for the first half of the cycle
+		target = pos < cycle / 2 ? VOLUME : 0;
+		if (++pos >= cycle) {
+		    pos = 0;
+		    cycle = nextCycle;
+		}
+	    }
+	    if (gain < target) gain = Math.min(gain + dg, target);
+	    else if (gain > target) gain = Math.max(gain - dg, target);
+	    buf[i] = (short)(WAVE[phase >>> (32 - TABLE_BITS)] * gain >> 15);
+	    phase += step;
+	}
+    }
+}
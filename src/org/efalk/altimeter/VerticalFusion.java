@@ -0,0 +1,128 @@
+/**
+ * Combines the accelerometer with the barometer for a quick VSI.
+ */
+
+package org.efalk.altimeter;
+
+/**
+ * Third-order complementary filter for vertical speed. The barometer
+ * is accurate in the long run but slow: by the time its noise has
+ * been damped out, the VSI lags by a couple of seconds. The
+ * accelerometer is fast but drifts when integrated. Here, vertical
+ * acceleration is integrated to velocity and altitude, and the
+ * altitude error against the barometer pulls both back, as well as an
+ * estimate of the accelerometer bias.
+ *
+ * With e = baro - h, per accelerometer sample:
+ *
+ *   b += K3 e dt
+ *   v += (a + b + K2 e) dt
+ *   h += (v + K1 e) dt
+ *
+ * K1 = 3/TAU, K2 = 3/TAU^2, K3 = 1/TAU^3 put all three poles at
+ * -1/TAU. Below 1/TAU the result follows the barometer, above it the
+ * accelerometer.
+ *
+ * Vertical acceleration is the linear acceleration (gravity removed)
+ * projected onto the gravity vector, both in the device frame, so no
+ * rotation matrix is needed.
+ *
+ * No allocation and no Android dependencies; feed it from sensor
+ * events, or from a recorded or synthetic trace.
+ */
+public class VerticalFusion {
+    private static final float TAU = 1.5f;		// seconds
+    private static final float K1 = 3 / TAU;
+    private static final float K2 = 3 / (TAU*TAU);
+    private static final float K3 = 1 / (TAU*TAU*TAU);
+    private static final float MAX_BIAS = 0.5f;		// m/s^2
+    private static final long MAX_GAP = 500000000L;	// ns
+
+    private float h, v, b;		// altitude, speed, accel bias
+    private float baro, baroVsi;	// latest barometric values
+    private boolean haveBaro = false;
+    private boolean running = false;
+    private float gx, gy, gz = 1;	// unit vector, up
+    private long lastTs = 0;
+
+    /** Filtered altitude, meters */
+    public float getAltitude() {
+	return h;
+    }
+
+    /** Vertical speed, meters/second, up is positive */
+    public float getVsi() {
+	return v;
+    }
+
+    /** Estimated accelerometer bias, m/s^2 */
+    public float getBias() {
+	return b;
+    }
+
+    /** True once both sensors have reported */
+    public boolean isRunning() {
+	return running;
+    }
+
+    /**
+     * Start over, e.g. after the sensors have been off. The bias
+     * estimate is kept.
+     */
+    public void reset() {
+	haveBaro = false;
+	running = false;
+    }
+
+    /**
+     * New barometric altitude. It's held until the next one; there's
+     * no need to synchronize it with the accelerometer.
+     * @param alt  altitude, meters (undamped is best)
+     * @param vsi  barometric VSI, used to (re)start the filter
+     */
+    public void baro(float alt, float vsi) {
+	baro = alt;
+	baroVsi = vsi;
+	if (!haveBaro) {
+	    haveBaro = true;
+	    h = alt;
+	    v = vsi;
+	}
+    }
+
+    /**
+     * New gravity vector, device frame, any units.
+     */
+    public void gravity(float x, float y, float z) {
+	float n = (float)Math.sqrt(x*x + y*y + z*z);
+	if (n <= 0) return;
+	gx = x / n;
+	gy = y / n;
+	gz = z / n;
+    }
+
+    /**
+     * New linear acceleration sample, device frame, m/s^2.
+     * @param ts  timestamp, ns
+     */
+    public void accel(long ts, float x, float y, float z) {
+	long gap = ts - lastTs;
+	lastTs = ts;
+	if (!haveBaro) return;
+	if (!running || gap <= 0 || gap > MAX_GAP) {
+	    // First sample, or we lost track; restart from the barometer
+	    running = true;
+	    h = baro;
+	    v = baroVsi;
+	    return;
+	}
+	float dt = gap * 1e-9f;
+	float a = x*gx + y*gy + z*gz;
+	float e = baro - h;
+	b += K3 * e * dt;
+	if (b > MAX_BIAS) b = MAX_BIAS;
+	else if (b < -MAX_BIAS) b = -MAX_BIAS;
+	v += (a + b + K2 * e) * dt;
+	h += (v + K1 * e) * dt;
+    }
+}
@@ -0,0 +1,267 @@
+/**
+ * Command-line check and benchmark of the airport database.
+ */
+
+package org.efalk.altimeter;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Builds an {@link AirportDb} from synthetic airports and checks and
+ * times it:
+ *
+ *   java -cp bin/classes:tools/bin org.efalk.altimeter.AirportDbBench
+ *
+ * COUNT airports are scattered between 53S and 53N, denser toward
+ * the equator, and written both directly and as an OurAirports-style
+ * CSV with heliports, closed fields and the like mixed in, and names
+ * with quotes and commas in them. This checks that the import keeps just
+ * the airports with an elevation and gives the same file, that every
+ * record reads back, idents cut to 8 characters, that a file in
+ * the old format is refused, and that nearest() finds the same NEAREST
+ * distances as a brute-force search over all of them, for QUERIES
+ * random points and for points on either side of the date line.
+ *
+ * Then the cost of building, importing and opening the file, and of a
+ * query, which must not allocate.
+ *
+ * Exits with status 1 if a check fails.
+ */
+public class AirportDbBench {
+    private static final int COUNT = 40000;
+    private static final int NEAREST = 5;
+    private static final int QUERIES = 2000;
+    private static final String[] SKIPPED =
+      {"heliport", "closed", "seaplane_base", "balloonport"};
+
+    private static boolean ok = true;
+
+    private static void check(boolean cond, String what) {
+	if (!cond) {
+	    System.out.println("FAIL: " + what);
+	    ok = false;
+	}
+    }
+
+    private static double randomLat(Random r) {
+	return Math.toDegrees(Math.asin(r.nextDouble() * 1.6 - 0.8));
+    }
+
+    /**
+     * Write the airports as airports.csv, with a row the import
+     * should skip after every fifth: a field that isn't an airport,
+     * or one with no elevation.
+     */
+    private static void writeCsv(File csv, double[] lat, double[] lon,
+	int[] elev, String[] ident) throws IOException
+    {
+	PrintWriter out = new PrintWriter(new FileWriter(csv));
+	try {
+	    out.println("\"id\",\"ident\",\"type\",\"name\"," +
+	      "\"latitude_deg\",\"longitude_deg\",\"elevation_ft\"," +
+	      "\"continent\"");
+	    for (int i = 0; i < lat.length; ++i) {
+		String type = i % 3 == 0 ? "small_airport" :
+		  i % 3 == 1 ? "medium_airport" : "large_airport";
+		out.println(i + ",\"" + ident[i] + "\",\"" + type +
+		  "\",\"Field \"\"" + i + "\"\", North\"," + lat[i] + "," +
+		  lon[i] + "," + elev[i] + ",\"NA\"");
+		if (i % 10 == 0) {
+		    out.println("x" + i + ",\"X" + i + "\",\"" +
+		      SKIPPED[i / 10 % SKIPPED.length] + "\",\"Pad\"," +
+		      lat[i] + "," + lon[i] + ",100,\"NA\"");
+		} else if (i % 10 == 5) {
+		    out.println("y" + i + ",\"Y" + i +
+		      "\",\"small_airport\",\"Unsurveyed\"," + lat[i] + "," +
+		      lon[i] + ",,\"NA\"");
+		}
+	    }
+	} finally {
+	    out.close();
+	}
+    }
+
+    private static byte[] read(File f) throws IOException {
+	byte[] b = new byte[(int)f.length()];
+	FileInputStream in = new FileInputStream(f);
+	try {
+	    int n = 0;
+	    while (n < b.length) {
+		int k = in.read(b, n, b.length - n);
+		if (k < 0) break;
+		n += k;
+	    }
+	} finally {
+	    in.close();
+	}
+	return b;
+    }
+
+    /**
+     * Give a built file the old format's magic: it must be out of date
+     * and refuse to open, so the app rebuilds it.
+     */
+    private static void oldFormat(File f) throws IOException {
+	RandomAccessFile raf = new RandomAccessFile(f, "rw");
+	try {
+	    raf.writeInt(0x41505431);		// "APT1"
+	} finally {
+	    raf.close();
+	}
+	check(!AirportDb.isCurrent(f), "old file taken as current");
+	try {
+	    new AirportDb(f);
+	    check(false, "old file opened");
+	} catch (IOException e) {
+	}
+    }
+
+    /**
+     * Distances to every airport, as nearest() works them out, sorted.
+     */
+    private static float[] bruteForce(AirportDb db, double lat,
+	double lon)
+    {
+	int n = db.getCount();
+	float[] all = new float[n];
+	float cos = (float)Math.cos(Math.toRadians(lat));
+	for (int i = 0; i < n; ++i) {
+	    float dy = (float)(db.getLat(i) - lat);
+	    float dx = (float)(db.getLon(i) - lon);
+	    if (dx > 180) dx -= 360;
+	    else if (dx < -180) dx += 360;
+	    dx *= cos;
+	    all[i] = (float)Math.sqrt(dx * dx + dy * dy) * 60;
+	}
+	Arrays.sort(all);
+	return all;
+    }
+
+    /** @return true if nearest() agrees with a brute-force search */
+    private static boolean query(AirportDb db, double lat, double lon,
+	int[] ids, float[] dist)
+    {
+	int n = db.nearest(lat, lon, ids, dist);
+	if (n != ids.length) return false;
+	float[] all = bruteForce(db, lat, lon);
+	for (int j = 0; j < n; ++j)
+	    if (Math.abs(all[j] - dist[j]) > 1e-4f) return false;
+	return true;
+    }
+
+    public static void main(String[] args) throws IOException {
+	Random r = new Random(1);
+	double[] lat = new double[COUNT], lon = new double[COUNT];
+	int[] elev = new int[COUNT];
+	String[] ident = new String[COUNT];
+	for (int i = 0; i < COUNT; ++i) {
+	    lat[i] = randomLat(r);
+	    lon[i] = r.nextDouble() * 360 - 180;
+	    elev[i] = r.nextInt(12000) - 200;
+	    // Up to 8 characters, and some longer, which are cut
+	    ident[i] = i % 7 == 0 ? "US-" + i : i % 11 == 0 ?
+	      "XX-" + i + "-LONG" : "K" + i;
+	}
+	File f = File.createTempFile("airports", ".db");
+	File g = File.createTempFile("imported", ".db");
+	File csv = File.createTempFile("airports", ".csv");
+	try {
+	    writeCsv(csv, lat, lon, elev, ident);
+	    for (int rep = 0; rep < 5; ++rep) {
+		long t0 = System.nanoTime();
+		AirportDb.write(f, COUNT, lat, lon, elev, ident);
+		long t1 = System.nanoTime();
+		int n = AirportDb.importCsv(csv, g);
+		long t2 = System.nanoTime();
+		System.out.printf("build %.1f ms, import %.1f ms (%d of " +
+		  "%d rows), %d bytes%n", (t1 - t0) / 1e6, (t2 - t1) / 1e6,
+		  n, COUNT + COUNT / 5, f.length());
+		if (rep == 0) check(n == COUNT, "import count");
+	    }
+	    check(Arrays.equals(read(f), read(g)),
+	      "import differs from build");
+	    check(AirportDb.isCurrent(f), "new file not current");
+	    oldFormat(g);
+
+	    for (int rep = 0; rep < 3; ++rep) {
+		long t0 = System.nanoTime();
+		AirportDb db = new AirportDb(f);
+		long t1 = System.nanoTime();
+		System.out.printf("open %.0f us (%d airports)%n",
+		  (t1 - t0) / 1e3, db.getCount());
+	    }
+	    AirportDb db = new AirportDb(f);
+
+	    // Every record. The file is in cell order, and in the order
+	    // given within a cell.
+	    long[] order = new long[COUNT];
+	    for (int i = 0; i < COUNT; ++i) {
+		long cell = ((long)Math.floor(lat[i]) + 90) * 360 +
+		  (long)Math.floor(lon[i]) + 180;
+		order[i] = cell * COUNT + i;
+	    }
+	    Arrays.sort(order);
+	    int bad = 0;
+	    for (int k = 0; k < COUNT; ++k) {
+		int i = (int)(order[k] % COUNT);
+		// Seven-character idents, as OurAirports has, must fit
+		String id = ident[i].length() > 8 ?
+		  ident[i].substring(0, 8) : ident[i];
+		if (Math.abs(db.getLat(k) - lat[i]) > 5e-7 ||
+		    Math.abs(db.getLon(k) - lon[i]) > 5e-7 ||
+		    db.getElevationFt(k) != elev[i] ||
+		    !db.getIdent(k).equals(id))
+		    ++bad;
+	    }
+	    System.out.printf("%d records, %d don't read back%n", COUNT, bad);
+	    check(bad == 0, "records");
+
+	    int[] ids = new int[NEAREST];
+	    float[] dist = new float[NEAREST];
+	    bad = 0;
+	    for (int q = 0; q < QUERIES; ++q)
+		if (!query(db, randomLat(r), r.nextDouble() * 360 - 180, ids,
+		    dist))
+		    ++bad;
+	    double[] edge = {-179.999, -179.5, 179.5, 179.999, 180};
+	    for (double l : edge)
+		for (int la = -50; la <= 50; la += 10)
+		    if (!query(db, la + 0.5, l, ids, dist)) ++bad;
+	    System.out.printf("%d queries, %d differ from a brute-force " +
+	      "search%n", QUERIES + edge.length * 11, bad);
+	    check(bad == 0, "nearest");
+
+	    double[] qa = new double[4096], qo = new double[4096];
+	    for (int i = 0; i < qa.length; ++i) {
+		qa[i] = randomLat(r);
+		qo[i] = r.nextDouble() * 360 - 180;
+	    }
+	    int n = 1000000;
+	    for (int rep = 0; rep < 3; ++rep) {
+		long found = 0;
+		long a = Bench.allocated();
+		long t0 = System.nanoTime();
+		for (int i = 0; i < n; ++i)
+		    found += db.nearest(qa[i & 4095], qo[i & 4095], ids, dist);
+		long t1 = System.nanoTime();
+		long bytes = Bench.allocatedSince(a);
+		System.out.printf("nearest %d: %.2f us per query, %d bytes " +
+		  "allocated (%.2f found)%n", NEAREST, (t1 - t0) / 1e3 / n,
+		  bytes, found / (double)n);
+		if (rep == 2) check(bytes <= 0, "queries allocate");
+	    }
+	} finally {
+	    f.delete();
+	    g.delete();
+	    csv.delete();
+	}
+	if (!ok) System.exit(1);
+    }
+}
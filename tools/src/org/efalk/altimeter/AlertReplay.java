@@ -0,0 +1,214 @@
+/**
+ * Command-line replay of the altitude alerter.
+ */
+
+package org.efalk.altimeter;
+
+import java.util.Random;
+
+/**
+ * Flies synthetic climb and descent profiles through the same
+ * {@link SpikeFilter}, {@link Barometer} and {@link AlertEngine} the
+ * service uses, and checks which alerts fire and where:
+ *
+ *   java -cp bin/classes:tools/bin org.efalk.altimeter.AlertReplay
+ *
+ * Each profile is sampled at the NORMAL rate with 0.02 mB of sensor
+ * noise (0.05 mB on the band edge) and given 5 s for the filter to
+ * settle before the alerter sees it. The capture band is
+ * CAPTURE_BAND and the approach alert comes APPROACH before it, so
+ * capturing 1500 m climbing should give one at 1140 m, plus up to a
+ * second of debounce and the filter's lag. A profile expects a list
+ * of alerts, in order, each at an altitude in a given range; a
+ * missing, extra or misplaced alert is a failure. Then the cost per
+ * sample is measured with all MAX_RULES rules in use, which must not
+ * allocate.
+ *
+ * Exits with status 1 if a check fails.
+ */
+public class AlertReplay {
+    private static final long PERIOD =			// ns
+      SampleRateController.PERIOD[SampleRateController.NORMAL] * 1000L;
+    private static final double SETTLE = 5;		// s
+    private static final String[] NAMES =
+      {"", "APPROACH", "DEVIATION", "MINIMUMS", "SINK"};
+
+    private static boolean ok = true;
+
+    /** Altitude, meters, at t seconds */
+    private interface Profile {
+	double h(double t);
+    }
+
+    /**
+     * One flight.
+     * @param expect  alert, lowest and highest altitude, for each
+     *   alert expected, in order
+     */
+    private static void fly(String name, AlertEngine engine,
+	Profile profile, double seconds, double noise, double[][] expect)
+    {
+	final int[] alerts = new int[16];
+	final float[] where = new float[16];
+	final long[] when = new long[16];
+	final int[] n = new int[1];
+	AlertEngine.Listener l = new AlertEngine.Listener() {
+	    public void onAlert(int rule, int alert, long ts, float alt) {
+		if (n[0] == alerts.length) return;
+		alerts[n[0]] = alert;
+		where[n[0]] = alt;
+		when[n[0]++] = ts;
+	    }
+	};
+	Random r = new Random(name.hashCode());
+	SpikeFilter spikes = new SpikeFilter();
+	Barometer baro = new Barometer();
+	for (long ts = 0; ts < seconds * 1e9; ts += PERIOD) {
+	    double t = ts * 1e-9;
+	    float p = Barometer.a2p(1013.25f, (float)profile.h(t)) +
+	      (float)(r.nextGaussian() * noise);
+	    float alt = baro.p2aDamped(spikes.filter(ts, p), ts);
+	    if (t < SETTLE) continue;
+	    if (engine.update(ts, alt, baro.vsi)) engine.drain(l);
+	}
+
+	StringBuilder sb = new StringBuilder();
+	boolean pass = n[0] == expect.length;
+	for (int i = 0; i < n[0]; ++i) {
+	    sb.append(String.format(" %s %.0f m at %.1f s",
+	      NAMES[alerts[i]], where[i], when[i] * 1e-9));
+	    if (i < expect.length && (alerts[i] != (int)expect[i][0] ||
+		where[i] < expect[i][1] || where[i] > expect[i][2]))
+		pass = false;
+	}
+	System.out.printf("%-36s%s%n", name, n[0] == 0 ? " none" : sb);
+	if (!pass) {
+	    sb.setLength(0);
+	    for (double[] e : expect)
+		sb.append(String.format(" %s %.0f-%.0f m", NAMES[(int)e[0]],
+		  e[1], e[2]));
+	    System.out.println("FAIL: expected" +
+	      (expect.length == 0 ? " none" : sb));
+	    ok = false;
+	}
+    }
+
+    private static double[] expect(int alert, double lo, double hi) {
+	return new double[] {alert, lo, hi};
+    }
+
+    public static void main(String[] args) {
+	final int APPROACH = AlertEngine.ALERT_APPROACH;
+	final int DEVIATION = AlertEngine.ALERT_DEVIATION;
+	final int MINIMUMS = AlertEngine.ALERT_MINIMUMS;
+	final int SINK = AlertEngine.ALERT_SINK;
+	final float band = AlertEngine.CAPTURE_BAND;
+
+	AlertEngine e = new AlertEngine();
+	e.addCapture(1500, band);
+	fly("climb 5 m/s to 1500 m, level", e, new Profile() {
+	    public double h(double t) {
+		return t < 300 ? 5 * t : 1500;
+	    }
+	}, 900, 0.02, new double[][] {
+	    expect(APPROACH, 1140, 1160)});
+
+	e = new AlertEngine();
+	e.addCapture(2000, band);
+	fly("descend 5 m/s to 2000 m, level", e, new Profile() {
+	    public double h(double t) {
+		return t < 200 ? 3000 - 5 * t : 2000;
+	    }
+	}, 600, 0.02, new double[][] {
+	    expect(APPROACH, 2340, 2360)});
+
+	e = new AlertEngine();
+	e.addCapture(1500, band);
+	fly("capture 1500 m, drift up to 1600 m", e, new Profile() {
+	    public double h(double t) {
+		if (t < 300) return 5 * t;
+		if (t < 600) return 1500;
+		return Math.min(1600, 1500 + (t - 600) * 0.5);
+	    }
+	}, 900, 0.02, new double[][] {
+	    expect(APPROACH, 1140, 1160),
+	    expect(DEVIATION, 1575, 1580)});
+
+	e = new AlertEngine();
+	e.addCapture(1500, band);
+	fly("level on the band edge, 1440 m", e, new Profile() {
+	    public double h(double t) {
+		return t < 300 ? 4.8 * t : 1440;
+	    }
+	}, 900, 0.05, new double[][] {expect(APPROACH, 1140, 1160)});
+
+	e = new AlertEngine();
+	e.addMinimums(200);
+	fly("approach to 200 m, go around, again", e, new Profile() {
+	    public double h(double t) {
+		if (t < 160) return 800 - 4 * t;
+		if (t < 220) return 160 + 5 * (t - 160);
+		if (t < 330) return 460 - 3.5 * (t - 220);
+		return 75;
+	    }
+	}, 400, 0.02, new double[][] {
+	    expect(MINIMUMS, 190, 200),
+	    expect(MINIMUMS, 190, 200)});
+
+	e = new AlertEngine();
+	e.addSink(10);
+	fly("sink 12 m/s for 5 s, then 9.5 m/s", e, new Profile() {
+	    public double h(double t) {
+		if (t < 20) return 2000;
+		if (t < 25) return 2000 - 12 * (t - 20);
+		return 1940 - 9.5 * (t - 25);
+	    }
+	}, 120, 0.02, new double[][] {expect(SINK, 1940, 1990)});
+
+	e = new AlertEngine();
+	e.addBand(900, 1100);
+	fly("band 900-1100 m, wander +-120 m", e, new Profile() {
+	    public double h(double t) {
+		return 1000 + 120 * Math.sin(t / 60);
+	    }
+	}, 600, 0.02, new double[][] {
+	    expect(DEVIATION, 1100, 1105),
+	    expect(DEVIATION, 895, 900),
+	    expect(DEVIATION, 1100, 1105)});
+
+	// Cost with every rule in use
+	e = new AlertEngine();
+	for (int i = 0; i < AlertEngine.MAX_RULES / 4; ++i) {
+	    e.addCapture(1000 + i * 500, band);
+	    e.addMinimums(100 + i * 50);
+	    e.addSink(8 + i);
+	    e.addBand(500 + i * 100, 2000);
+	}
+	Random r = new Random(9);
+	float[] alt = new float[1024], vsi = new float[1024];
+	for (int i = 0; i < alt.length; ++i) {
+	    alt[i] = 1000 + (float)r.nextGaussian() * 300;
+	    vsi[i] = (float)r.nextGaussian() * 5;
+	}
+	int samples = 10000000;
+	for (int rep = 0; rep < 3; ++rep) {
+	    int fired = 0;
+	    long a = Bench.allocated();
+	    long t0 = System.nanoTime();
+	    for (int i = 0; i < samples; ++i) {
+		if (e.update(i * PERIOD, alt[i & 1023], vsi[i & 1023]))
+		    fired += e.drain(null);
+	    }
+	    long t1 = System.nanoTime();
+	    long bytes = Bench.allocatedSince(a);
+	    System.out.printf("%d rules: %.1f ns per sample, %d alerts, " +
+	      "%d bytes allocated%n", AlertEngine.MAX_RULES,
+	      (t1 - t0) / (double)samples, fired, bytes);
+	    if (rep == 2 && bytes > 0) {
+		System.out.println("FAIL: the alerter allocates");
+		ok = false;
+	    }
+	}
+	if (!ok) System.exit(1);
+    }
+}
@@ -0,0 +1,185 @@
+/**
+ * Command-line check of the barograph record.
+ */
+
+package org.efalk.altimeter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+/**
+ * Reports what barograph mode costs, from a record pulled off a
+ * device or from a simulated one:
+ *
+ *   adb pull /data/data/org.efalk.altimeter/files/barograph.dat
+ *   java -cp bin/classes:tools/bin org.efalk.altimeter.BarographCheck \
+ *       barograph.dat
+ *
+ * For a device record this prints the counters {@link
+ * BarographService} keeps in the header: wakeups per hour, seconds
+ * awake per wakeup and the resulting duty cycle, along with the span
+ * of the readings and the longest gap between them, which shows
+ * whether the system let the alarm slip. The record is opened
+ * read-only, so a file that doesn't parse is reported, not changed.
+ *
+ * With no file, 150 hours of inexact 15-minute alarms, each up to a
+ * minute early or late and awake for BURST_MS, are written to a
+ * temporary record the way the service writes them. This checks that
+ * the rate is 4 an hour, that the ring wraps and keeps CAPACITY
+ * readings in order, that the 3-hour tendency recovers a synthetic
+ * fall of 2 mB an hour, and what the file I/O costs per wakeup.
+ * Then, with the header spoilt, a read-only open must fail without
+ * touching the file, and a writable one must start it over.
+ * Exits with status 1 if a check fails.
+ */
+public class BarographCheck {
+    private static final long HOUR = 3600000L;		// ms
+    private static final long INTERVAL = 15 * 60000L;	// ms
+    private static final long BURST_MS = 1200;
+    private static final int HOURS = 150;
+
+    private static boolean ok = true;
+    private static long t0;
+
+    /** Synthetic pressure h hours in, mB */
+    private static double pressure(double h) {
+	double p = 1013 + 3 * Math.sin(h / 12);
+	if (h > HOURS - 3) p -= (h - (HOURS - 3)) * 2;
+	return p;
+    }
+
+    /**
+     * Print the counters and readings.
+     * @param now        time to count wakeups per hour up to
+     * @param simulated  also check what the simulation should give
+     */
+    private static void report(Barograph b, long now, boolean simulated)
+      throws IOException
+    {
+	long[] t = new long[Barograph.CAPACITY];
+	float[] p = new float[Barograph.CAPACITY];
+	int n = b.read(t, p);
+	long gap = 0;
+	boolean ordered = true;
+	for (int i = 1; i < n; ++i) {
+	    gap = Math.max(gap, t[i] - t[i-1]);
+	    if (t[i] <= t[i-1]) ordered = false;
+	}
+	int w = b.getWakeups();
+	float perHour = b.wakeupsPerHour(now);
+	float awake = w > 0 ? b.getAwake() / 1000f / w : 0;
+	System.out.printf("%d wakeups, %.2f per hour, %.1f s awake each, " +
+	  "duty cycle %.3f%%%n", w, perHour, awake,
+	  perHour * awake / 36);
+	if (n > 0)
+	    System.out.printf("%d readings over %.1f h, " +
+	      "longest gap %.1f min, %s%n", n,
+	      (t[n-1] - t[0]) / (double)HOUR, gap / 60000.0,
+	      ordered ? "in order" : "OUT OF ORDER");
+	float tend = Barograph.tendency(t, p, n, 3 * HOUR);
+	System.out.printf("3 h tendency %.2f mB%n", tend);
+	check(ordered, "readings out of order");
+	if (!simulated) return;
+	check(Math.abs(perHour - 4) < 0.1, "not 4 wakeups an hour");
+	check(n == Barograph.CAPACITY, "ring didn't fill");
+	double h = (t[n-1] - t0) / (double)HOUR;
+	double want = pressure(h) - pressure(h - 3);
+	System.out.printf("  expected %.2f mB%n", want);
+	check(Math.abs(tend - want) < 0.2, "tendency off");
+    }
+
+    /**
+     * Spoil the header: a read-only open must fail and leave the file
+     * as it was, and only a writable one may start it over.
+     */
+    private static void damaged(File f) throws IOException {
+	RandomAccessFile raf = new RandomAccessFile(f, "rw");
+	try {
+	    raf.writeInt(0);
+	} finally {
+	    raf.close();
+	}
+	long len = f.length();
+	try {
+	    new Barograph(f, false).close();
+	    check(false, "damaged file opened read-only");
+	} catch (IOException e) {
+	    System.out.println("damaged file, read-only: " + e.getMessage());
+	}
+	check(f.length() == len, "read-only open changed the file");
+	Barograph b = new Barograph(f);
+	try {
+	    check(b.read(new long[1], new float[1]) == 0,
+	      "damaged file not started over");
+	} finally {
+	    b.close();
+	}
+    }
+
+    private static void simulate() throws IOException {
+	File f = File.createTempFile("barograph", ".dat");
+	f.delete();
+	try {
+	    Random r = new Random(7);
+	    Barograph b = new Barograph(f);
+	    t0 = b.getSince();
+	    b.close();
+	    long t = t0, ns = 0;
+	    int wakes = 0;
+	    while (t < t0 + HOURS * HOUR) {
+		t += INTERVAL + r.nextInt(120000) - 60000;
+		double h = (t - t0) / (double)HOUR;
+		double pres = pressure(h) + r.nextGaussian() * 0.05;
+		long s = System.nanoTime();
+		b = new Barograph(f);
+		b.add(t, (float)pres);
+		b.wakeup(BURST_MS);
+		b.close();
+		ns += System.nanoTime() - s;
+		++wakes;
+	    }
+	    b = new Barograph(f);
+	    try {
+		System.out.printf("file %d bytes%n", f.length());
+		report(b, t, true);
+	    } finally {
+		b.close();
+	    }
+	    System.out.printf("file I/O per wakeup (open, add, count, " +
+	      "close): %.0f us%n", ns / 1e3 / wakes);
+	    check(f.length() == Barograph.HDRSIZE +
+	      Barograph.CAPACITY * Barograph.RECSIZE, "file grew");
+	    damaged(f);
+	} finally {
+	    f.delete();
+	}
+    }
+
+    public static void main(String[] args) throws IOException {
+	if (args.length > 0) {
+	    File f = new File(args[0]);
+	    if (!f.exists()) {
+		System.err.println(args[0] + ": no such file");
+		System.exit(2);
+	    }
+	    Barograph b = new Barograph(f, false);
+	    try {
+		report(b, System.currentTimeMillis(), false);
+	    } finally {
+		b.close();
+	    }
+	} else {
+	    simulate();
+	}
+	if (!ok) System.exit(1);
+    }
+
+    private static void check(boolean pass, String what) {
+	if (!pass) {
+	    System.out.println("FAIL: " + what);
+	    ok = false;
+	}
+    }
+}
@@ -0,0 +1,60 @@
+/**
+ * Helpers for the command-line test and benchmark drivers.
+ */
+
+package org.efalk.altimeter;
+
+import java.lang.reflect.Method;
+
+/**
+ * Bits shared by the drivers that check and time the app's pure-Java
+ * parts on a desktop JVM, such as {@link SpikeFilterBench}. Like the
+ * drivers, this lives under tools/ and isn't built into the app.
+ *
+ * The allocation counter is HotSpot's per-thread one, found by
+ * reflection so the drivers still run on other JVMs, where it
+ * reports -1.
+ */
+final class Bench {
+    private static Object mx;
+    private static Method allocated;
+    private static long overhead = 0;	// of allocated() itself
+
+    static {
+	try {
+	    Class<?> mf =
+	      Class.forName("java.lang.management.ManagementFactory");
+	    mx = mf.getMethod("getThreadMXBean").invoke(null);
+	    allocated = Class.forName("com.sun.management.ThreadMXBean")
+	      .getMethod("getThreadAllocatedBytes", long.class);
+	    long a = allocated();
+	    overhead = allocated() - a;
+	} catch (Exception e) {
+	    allocated = null;		// not HotSpot
+	}
+    }
+
+    private Bench() { }
+
+    /**
+     * Bytes allocated by this thread so far, or -1 if we can't tell.
+     */
+    static long allocated() {
+	if (allocated == null) return -1;
+	try {
+	    return ((Long)allocated.invoke(mx,
+	      Thread.currentThread().getId())).longValue();
+	} catch (Exception e) {
+	    return -1;
+	}
+    }
+
+    /**
+     * Bytes allocated by this thread since allocated() returned start,
+     * or -1 if we can't tell.
+     */
+    static long allocatedSince(long start) {
+	long a = allocated();
+	return start < 0 || a < 0 ? -1 : Math.max(a - start - overhead, 0);
+    }
+}
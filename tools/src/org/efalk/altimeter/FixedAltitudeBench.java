@@ -0,0 +1,105 @@
+/**
+ * Command-line check and benchmark of the integer altitude engine.
+ */
+
+package org.efalk.altimeter;
+
+import java.util.Random;
+
+/**
+ * Compares {@link FixedAltitude} with the float formula in
+ * {@link Barometer} for accuracy and speed:
+ *
+ *   java -cp bin/classes:tools/bin org.efalk.altimeter.FixedAltitudeBench
+ *
+ * Accuracy is measured against the formula in double precision, every
+ * 0.37 m through each band of altitude, with Kollsman settings of
+ * 950, 1013.25 and 1040 mB and the pressure rounded to 0.01 mB as the
+ * engine takes it. The fixed-point error must be within what the
+ * FixedAltitude class comment promises for the band.
+ *
+ * Speed is per conversion over random pressures from 700 to 1050 mB,
+ * for Barometer.p2a() with and without setFixedPoint(), and for
+ * FixedAltitude.altitude() on its own. This JVM has a hardware FPU,
+ * so the float path is far cheaper here than it is on the soft-float
+ * armeabi devices the engine is for; the figures bound the integer
+ * path's cost, not the gain. Neither may allocate.
+ *
+ * Exits with status 1 if a check fails.
+ */
+public class FixedAltitudeBench {
+    private static final int[] KOLLSMAN = {95000, 101325, 104000};
+    private static final double[][] BANDS = {	// low, high, tolerance, m
+	{-500, 3048, 0.02},
+	{3048, 10000, 0.05},
+	{10000, 18000, 0.5},
+    };
+    private static final int N = 4000000;
+
+    private static boolean ok = true;
+
+    private static double exact(double pres, double kollsman) {
+	return (1 - Math.pow(pres / kollsman, 1 / 5.25588)) / 2.25577e-5;
+    }
+
+    public static void main(String[] args) {
+	System.out.println("band              float err  fixed err  allowed");
+	for (double[] band : BANDS) {
+	    double floatErr = 0, fixedErr = 0;
+	    for (int k : KOLLSMAN) {
+		FixedAltitude fx = new FixedAltitude(k);
+		float kf = k / 100f;
+		for (double h = band[0]; h < band[1]; h += 0.37) {
+		    int pc = Math.round(Barometer.a2p(kf, (float)h) * 100);
+		    double e = exact(pc / 100.0, kf);
+		    floatErr = Math.max(floatErr,
+		      Math.abs(Barometer.p2a(kf, pc / 100f) - e));
+		    fixedErr = Math.max(fixedErr,
+		      Math.abs(fx.altitude(pc) / 100.0 - e));
+		}
+	    }
+	    System.out.printf("%6.0f..%6.0f m  %7.3f m  %7.3f m  %5.2f m%n",
+	      band[0], band[1], floatErr, fixedErr, band[2]);
+	    check(fixedErr <= band[2], "fixed-point error over tolerance");
+	}
+
+	Random r = new Random(1);
+	int[] pc = new int[N];
+	float[] pf = new float[N];
+	for (int i = 0; i < N; ++i) {
+	    pc[i] = 70000 + r.nextInt(35000);
+	    pf[i] = pc[i] / 100f;
+	}
+	Barometer flt = new Barometer();
+	Barometer fix = new Barometer();
+	fix.setFixedPoint(true);
+	FixedAltitude fx = new FixedAltitude(101325);
+	for (int rep = 0; rep < 5; ++rep) {
+	    long a = Bench.allocated();
+	    long t0 = System.nanoTime();
+	    float sf = 0;
+	    for (int i = 0; i < N; ++i) sf += flt.p2a(pf[i]);
+	    long t1 = System.nanoTime();
+	    float sx = 0;
+	    for (int i = 0; i < N; ++i) sx += fix.p2a(pf[i]);
+	    long t2 = System.nanoTime();
+	    long si = 0;
+	    for (int i = 0; i < N; ++i) si += fx.altitude(pc[i]);
+	    long t3 = System.nanoTime();
+	    long bytes = Bench.allocatedSince(a);
+	    System.out.printf("p2a float %5.1f ns, p2a fixed %5.1f ns, " +
+	      "altitude() %4.1f ns, %d bytes (%.0f %.0f %d)%n",
+	      (t1 - t0) / (double)N, (t2 - t1) / (double)N,
+	      (t3 - t2) / (double)N, bytes, sf / N, sx / N, si / N);
+	    if (rep == 4) check(bytes <= 0, "conversion allocates");
+	}
+	if (!ok) System.exit(1);
+    }
+
+    private static void check(boolean pass, String what) {
+	if (!pass) {
+	    System.out.println("FAIL: " + what);
+	    ok = false;
+	}
+    }
+}
@@ -0,0 +1,180 @@
+/**
+ * Command-line replay of the accelerometer fusion.
+ */
+
+package org.efalk.altimeter;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Feeds {@link VerticalFusion} an accelerometer and pressure trace the
+ * way the service does, next to the plain barometric VSI:
+ *
+ *   java -cp bin/classes:tools/bin org.efalk.altimeter.FusionReplay \
+ *       [trace.csv]
+ *
+ * A recorded trace is a CSV file of sensor events, one per line:
+ *
+ *   ts,P,mB		pressure
+ *   ts,G,x,y,z		gravity, device frame
+ *   ts,A,x,y,z		linear acceleration, device frame, m/s^2
+ *
+ * with ts in ns. The output is ts,baro_vsi,fused_vsi after each
+ * accelerometer event, for plotting.
+ *
+ * With no trace, a synthetic one is checked instead: a tilted phone,
+ * 100 Hz accelerometer with 0.05 m/s^2 of noise and a 0.1 m/s^2
+ * bias, a 16 Hz barometer with 0.25 m of noise, and a climb at 3 m/s
+ * from 20 s to 40 s. The fused VSI must reach 90% of the climb rate
+ * within MAX_RISE, be no noisier than the barometer's while level,
+ * and allocate nothing. Exits with status 1 if not.
+ */
+public class FusionReplay {
+    private static final double MAX_RISE = 0.5;		// seconds
+
+    private final SpikeFilter spikes = new SpikeFilter();
+    private final Barometer baro = new Barometer();
+    private final VerticalFusion fusion = new VerticalFusion();
+
+    private void pressure(long ts, float mB) {
+	baro.p2aDamped(spikes.filter(ts, mB), ts);
+	fusion.baro(baro.raw, baro.vsi);
+    }
+
+    private void replay(String file) throws IOException {
+	BufferedReader in = new BufferedReader(new FileReader(file));
+	try {
+	    String line;
+	    while ((line = in.readLine()) != null) {
+		String[] f = line.split(",");
+		if (f.length < 3) continue;
+		long ts = Long.parseLong(f[0].trim());
+		char type = f[1].trim().charAt(0);
+		if (type == 'P') {
+		    pressure(ts, Float.parseFloat(f[2]));
+		    continue;
+		}
+		if (f.length < 5) continue;
+		float x = Float.parseFloat(f[2]);
+		float y = Float.parseFloat(f[3]);
+		float z = Float.parseFloat(f[4]);
+		if (type == 'G') {
+		    fusion.gravity(x, y, z);
+		} else if (type == 'A') {
+		    fusion.accel(ts, x, y, z);
+		    System.out.println(ts + "," + baro.vsi + "," +
+		      fusion.getVsi());
+		}
+	    }
+	} finally {
+	    in.close();
+	}
+    }
+
+    /** True vertical speed of the synthetic flight, m/s */
+    private static double speed(double t) {
+	if (t < 20) return 0;
+	if (t < 20.5) return 3 * (t - 20) / 0.5;
+	if (t < 40) return 3;
+	if (t < 40.5) return 3 - 3 * (t - 40) / 0.5;
+	return 0;
+    }
+
+    private static double accel(double t) {
+	if (t >= 20 && t < 20.5) return 6;
+	if (t >= 40 && t < 40.5) return -6;
+	return 0;
+    }
+
+    /**
+     * Run the synthetic flight.
+     * @return true if it passes
+     */
+    private boolean synthetic() {
+	Random r = new Random(1);
+	float gy = 6.9f, gz = 6.9f;		// tilted 45 degrees
+	float gn = (float)Math.sqrt(gy * gy + gz * gz);
+	fusion.gravity(0, gy, gz);
+	double h = 100;
+	long period = 10000000L;		// 100 Hz
+	long nextBaro = 0;
+	double baroNoise = 0, fusedNoise = 0, baroErr = 0, fusedErr = 0;
+	int nLevel = 0, nClimb = 0;
+	double baroRise = -1, fusedRise = -1;
+	for (long ts = 0; ts < 60000000000L; ts += period) {
+	    double t = ts * 1e-9;
+	    h += speed(t) * period * 1e-9;
+	    if (ts >= nextBaro) {
+		float alt = (float)(h + r.nextGaussian() * 0.25);
+		pressure(ts, Barometer.a2p(1013.25f, alt));
+		nextBaro += 60000000L;
+	    }
+	    float a = (float)(accel(t) + 0.1 + r.nextGaussian() * 0.05);
+	    fusion.accel(ts, 0, a * gy / gn, a * gz / gn);
+	    float bv = baro.vsi, fv = fusion.getVsi();
+	    if (t > 10 && t < 20) {
+		baroNoise += bv * bv;
+		fusedNoise += fv * fv;
+		++nLevel;
+	    }
+	    if (t > 25 && t < 40) {
+		baroErr += (bv - 3) * (bv - 3);
+		fusedErr += (fv - 3) * (fv - 3);
+		++nClimb;
+	    }
+	    if (t >= 20 && baroRise < 0 && bv > 2.7) baroRise = t - 20;
+	    if (t >= 20 && fusedRise < 0 && fv > 2.7) fusedRise = t - 20;
+	}
+	baroNoise = Math.sqrt(baroNoise / nLevel);
+	fusedNoise = Math.sqrt(fusedNoise / nLevel);
+	System.out.printf("time to 90%% of climb: baro %.2f s, fused %.2f s%n",
+	  baroRise, fusedRise);
+	System.out.printf("VSI noise level:      baro %.3f, fused %.3f m/s%n",
+	  baroNoise, fusedNoise);
+	System.out.printf("VSI error climbing:   baro %.3f, fused %.3f m/s%n",
+	  Math.sqrt(baroErr / nClimb), Math.sqrt(fusedErr / nClimb));
+	System.out.printf("bias correction %.3f m/s^2 (should be -0.100)%n",
+	  fusion.getBias());
+
+	// Cost per accelerometer sample, the 100-200 Hz path
+	VerticalFusion f = new VerticalFusion();
+	f.baro(100, 0);
+	int n = 20000000;
+	long ts = 0;
+	long a0 = Bench.allocated();
+	long t0 = System.nanoTime();
+	for (int i = 0; i < n; ++i) {
+	    if ((i & 7) == 0) f.baro(100, 0);
+	    f.accel(ts += period, 0.01f, 0.02f, 0.03f);
+	}
+	long t1 = System.nanoTime();
+	long bytes = Bench.allocatedSince(a0);
+	System.out.printf("%.1f ns per accelerometer sample, " +
+	  "%d bytes allocated (%.3f)%n", (t1 - t0) / (double)n, bytes,
+	  f.getVsi());
+
+	boolean ok = true;
+	if (fusedRise < 0 || fusedRise > MAX_RISE) {
+	    System.out.println("FAIL: fused VSI too slow");
+	    ok = false;
+	}
+	if (fusedNoise > baroNoise) {
+	    System.out.println("FAIL: fused VSI noisier than the barometer");
+	    ok = false;
+	}
+	if (bytes > 0) {
+	    System.out.println("FAIL: fusion allocates");
+	    ok = false;
+	}
+	return ok;
+    }
+
+    public static void main(String[] args) throws IOException {
+	FusionReplay r = new FusionReplay();
+	if (args.length > 0) r.replay(args[0]);
+	else if (!r.synthetic()) System.exit(1);
+    }
+}
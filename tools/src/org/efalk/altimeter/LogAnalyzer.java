@@ -0,0 +1,213 @@
+/**
+ * Command-line tool to summarize a directory of recorded sessions.
+ */
+
+package org.efalk.altimeter;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Fleet-wide statistics over a directory of session logs, as written
+ * by {@link Recorder}: maximum altitude, maximum climb and sink rates,
+ * and time spent above a set of altitude thresholds.
+ *
+ * This is plain Java and runs on a desktop JVM against the app's
+ * compiled classes:
+ *
+ *   java -cp bin/classes:tools/bin org.efalk.altimeter.LogAnalyzer \
+ *       [-j threads] [-m] [-t threshold]... dir
+ *
+ *   -j  number of worker threads, default one per core
+ *   -m  thresholds and results in meters instead of feet
+ *   -t  altitude threshold; may be repeated
+ *
+ * Each file is decoded in a single streaming pass on a worker thread
+ * and reduced to a {@link Stats}; the per-file results are merged at
+ * the end. Altitude and vertical speed are recomputed from the raw
+ * pressure with the same {@link SpikeFilter} and {@link Barometer}
+ * filters the app uses, so logs from different versions are treated
+ * alike. LogAnalyzerBench times this against file and thread counts.
+ */
+public class LogAnalyzer {
+
+    /**
+     * Summary of one or more sessions. Altitudes in meters, rates in
+     * meters/second, times in ns.
+     */
+    public static class Stats {
+	public int files = 0;
+	public long samples = 0;
+	public long duration = 0;
+	public float maxAlt = -Float.MAX_VALUE;
+	public float maxClimb = 0;
+	public float maxSink = 0;
+	public String maxAltFile, maxClimbFile, maxSinkFile;
+	public final float[] thresholds;
+	public final long[] timeAbove;
+
+	public Stats(float[] thresholds) {
+	    this.thresholds = thresholds;
+	    timeAbove = new long[thresholds.length];
+	}
+
+	/**
+	 * Fold another summary into this one.
+	 */
+	public void merge(Stats o) {
+	    files += o.files;
+	    samples += o.samples;
+	    duration += o.duration;
+	    if (o.maxAlt > maxAlt) {
+		maxAlt = o.maxAlt;
+		maxAltFile = o.maxAltFile;
+	    }
+	    if (o.maxClimb > maxClimb) {
+		maxClimb = o.maxClimb;
+		maxClimbFile = o.maxClimbFile;
+	    }
+	    if (o.maxSink < maxSink) {
+		maxSink = o.maxSink;
+		maxSinkFile = o.maxSinkFile;
+	    }
+	    for (int i = 0; i < timeAbove.length; ++i)
+		timeAbove[i] += o.timeAbove[i];
+	}
+    }
+
+    /**
+     * Analyze one session in a single streaming pass.
+     */
+    public static Stats analyze(File file, float[] thresholds)
+	throws IOException
+    {
+	Stats st = new Stats(thresholds);
+	String name = file.getName();
+	SpikeFilter spikes = new SpikeFilter();
+	Barometer baro = new Barometer();
+	LogReader rdr = new LogReader(file);
+	try {
+	    baro.setKollsman(rdr.kollsman);
+	    long t0 = 0, last = 0;
+	    float lastAlt = 0;
+	    while (rdr.next()) {
+		float alt = baro.p2aDamped(spikes.filter(rdr.ts, rdr.pres),
+		  rdr.ts);
+		float vsi = baro.vsi;
+		if (st.samples == 0) {
+		    t0 = rdr.ts;
+		} else {
+		    long dt = rdr.ts - last;
+		    for (int i = 0; i < thresholds.length; ++i)
+			if (lastAlt >= thresholds[i])
+			    st.timeAbove[i] += dt;
+		}
+		if (alt > st.maxAlt) st.maxAlt = alt;
+		if (vsi > st.maxClimb) st.maxClimb = vsi;
+		if (vsi < st.maxSink) st.maxSink = vsi;
+		++st.samples;
+		last = rdr.ts;
+		lastAlt = alt;
+	    }
+	    st.duration = last - t0;
+	} finally {
+	    rdr.close();
+	}
+	st.files = 1;
+	st.maxAltFile = st.maxClimbFile = st.maxSinkFile = name;
+	return st;
+    }
+
+    /**
+     * Analyze all sessions in a directory, using the given number of
+     * threads, and return the merged result.
+     */
+    public static Stats analyze(File dir, final float[] thresholds,
+	int threads) throws Exception
+    {
+	File[] files = Recorder.list(dir);
+	ExecutorService pool = Executors.newFixedThreadPool(threads);
+	try {
+	    List<Future<Stats>> results =
+	      new ArrayList<Future<Stats>>(files.length);
+	    for (final File f : files) {
+		results.add(pool.submit(new Callable<Stats>() {
+		    public Stats call() throws IOException {
+			return analyze(f, thresholds);
+		    }
+		}));
+	    }
+	    Stats total = new Stats(thresholds);
+	    for (Future<Stats> r : results)
+		total.merge(r.get());
+	    return total;
+	} finally {
+	    pool.shutdown();
+	}
+    }
+
+    public static void main(String[] args) throws Exception {
+	int threads = Runtime.getRuntime().availableProcessors();
+	boolean meters = false;
+	List<Float> thr = new ArrayList<Float>();
+	String dir = null;
+	for (int i = 0; i < args.length; ++i) {
+	    if (args[i].equals("-j") && i+1 < args.length)
+		threads = Integer.parseInt(args[++i]);
+	    else if (args[i].equals("-m"))
+		meters = true;
+	    else if (args[i].equals("-t") && i+1 < args.length)
+		thr.add(Float.valueOf(args[++i]));
+	    else if (dir == null && !args[i].startsWith("-"))
+		dir = args[i];
+	    else
+		usage();
+	}
+	if (dir == null) usage();
+	if (thr.isEmpty()) {
+	    thr.add(meters ? 300f : 1000f);
+	    thr.add(meters ? 1500f : 5000f);
+	    thr.add(meters ? 3000f : 10000f);
+	}
+
+	float conv = meters ? 1 : Altimeter.METER_FT;
+	float[] thresholds = new float[thr.size()];
+	for (int i = 0; i < thresholds.length; ++i)
+	    thresholds[i] = thr.get(i) / conv;
+
+	long t0 = System.nanoTime();
+	Stats st = analyze(new File(dir), thresholds, threads);
+	double secs = (System.nanoTime() - t0) * 1e-9;
+
+	String au = meters ? "m" : "ft";
+	String ru = meters ? "m/s" : "fpm";
+	float rconv = meters ? 1 : Altimeter.METER_FT * 60;
+	System.out.printf("%d files, %d samples, %.1f hours recorded%n",
+	  st.files, st.samples, st.duration * 1e-9 / 3600);
+	if (st.files == 0) return;
+	System.out.printf("max altitude  %8.0f %s  (%s)%n",
+	  st.maxAlt * conv, au, st.maxAltFile);
+	System.out.printf("max climb     %8.0f %s  (%s)%n",
+	  st.maxClimb * rconv, ru, st.maxClimbFile);
+	System.out.printf("max sink      %8.0f %s  (%s)%n",
+	  st.maxSink * rconv, ru, st.maxSinkFile);
+	for (int i = 0; i < thresholds.length; ++i)
+	    System.out.printf("above %6.0f %s  %8.2f hours%n",
+	      thresholds[i] * conv, au, st.timeAbove[i] * 1e-9 / 3600);
+	System.out.printf("%.3f s, %d threads, %.1f files/s, " +
+	  "%.2f Msamples/s%n", secs, threads, st.files / secs,
+	  st.samples / secs / 1e6);
+    }
+
+    private static void usage() {
+	System.err.println(
+	  "usage: LogAnalyzer [-j threads] [-m] [-t threshold]... dir");
+	System.exit(2);
+    }
+}
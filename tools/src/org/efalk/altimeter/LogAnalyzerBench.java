@@ -0,0 +1,153 @@
+/**
+ * Command-line benchmark of the session log analyzer.
+ */
+
+package org.efalk.altimeter;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Times {@link LogAnalyzer} against the number of files and threads:
+ *
+ *   java -cp bin/classes:tools/bin org.efalk.altimeter.LogAnalyzerBench \
+ *       [minutes]
+ *
+ * For each of FILES, that many synthetic sessions of the given length
+ * (default 30 minutes) at HZ are written to a temporary directory, in
+ * the format {@link Recorder} writes. Each is one climb to a few
+ * thousand meters and back, so every threshold is crossed. The
+ * directory is then analyzed with 1 thread and with each of THREADS
+ * and the core count, best of REPS, and samples per second and the
+ * speedup over one thread are reported. Scaling needs as many cores
+ * as threads; the core count the JVM sees is printed first.
+ *
+ * Every run must give the same totals as the single-threaded one, and
+ * those must match the sessions written.
+ *
+ * Exits with status 1 if a check fails.
+ */
+public class LogAnalyzerBench {
+    private static final int[] FILES = {8, 16, 32, 64};
+    private static final int[] THREADS = {2, 4, 8};
+    private static final int HZ = 25;
+    private static final int REPS = 3;
+    private static final int WARMUP = 3;
+    private static final float[] THRESHOLDS = {300, 1500, 3000};  // m
+
+    private static boolean ok = true;
+
+    private static void check(boolean cond, String what) {
+	if (!cond) {
+	    System.out.println("FAIL: " + what);
+	    ok = false;
+	}
+    }
+
+    /** Session f's altitude at sample i of n, m */
+    private static float alt(int f, int i, int n) {
+	return (float)(1600 * (1 - Math.cos(2 * Math.PI * i / n))) + f;
+    }
+
+    private static void write(File dir, int f, int n) throws IOException {
+	File file = new File(dir,
+	  String.format("2026%04d-000000%s", f, Recorder.SUFFIX));
+	DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+	  new FileOutputStream(file), 65536));
+	try {
+	    out.writeInt(Recorder.MAGIC);
+	    out.writeInt(Recorder.VERSION);
+	    out.writeLong(1780000000000L + f * 3600000L);
+	    out.writeFloat(1013.25f);
+	    for (int i = 0; i < n; ++i) {
+		float alt = alt(f, i, n);
+		out.writeLong(1000000000L + i * (1000000000L / HZ));
+		out.writeFloat(Barometer.a2p(1013.25f, alt));
+		out.writeFloat(alt);
+		out.writeFloat(0);
+	    }
+	} finally {
+	    out.close();
+	}
+    }
+
+    private static boolean same(LogAnalyzer.Stats a, LogAnalyzer.Stats b) {
+	if (a.files != b.files || a.samples != b.samples ||
+	    a.duration != b.duration || a.maxAlt != b.maxAlt ||
+	    a.maxClimb != b.maxClimb || a.maxSink != b.maxSink)
+	    return false;
+	for (int i = 0; i < a.timeAbove.length; ++i)
+	    if (a.timeAbove[i] != b.timeAbove[i]) return false;
+	return true;
+    }
+
+    /** Best time of REPS, s */
+    private static double time(File dir, int threads,
+	LogAnalyzer.Stats ref, LogAnalyzer.Stats[] out) throws Exception
+    {
+	double best = Double.MAX_VALUE;
+	for (int rep = 0; rep < REPS; ++rep) {
+	    long t0 = System.nanoTime();
+	    LogAnalyzer.Stats st = LogAnalyzer.analyze(dir, THRESHOLDS,
+	      threads);
+	    best = Math.min(best, (System.nanoTime() - t0) * 1e-9);
+	    if (ref != null && !same(st, ref))
+		check(false, threads + " threads give different totals");
+	    out[0] = st;
+	}
+	return best;
+    }
+
+    public static void main(String[] args) throws Exception {
+	int minutes = args.length > 0 ? Integer.parseInt(args[0]) : 30;
+	int n = minutes * 60 * HZ;
+	int cores = Runtime.getRuntime().availableProcessors();
+	System.out.printf("%d cores; sessions of %d min at %d Hz, %d " +
+	  "samples each%n", cores, minutes, HZ, n);
+	File dir = File.createTempFile("fleet", "");
+	dir.delete();
+	dir.mkdir();
+	LogAnalyzer.Stats[] st = new LogAnalyzer.Stats[1];
+	try {
+	    int have = 0;
+	    for (int files : FILES) {
+		while (have < files) write(dir, have++, n);
+		if (files == FILES[0]) {
+		    // Warm up the JIT, on one thread and several
+		    for (int i = 0; i < WARMUP; ++i) {
+			time(dir, 1, null, st);
+			time(dir, THREADS[0], null, st);
+		    }
+		}
+		double one = time(dir, 1, null, st);
+		LogAnalyzer.Stats ref = st[0];
+		check(ref.files == files && ref.samples == (long)files * n,
+		  "file or sample count");
+		// The highest is the last session's peak, less the
+		// filter's lag
+		float peak = alt(files - 1, n / 2, n);
+		check(Math.abs(ref.maxAlt - peak) < 5, "max altitude " +
+		  ref.maxAlt + ", expected " + peak);
+		System.out.printf("%3d files  1 thread   %6.2f M samples/s%n",
+		  files, ref.samples / one / 1e6);
+		int last = 1;
+		for (int i = 0; i <= THREADS.length; ++i) {
+		    int t = i < THREADS.length ? THREADS[i] : cores;
+		    if (t <= last) continue;
+		    last = t;
+		    double secs = time(dir, t, ref, st);
+		    System.out.printf("%3d files %2d threads  %6.2f M " +
+		      "samples/s, %.2fx%n", files, t,
+		      ref.samples / secs / 1e6, one / secs);
+		}
+	    }
+	} finally {
+	    for (File f : dir.listFiles()) f.delete();
+	    dir.delete();
+	}
+	if (!ok) System.exit(1);
+    }
+}
@@ -0,0 +1,166 @@
+/**
+ * Command-line replay of the low-power display.
+ */
+
+package org.efalk.altimeter;
+
+import java.util.Random;
+
+/**
+ * Counts the display's frames and wakeups per minute with and without
+ * low-power mode, level and in a climb:
+ *
+ *   java -cp bin/classes:tools/bin org.efalk.altimeter.LowPowerReplay
+ *
+ * Pressure readings, 0.01 mB of noise on a steady altitude or a climb
+ * at CLIMB fpm, go through the same {@link SpikeFilter},
+ * {@link Barometer} and {@link SampleRateController} as in the
+ * service, at the rate it picks: adaptive normally, SLOW in low power
+ * with readings batched BATCH ms at a time. Each reading is then
+ * handed to both views as the activity does, and each view's redraws
+ * go through its {@link FrameLimiter} with the period the view uses.
+ *
+ * The dial asks for a frame when the fastest hand would move a pixel,
+ * taking DIAL_PX per foot for a 1080 px dial, and doesn't count the
+ * gauge drum; the chart asks for one with every reading it keeps. An
+ * invalidate draws once, after every reading delivered with it.
+ *
+ * Both views' frames are reported, with the UI wakeups (deliveries)
+ * and the CPU time of the service's filters, the only thing timed
+ * here: frames are counted, not drawn. What a frame takes to draw in
+ * each mode is measured on the device, and the activity logs it with
+ * the frame counts when it pauses. Exits with status 1 if low power
+ * doesn't cut every one of the counts.
+ */
+public class LowPowerReplay {
+    private static final long MINUTE = 60000;		// ms
+    private static final int MINUTES = 3;
+    private static final int WARMUP = 2;		// minutes
+    private static final long BATCH = 500;		// ms
+    private static final long DIAL_PERIOD = 500;	// ms, Altimeter
+    private static final long CHART_PERIOD = 1000;	// ms, HistoryView
+    private static final float DIAL_PX = 2.85f;		// px per foot
+    private static final float CLIMB = 500;		// fpm
+
+    /** One view's frames: invalidate() and the draw that follows. */
+    private static class Screen {
+	final FrameLimiter limiter = new FrameLimiter();
+	long drawAt = -1;		// ms, -1 if not invalidated
+	float drawn = Float.NaN;	// dial: altitude drawn, ft
+	float latest;
+
+	Screen(long period) {
+	    limiter.setPeriod(period);
+	}
+
+	void request(long now) {
+	    long wait = limiter.request(now);
+	    if (wait >= 0) invalidate(now + wait);
+	}
+
+	void invalidate(long t) {
+	    if (drawAt < 0 || t < drawAt) drawAt = t;
+	}
+
+	/** Draw, if invalidated for before or at now */
+	void draw(long now) {
+	    if (drawAt < 0 || drawAt > now) return;
+	    limiter.drawn(drawAt);
+	    drawn = latest;
+	    drawAt = -1;
+	}
+    }
+
+    /**
+     * Replay MINUTES of flight.
+     * @return per minute: readings, UI wakeups, dial frames, chart
+     *   frames, filter CPU in ms
+     */
+    private static double[] run(boolean low, float fpm) {
+	Random r = new Random(7);
+	SpikeFilter spikes = new SpikeFilter();
+	Barometer baro = new Barometer();
+	baro.setLowPower(low);
+	SampleRateController rc = new SampleRateController();
+	Screen dial = new Screen(low ? DIAL_PERIOD : 0);
+	Screen chart = new Screen(low ? CHART_PERIOD : 0);
+	int level = rc.getLevel();
+	long start = WARMUP * MINUTE, end = MINUTES * MINUTE;
+	long readings = 0, wakeups = 0, cpu = 0;
+	int dial0 = -1, chart0 = -1;
+	long lastDelivery = -1;
+	long ts = 0;				// ns
+	while (ts < end * 1000000L) {
+	    int period = SampleRateController.PERIOD[low ?
+	      SampleRateController.SLOW : level];
+	    ts += period * 1000L;
+	    double h = 100 + fpm / Altimeter.METER_FT * (ts * 1e-9 / 60);
+	    float p = Barometer.a2p(1013.25f, (float)h) +
+	      (float)r.nextGaussian() * 0.01f;
+	    long c0 = System.nanoTime();
+	    float q = spikes.filter(ts, p);
+	    float alt = baro.p2aDamped(q, ts);
+	    // As in the service, the controller gets the reading as it
+	    // came, not the median the spike filter put in its place
+	    float raw = q == p ? baro.raw : baro.p2a(p);
+	    if (!low) level = rc.update(ts, raw, alt, baro.vsi);
+	    cpu += System.nanoTime() - c0;
+
+	    long ms = ts / 1000000L;
+	    long now = low ? (ms + BATCH - 1) / BATCH * BATCH : ms;
+	    if (ms >= start && dial0 < 0) {
+		dial0 = dial.limiter.getFrames();
+		chart0 = chart.limiter.getFrames();
+	    }
+	    // Frames due before this delivery come first
+	    dial.draw(now - 1);
+	    chart.draw(now - 1);
+	    if (ms >= start) {
+		++readings;
+		if (now != lastDelivery) ++wakeups;
+	    }
+	    lastDelivery = now;
+	    float ft = alt * Altimeter.METER_FT;
+	    dial.latest = ft;
+	    if (Float.isNaN(dial.drawn) ||
+	      Math.abs(ft - dial.drawn) * DIAL_PX >= 1)
+		dial.request(now);
+	    chart.request(now);
+	    dial.draw(now);
+	    chart.draw(now);
+	}
+	double m = MINUTES - WARMUP;
+	return new double[] {readings / m, wakeups / m,
+	  (dial.limiter.getFrames() - dial0) / m,
+	  (chart.limiter.getFrames() - chart0) / m,
+	  cpu / 1e6 / MINUTES};
+    }
+
+    public static void main(String[] args) {
+	for (int i = 0; i < 3; ++i) {		// warm up the JIT
+	    run(false, CLIMB);
+	    run(true, CLIMB);
+	}
+	boolean ok = true;
+	System.out.println("per minute          readings  wakeups  " +
+	  "dial  chart  frames  filter CPU");
+	for (int climb = 0; climb < 2; ++climb) {
+	    float fpm = climb == 0 ? 0 : CLIMB;
+	    double[][] res = new double[2][];
+	    for (int low = 0; low < 2; ++low) {
+		double[] a = res[low] = run(low == 1, fpm);
+		System.out.printf("%-5s %-12s %6.0f  %7.0f  %4.0f  %5.0f  " +
+		  "%6.0f  %7.2f ms%n", climb == 0 ? "level" : "+" +
+		  (int)fpm, low == 1 ? "low power" : "normal",
+		  a[0], a[1], a[2], a[3], a[2] + a[3], a[4]);
+	    }
+	    for (int k = 0; k < 4; ++k) {
+		if (res[1][k] > res[0][k]) {
+		    System.out.println("FAIL: low power costs more");
+		    ok = false;
+		}
+	    }
+	}
+	if (!ok) System.exit(1);
+    }
+}
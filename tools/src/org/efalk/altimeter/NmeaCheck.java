@@ -0,0 +1,296 @@
+/**
+ * Command-line check of the NMEA output.
+ */
+
+package org.efalk.altimeter;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Random;
+
+/**
+ * Checks the sentences {@link Nmea} builds and what
+ * {@link NmeaOutput} sends, the way flight software would see them:
+ *
+ *   java -cp bin/classes:tools/bin org.efalk.altimeter.NmeaCheck [seconds]
+ *
+ * First the formatting, for fixed cases and FUZZ random readings:
+ * each sentence starts with '$', ends in CR LF, fits in MAX_LENGTH,
+ * and has the right checksum. $PGRMZ has its 3 fields with the
+ * altitude in whole feet; $LXWP0 has its 12, with the altitude to
+ * 0.1 m and the vario to 0.01 m/s. Each number must read back as the
+ * reading, rounded. Then the cost, which must not allocate.
+ *
+ * Then the output itself, on a free port on the loopback address: a
+ * local UDP listener is bound to that port the way a flight bag
+ * would, the output is started at RATE, and one TCP client reads
+ * while another connects and never reads. For the given time
+ * (default 5 s), every sentence from both the TCP client and the
+ * datagrams must pass the same checks and carry the altitude that
+ * was set, and both must arrive at RATE, within RATE_TOLERANCE,
+ * however stalled the other client is.
+ *
+ * Exits with status 1 if a check fails.
+ */
+public class NmeaCheck {
+    private static final int FUZZ = 100000;
+    private static final int RATE = 5;			// Hz
+    private static final double RATE_TOLERANCE = 0.1;
+    private static final float ALT = 714.8f;		// m
+    private static final float VSI = 1.25f;		// m/s
+
+    private static boolean ok = true;
+
+    /**
+     * Check the framing and checksum of one sentence, without its
+     * CR LF. Returns its fields, or null if it's bad.
+     */
+    private static String[] parse(String s) {
+	int star = s.lastIndexOf('*');
+	if (!s.startsWith("$") || star < 0 || star + 3 != s.length() ||
+	    s.length() + 2 > Nmea.MAX_LENGTH)
+	    return null;
+	int sum = 0;
+	for (int i = 1; i < star; ++i) sum ^= s.charAt(i);
+	String hex = String.format("%02X", sum);
+	if (!hex.equals(s.substring(star + 1))) return null;
+	return s.substring(1, star).split(",", -1);
+    }
+
+    /**
+     * Check a sentence against the reading it should carry.
+     * @return what's wrong, or null
+     */
+    private static String check(String s, float alt, float vsi) {
+	String[] f = parse(s);
+	if (f == null) return "bad framing or checksum";
+	try {
+	    if (f[0].equals("PGRMZ")) {
+		if (f.length != 4 || !f[2].equals("f") || !f[3].equals("3"))
+		    return "bad PGRMZ fields";
+		// Feet are worked out in float, so allow its rounding
+		double ft = alt * (double)Altimeter.METER_FT;
+		if (Math.abs(Long.parseLong(f[1]) - ft) >
+		    0.5 + Math.ulp((float)ft))
+		    return "PGRMZ altitude";
+	    } else if (f[0].equals("LXWP0")) {
+		if (f.length != 13 || !f[1].equals("N") ||
+		    f[2].length() != 0)
+		    return "bad LXWP0 fields";
+		for (int i = 5; i < 13; ++i)
+		    if (f[i].length() != 0) return "bad LXWP0 fields";
+		if (!decimals(f[3], 1) || !decimals(f[4], 2))
+		    return "LXWP0 decimals";
+		if (Math.abs(Double.parseDouble(f[3]) - alt) > 0.05 + 1e-4)
+		    return "LXWP0 altitude";
+		if (Math.abs(Double.parseDouble(f[4]) - vsi) > 0.005 + 1e-4)
+		    return "LXWP0 vario";
+	    } else {
+		return "unknown sentence";
+	    }
+	} catch (NumberFormatException e) {
+	    return "bad number";
+	}
+	return null;
+    }
+
+    private static boolean decimals(String n, int d) {
+	int dot = n.indexOf('.');
+	return dot > 0 && n.length() - dot - 1 == d;
+    }
+
+    private static void fail(String what) {
+	System.out.println("FAIL: " + what);
+	ok = false;
+    }
+
+    private static String format(byte[] b, int off, int n) {
+	if (n < 2 || b[off + n - 2] != '\r' || b[off + n - 1] != '\n') {
+	    fail("sentence doesn't end in CR LF");
+	    return "";
+	}
+	StringBuilder sb = new StringBuilder(n);
+	for (int i = 0; i < n - 2; ++i) sb.append((char)b[off + i]);
+	return sb.toString();
+    }
+
+    private static void formatting() {
+	byte[] b = new byte[Nmea.MAX_LENGTH];
+	float[][] cases = {
+	    {ALT, VSI}, {0, 0}, {-12.34f, -0.05f}, {-0.04f, -0.004f},
+	    {15000, 19.999f}, {Float.NaN, Float.NaN}};
+	for (float[] c : cases) {
+	    String p = format(b, 0, Nmea.pgrmz(b, 0, c[0]));
+	    String x = format(b, 0, Nmea.lxwp0(b, 0, c[0], c[1]));
+	    System.out.println(p);
+	    System.out.println(x);
+	    if (Float.isNaN(c[0])) {
+		// Empty fields, but still well framed
+		String[] f = parse(x);
+		if (parse(p) == null || f == null || f.length != 13 ||
+		    f[3].length() != 0)
+		    fail("NaN reading");
+		continue;
+	    }
+	    String e = check(p, c[0], c[1]);
+	    if (e == null) e = check(x, c[0], c[1]);
+	    if (e != null) fail(e + " for " + c[0] + ", " + c[1]);
+	}
+	Random r = new Random(1);
+	int bad = 0;
+	for (int i = 0; i < FUZZ; ++i) {
+	    float alt = -1000 + r.nextFloat() * 16000;
+	    float vsi = (r.nextFloat() - 0.5f) * 40;
+	    String e = check(format(b, 0, Nmea.pgrmz(b, 0, alt)), alt, vsi);
+	    if (e == null)
+		e = check(format(b, 0, Nmea.lxwp0(b, 0, alt, vsi)), alt, vsi);
+	    if (e != null && bad++ < 5)
+		System.out.println(e + " for " + alt + ", " + vsi);
+	}
+	System.out.printf("%d random readings, %d bad%n", FUZZ, bad);
+	if (bad > 0) fail("formatting");
+
+	int n = 2000000;
+	for (int rep = 0; rep < 3; ++rep) {
+	    long a = Bench.allocated();
+	    long t0 = System.nanoTime();
+	    int len = 0;
+	    for (int i = 0; i < n; ++i) {
+		len += Nmea.pgrmz(b, 0, i * 0.1f);
+		len += Nmea.lxwp0(b, 0, i * 0.1f, (i % 100) * 0.03f - 1.5f);
+	    }
+	    long t1 = System.nanoTime();
+	    long bytes = Bench.allocatedSince(a);
+	    System.out.printf("%.0f ns per pair of sentences, %d bytes " +
+	      "allocated (%d)%n", (t1 - t0) / (double)n, bytes, len / n);
+	    if (rep == 2 && bytes > 0) fail("formatting allocates");
+	}
+    }
+
+    /** Receives datagrams from the output until closed. */
+    private static class Listener extends Thread {
+	final DatagramSocket socket;
+	volatile int sentences = 0, bad = 0;
+
+	Listener(int port) throws IOException {
+	    socket = new DatagramSocket(new InetSocketAddress(
+	      InetAddress.getByName("127.0.0.1"), port));
+	}
+
+	@Override
+	public void run() {
+	    byte[] buf = new byte[512];
+	    DatagramPacket p = new DatagramPacket(buf, buf.length);
+	    try {
+		while (true) {
+		    socket.receive(p);
+		    String s = new String(buf, 0, p.getLength(), "US-ASCII");
+		    String[] lines = s.split("\r\n");
+		    for (String line : lines)
+			if (check(line, ALT, VSI) != null) ++bad;
+		    sentences += lines.length;
+		}
+	    } catch (IOException e) {
+		// closed
+	    }
+	}
+    }
+
+    private static void output(int seconds) throws IOException {
+	ServerSocket probe = new ServerSocket(0);
+	int port = probe.getLocalPort();
+	probe.close();
+	Listener udp = new Listener(port);
+	udp.start();
+
+	// Without the Android thread priority and logging
+	NmeaOutput out = new NmeaOutput() {
+	    @Override
+	    public void run() {
+		try {
+		    serve();
+		} catch (IOException e) {
+		    e.printStackTrace();
+		}
+	    }
+	};
+	// What the service passes: the altitude per the Kollsman setting
+	float k = 1020;
+	out.set(Barometer.p2a(k, Barometer.a2p(1013.25f, ALT)), k, VSI);
+	out.start(port, RATE);
+
+	Socket client = null;
+	for (int i = 0; i < 50 && client == null; ++i) {
+	    try {
+		client = new Socket("127.0.0.1", port);
+	    } catch (IOException e) {
+		sleep(20);		// not listening yet
+	    }
+	}
+	if (client == null) {
+	    fail("no TCP listener on port " + port);
+	    out.stop();
+	    udp.socket.close();
+	    return;
+	}
+	Socket stalled = new Socket();
+	stalled.setReceiveBufferSize(1024);
+	stalled.connect(new InetSocketAddress("127.0.0.1", port));
+	client.setSoTimeout(2000);
+	BufferedReader in = new BufferedReader(
+	  new InputStreamReader(client.getInputStream(), "US-ASCII"));
+	in.readLine();			// may have joined mid-tick
+	int sentences = 0, bad = 0;
+	int udp0 = udp.sentences;
+	long t0 = System.nanoTime();
+	String line;
+	while (System.nanoTime() - t0 < seconds * 1000000000L &&
+	  (line = in.readLine()) != null) {
+	    ++sentences;
+	    String e = check(line, ALT, VSI);
+	    if (e != null && bad++ < 5) System.out.println(e + ": " + line);
+	}
+	double secs = (System.nanoTime() - t0) * 1e-9;
+	int udpSentences = udp.sentences - udp0;
+	long s0 = System.nanoTime();
+	out.stop();
+	long s1 = System.nanoTime();
+	client.close();
+	stalled.close();
+	udp.socket.close();
+
+	double tcpRate = sentences / 2 / secs;
+	double udpRate = udpSentences / 2 / secs;
+	System.out.printf("port %d, %d Hz for %.1f s:%n", port, RATE, secs);
+	System.out.printf("  TCP: %d sentences, %.2f per second each, " +
+	  "%d bad%n", sentences, tcpRate, bad);
+	System.out.printf("  UDP: %d sentences, %.2f per second each, " +
+	  "%d bad%n", udpSentences, udpRate, udp.bad);
+	System.out.printf("  stalled client: %d sentences dropped; " +
+	  "stop() took %.1f ms%n", out.getDropped(), (s1 - s0) / 1e6);
+	if (bad > 0 || udp.bad > 0) fail("bad sentences from the output");
+	if (Math.abs(tcpRate - RATE) > RATE * RATE_TOLERANCE)
+	    fail("TCP rate");
+	if (Math.abs(udpRate - RATE) > RATE * RATE_TOLERANCE)
+	    fail("UDP rate");
+    }
+
+    private static void sleep(long ms) {
+	try {
+	    Thread.sleep(ms);
+	} catch (InterruptedException e) { }
+    }
+
+    public static void main(String[] args) throws IOException {
+	formatting();
+	output(args.length > 0 ? Integer.parseInt(args[0]) : 5);
+	if (!ok) System.exit(1);
+    }
+}
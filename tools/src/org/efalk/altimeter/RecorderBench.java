@@ -0,0 +1,203 @@
+/**
+ * Command-line check and benchmark of session recording.
+ */
+
+package org.efalk.altimeter;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * Records a synthetic session through {@link Recorder} into a
+ * temporary directory and checks and times it, along with loading its
+ * {@link Rollup} tiers back:
+ *
+ *   java -cp bin/classes:tools/bin org.efalk.altimeter.RecorderBench
+ *
+ * First an hour at HZ, the altitude a slow sine. While it's still
+ * open, every few minutes, the files on disk must already hold the
+ * raw samples up to FLUSH_INTERVAL ago and every bucket that closed
+ * before then, which is what a crash would leave.
+ *
+ * Then a session of HOURS, timed. After close(), every tier must have
+ * one bucket per period with the right sample count, and min/max/mean
+ * that agree with the raw log; LogReader must read back every sample.
+ * Recording must not allocate.
+ *
+ * Then each tier is loaded LOADS times and timed, and finally a
+ * session whose last tier file can't be created must fail without
+ * leaving any of its files behind.
+ *
+ * Exits with status 1 if a check fails.
+ */
+public class RecorderBench {
+    private static final int HOURS = 3;
+    private static final int HZ = 20;
+    private static final long PERIOD = 1000000000L / HZ;	// ns
+    private static final long T0 = 5000000000L;		// first ts, ns
+    private static final int LOADS = 5;
+
+    private static boolean ok = true;
+
+    private static void check(boolean cond, String what) {
+	if (!cond) {
+	    System.out.println("FAIL: " + what);
+	    ok = false;
+	}
+    }
+
+    private static float alt(int i) {
+	return (float)(500 + 300 * Math.sin(i / (HZ * 600.0)));
+    }
+
+    private static float vsi(int i) {
+	return (float)(300 * Math.cos(i / (HZ * 600.0)) / 600);
+    }
+
+    /**
+     * Check what's on disk while the session is open, after sample
+     * i was added.
+     */
+    private static void durable(File log, int i) throws IOException {
+	long ts = T0 + i * PERIOD;
+	long raw = (log.length() - Recorder.HDRSIZE) / Recorder.RECSIZE;
+	long want = (ts - Recorder.FLUSH_INTERVAL - T0) / PERIOD + 1;
+	check(raw >= want, "raw samples not flushed after " + i);
+	for (int k = 0; k < Rollup.TIERS.length; ++k) {
+	    Rollup.Series s = Rollup.load(log, k);
+	    long width = Rollup.TIERS[k] * 1000000000L;
+	    // Buckets that closed before the last flush
+	    long closed = (ts - Recorder.FLUSH_INTERVAL - T0) / width;
+	    check(s.n >= closed, "tier " + Rollup.TIERS[k] +
+	      " s: only " + s.n + " of " + closed + " buckets at " + i);
+	}
+    }
+
+    public static void main(String[] args) throws IOException {
+	File dir = File.createTempFile("logs", "");
+	dir.delete();
+	dir.mkdir();
+	try {
+	    crash(dir);
+	    run(dir);
+	    failure(dir);
+	} finally {
+	    for (File f : dir.listFiles()) f.delete();
+	    dir.delete();
+	}
+	if (!ok) System.exit(1);
+    }
+
+    /**
+     * An hour, looking at the files every few minutes as if the app
+     * had been killed there.
+     */
+    private static void crash(File dir) throws IOException {
+	int n = 3600 * HZ, every = 419 * HZ;
+	Recorder r = new Recorder(dir, 1013.25f);
+	try {
+	    for (int i = 0; i < n; ++i) {
+		r.add(T0 + i * PERIOD, 1000, alt(i), vsi(i));
+		if (i % every == every - 1) durable(r.getFile(), i);
+	    }
+	} finally {
+	    r.close();
+	}
+	System.out.printf("open session checked every %d s for an hour%n",
+	  every / HZ);
+	File log = r.getFile();
+	log.delete();
+	for (int k = 0; k < Rollup.TIERS.length; ++k)
+	    Rollup.file(log, k).delete();
+    }
+
+    private static void run(File dir) throws IOException {
+	int n = HOURS * 3600 * HZ;
+	Recorder r = new Recorder(dir, 1013.25f);
+	File log = r.getFile();
+	long a = Bench.allocated();
+	long t0 = System.nanoTime();
+	for (int i = 0; i < n; ++i)
+	    r.add(T0 + i * PERIOD, 1000, alt(i), vsi(i));
+	long t1 = System.nanoTime();
+	long bytes = Bench.allocatedSince(a);
+	r.close();
+	System.out.printf("%d h at %d Hz: %.2f us per sample, %d bytes " +
+	  "allocated, raw log %d KB%n", HOURS, HZ, (t1 - t0) / 1e3 / n,
+	  bytes, log.length() / 1024);
+	check(bytes <= 0, "recording allocates");
+
+	LogReader rdr = new LogReader(log);
+	int count = 0;
+	try {
+	    while (rdr.next()) {
+		if (rdr.ts != T0 + count * PERIOD || rdr.alt != alt(count))
+		    break;
+		++count;
+	    }
+	} finally {
+	    rdr.close();
+	}
+	check(count == n, "raw log read back " + count + " of " + n);
+	log.delete();
+
+	for (int k = 0; k < Rollup.TIERS.length; ++k) {
+	    int per = Rollup.TIERS[k] * HZ;
+	    Rollup.Series s = null;
+	    double best = Double.MAX_VALUE;
+	    for (int rep = 0; rep < LOADS; ++rep) {
+		long l0 = System.nanoTime();
+		s = Rollup.load(log, k);
+		best = Math.min(best, (System.nanoTime() - l0) / 1e6);
+	    }
+	    int bad = 0;
+	    for (int b = 0; b < s.n; ++b) {
+		float lo = Float.MAX_VALUE, hi = -Float.MAX_VALUE;
+		double sum = 0;
+		for (int i = b * per; i < (b + 1) * per; ++i) {
+		    float h = alt(i);
+		    lo = Math.min(lo, h);
+		    hi = Math.max(hi, h);
+		    sum += h;
+		}
+		if (s.index[b] != b || s.count[b] != per ||
+		    s.altMin[b] != lo || s.altMax[b] != hi ||
+		    Math.abs(s.altMean[b] - sum / per) > 1e-3)
+		    ++bad;
+	    }
+	    System.out.printf("%2d s tier: %5d buckets, %d bad, load " +
+	      "%.2f ms (best of %d), %d KB%n", Rollup.TIERS[k], s.n, bad,
+	      best, LOADS, Rollup.file(log, k).length() / 1024);
+	    check(s.n == n / per && bad == 0, Rollup.TIERS[k] + " s tier");
+	    Rollup.file(log, k).delete();
+	}
+    }
+
+    /**
+     * Make the coarsest tier file impossible to create, by putting a
+     * directory in its place for the next few seconds' session names.
+     */
+    private static void failure(File dir) {
+	SimpleDateFormat fmt = new SimpleDateFormat("yyyyMMdd-HHmmss");
+	long now = System.currentTimeMillis();
+	int last = Rollup.TIERS.length - 1;
+	File[] blocks = new File[5];
+	for (int i = 0; i < blocks.length; ++i) {
+	    File log = new File(dir, fmt.format(new Date(now + i * 1000)) +
+	      Recorder.SUFFIX);
+	    blocks[i] = Rollup.file(log, last);
+	    blocks[i].mkdir();
+	}
+	int before = dir.list().length;
+	try {
+	    new Recorder(dir, 1013.25f).close();
+	    check(false, "recorder opened without its last tier file");
+	} catch (IOException e) {
+	    System.out.println("open with a blocked tier file: " + e);
+	}
+	check(dir.list().length == before, "failed session left files");
+	for (File b : blocks) b.delete();
+    }
+}
@@ -0,0 +1,148 @@
+/**
+ * Command-line replay of the adaptive sample rate.
+ */
+
+package org.efalk.altimeter;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Replays a pressure trace through the same {@link SpikeFilter},
+ * {@link Barometer} and {@link SampleRateController} the service
+ * uses, and compares the power proxy, samples per hour, with the
+ * display error for three policies: the fixed UI rate the app used to
+ * run at, always FAST, and adaptive.
+ *
+ *   java -cp bin/classes:tools/bin org.efalk.altimeter.SampleRateReplay [log]
+ *
+ * With a session log (see {@link Recorder}) its pressure readings are
+ * the trace; it should have been recorded at the fast rate, so the
+ * slower policies have readings to choose from. With no log, a
+ * synthetic 2.5 h flight at 50 Hz with 0.25 m of sensor noise is
+ * used: 30 minutes on the ground, a climb at 1500 fpm, an hour of
+ * cruise and a descent at 500 fpm.
+ *
+ * A policy sees a reading only once its sample period is up, as the
+ * sensor would deliver it. The display error is what the policy would
+ * show less what always-FAST shows, at every reading of the trace.
+ * Sampling slowly while steady costs a little rms error from noise;
+ * what matters is keeping up when the altitude starts to change. So
+ * this exits with status 1 if adaptive doesn't use fewer samples than
+ * the fixed UI rate, or its worst error is more than TOLERANCE
+ * bigger.
+ */
+public class SampleRateReplay {
+    private static final int FIXED_UI = 0;
+    private static final int FIXED_FAST = 1;
+    private static final int ADAPTIVE = 2;
+    private static final String[] NAMES = {"UI rate", "FAST", "adaptive"};
+    private static final double TOLERANCE = 0.1;	// meters
+
+    private int n = 0;
+    private long[] ts = new long[65536];
+    private float[] pres = new float[65536];
+
+    private void add(long t, float p) {
+	if (n == ts.length) {
+	    long[] t2 = new long[n * 2];
+	    float[] p2 = new float[n * 2];
+	    System.arraycopy(ts, 0, t2, 0, n);
+	    System.arraycopy(pres, 0, p2, 0, n);
+	    ts = t2;
+	    pres = p2;
+	}
+	ts[n] = t;
+	pres[n++] = p;
+    }
+
+    private void load(File f) throws IOException {
+	LogReader rdr = new LogReader(f);
+	try {
+	    while (rdr.next()) add(rdr.ts, rdr.pres);
+	} finally {
+	    rdr.close();
+	}
+    }
+
+    private void synthesize() {
+	Random r = new Random(1);
+	long period = SampleRateController.PERIOD[SampleRateController.FAST];
+	for (long t = 0; t < 150 * 60 * 1000000L; t += period) {
+	    double m = t / 60e6;			// minutes
+	    double h = 300;
+	    if (m >= 30) h += Math.min(m - 30, 6) * 1500 / Altimeter.METER_FT;
+	    if (m >= 96) h -= Math.min(m - 96, 20) * 500 / Altimeter.METER_FT;
+	    h += r.nextGaussian() * 0.25;
+	    add(t * 1000, Barometer.a2p(1013.25f, (float)h));
+	}
+    }
+
+    /**
+     * Replay the trace with one policy.
+     * @param shown  what was on display at each reading; filled in
+     * @return the number of samples taken
+     */
+    private long replay(int policy, float[] shown) {
+	SpikeFilter spikes = new SpikeFilter();
+	Barometer baro = new Barometer();
+	SampleRateController rc = new SampleRateController();
+	int level = policy == FIXED_UI ? SampleRateController.NORMAL :
+	  policy == FIXED_FAST ? SampleRateController.FAST : rc.getLevel();
+	long samples = 0;
+	long next = Long.MIN_VALUE;
+	float alt = 0;
+	for (int i = 0; i < n; ++i) {
+	    if (ts[i] >= next) {
+		float p = spikes.filter(ts[i], pres[i]);
+		alt = baro.p2aDamped(p, ts[i]);
+		++samples;
+		if (policy == ADAPTIVE) {
+		    float raw = p == pres[i] ? baro.raw : baro.p2a(pres[i]);
+		    level = rc.update(ts[i], raw, alt, baro.vsi);
+		}
+		// 10% slack for timestamp jitter
+		next = ts[i] + SampleRateController.PERIOD[level] * 900L;
+	    }
+	    shown[i] = alt;
+	}
+	return samples;
+    }
+
+    public static void main(String[] args) throws IOException {
+	SampleRateReplay r = new SampleRateReplay();
+	if (args.length > 0) r.load(new File(args[0]));
+	else r.synthesize();
+	if (r.n < 2) {
+	    System.err.println("no readings");
+	    System.exit(2);
+	}
+	double hours = (r.ts[r.n-1] - r.ts[0]) * 1e-9 / 3600;
+	float[] ref = new float[r.n];
+	float[] shown = new float[r.n];
+	r.replay(FIXED_FAST, ref);
+	double[] perHour = new double[3];
+	double[] worst = new double[3];
+	System.out.printf("%d readings, %.2f hours%n", r.n, hours);
+	for (int policy = 0; policy < 3; ++policy) {
+	    perHour[policy] = r.replay(policy, shown) / hours;
+	    double sum = 0, max = 0;
+	    for (int i = 0; i < r.n; ++i) {
+		double e = Math.abs(shown[i] - ref[i]);
+		sum += e * e;
+		if (e > max) max = e;
+	    }
+	    worst[policy] = max;
+	    System.out.printf("%-9s %8.0f samples/h   " +
+	      "display error rms %5.2f m, max %5.2f m%n",
+	      NAMES[policy], perHour[policy], Math.sqrt(sum / r.n), max);
+	}
+	if (perHour[ADAPTIVE] >= perHour[FIXED_UI] ||
+	    worst[ADAPTIVE] > worst[FIXED_UI] + TOLERANCE)
+	{
+	    System.out.println("FAIL: adaptive is no better than UI rate");
+	    System.exit(1);
+	}
+    }
+}
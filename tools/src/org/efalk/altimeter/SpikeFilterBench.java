@@ -0,0 +1,135 @@
+/**
+ * Command-line check and benchmark of the spike filter.
+ */
+
+package org.efalk.altimeter;
+
+import java.util.Random;
+
+/**
+ * Runs {@link SpikeFilter} over a synthetic hour at 100 Hz and checks
+ * what it does and what it costs:
+ *
+ *   java -cp bin/classes:tools/bin org.efalk.altimeter.SpikeFilterBench
+ *
+ * The trace has 0.02 mB of noise and alternates a minute level with a
+ * minute of climb or descent at 8 m/s, starting and stopping sharply.
+ * A copy has isolated one-sample spikes of 0.3 to 1.8 mB added every
+ * few seconds. Reported:
+ *
+ *   - the longest run of clean samples the filter replaced, which is
+ *     its latency on a real change; it must be at most one sample
+ *   - the same for a 1 mB step
+ *   - the share of spikes removed, which must be 99% or more; one
+ *     that lands just after a genuine outlier on the same side looks
+ *     like its confirmation and gets through
+ *   - the worst altitude and VSI error the spikes cause after
+ *     Barometer.p2aDamped, with and without the filter
+ *   - time and allocation per sample
+ *
+ * Exits with status 1 if a check fails.
+ */
+public class SpikeFilterBench {
+    private static final int HZ = 100;
+    private static final int N = 3600 * HZ;
+    private static final long PERIOD = 1000000000L / HZ;	// ns
+    private static final float NOISE = 0.02f;		// mB
+
+    private static boolean ok = true;
+
+    public static void main(String[] args) {
+	Random r = new Random(1);
+	float[] clean = new float[N];
+	float[] spiked = new float[N];
+	boolean[] spike = new boolean[N];
+	double h = 300;
+	for (int i = 0; i < N; ++i) {
+	    int minute = i / (60 * HZ);
+	    float rate = minute % 2 == 0 ? 0 : minute % 4 == 1 ? 8 : -8;
+	    h += rate / HZ;
+	    clean[i] = Barometer.a2p(1013.25f, (float)h) +
+	      (float)r.nextGaussian() * NOISE;
+	}
+	int nSpikes = 0;
+	System.arraycopy(clean, 0, spiked, 0, N);
+	for (int i = 2 * HZ; i < N - 1; i += HZ + r.nextInt(4 * HZ)) {
+	    float mag = 0.3f + 1.5f * r.nextFloat();
+	    spiked[i] += r.nextBoolean() ? mag : -mag;
+	    spike[i] = true;
+	    ++nSpikes;
+	}
+
+	// Latency on real changes
+	SpikeFilter f = new SpikeFilter();
+	int run = 0, longest = 0, replaced = 0;
+	for (int i = 0; i < N; ++i) {
+	    if (f.filter(i * PERIOD, clean[i]) != clean[i]) {
+		++replaced;
+		longest = Math.max(longest, ++run);
+	    } else {
+		run = 0;
+	    }
+	}
+	System.out.printf("clean trace: %d of %d samples replaced (%.2f%%), " +
+	  "longest run %d%n", replaced, N, 100.0 * replaced / N, longest);
+	check(longest <= 1, "latency on a climb or descent over one sample");
+
+	f = new SpikeFilter();
+	int stepLatency = 0;
+	for (int i = 0; i < 200; ++i) {
+	    float p = 1000 + (i >= 100 ? 1 : 0) +
+	      (float)r.nextGaussian() * NOISE;
+	    if (f.filter(i * PERIOD, p) != p && i >= 100) ++stepLatency;
+	}
+	System.out.printf("1 mB step: accepted after %d sample(s)%n",
+	  stepLatency);
+	check(stepLatency <= 1, "step latency over one sample");
+
+	// Spikes
+	f = new SpikeFilter();
+	Barometer ref = new Barometer();
+	Barometer raw = new Barometer();
+	Barometer filt = new Barometer();
+	int removed = 0;
+	float rawAlt = 0, rawVsi = 0, filtAlt = 0, filtVsi = 0;
+	for (int i = 0; i < N; ++i) {
+	    long ts = i * PERIOD;
+	    float y = f.filter(ts, spiked[i]);
+	    if (spike[i] && y != spiked[i]) ++removed;
+	    float a = ref.p2aDamped(clean[i], ts);
+	    rawAlt = Math.max(rawAlt,
+	      Math.abs(raw.p2aDamped(spiked[i], ts) - a));
+	    filtAlt = Math.max(filtAlt, Math.abs(filt.p2aDamped(y, ts) - a));
+	    rawVsi = Math.max(rawVsi, Math.abs(raw.vsi - ref.vsi));
+	    filtVsi = Math.max(filtVsi, Math.abs(filt.vsi - ref.vsi));
+	}
+	System.out.printf("spikes: %d of %d removed%n", removed, nSpikes);
+	System.out.printf("max altitude error %.2f m -> %.2f m, " +
+	  "VSI %.2f m/s -> %.2f m/s%n", rawAlt, filtAlt, rawVsi, filtVsi);
+	check(removed >= nSpikes * 0.99, "spikes got through");
+
+	// Cost
+	for (int rep = 0; rep < 5; ++rep) {
+	    f = new SpikeFilter();
+	    float sum = 0;
+	    long a = Bench.allocated();
+	    long t0 = System.nanoTime();
+	    for (int i = 0; i < N; ++i) sum += f.filter(i * PERIOD, spiked[i]);
+	    long t1 = System.nanoTime();
+	    long bytes = Bench.allocatedSince(a);
+	    double ns = (double)(t1 - t0) / N;
+	    System.out.printf("%.0f ns/sample, %.4f%% of a core at %d Hz, " +
+	      "%d bytes allocated (%.0f)%n", ns, ns * HZ / 1e7, HZ, bytes,
+	      sum / N);
+	    if (rep == 4) check(bytes <= 0, "filter allocates");
+	}
+	if (!ok) System.exit(1);
+    }
+
+    private static void check(boolean pass, String what) {
+	if (!pass) {
+	    System.out.println("FAIL: " + what);
+	    ok = false;
+	}
+    }
+}
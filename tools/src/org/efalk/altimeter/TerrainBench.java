@@ -0,0 +1,212 @@
+/**
+ * Command-line check and benchmark of the terrain lookup.
+ */
+
+package org.efalk.altimeter;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Writes synthetic SRTM tiles to a temporary directory and checks and
+ * times {@link Terrain} on them:
+ *
+ *   java -cp bin/classes:tools/bin org.efalk.altimeter.TerrainBench
+ *
+ * The tiles are a 4x4 block of 3" tiles (1201 samples a side) around
+ * N36-39 W121-124 and one 1" tile (3601) at N46 E007, sampled from a
+ * smooth surface and rounded to whole meters, with one void. This
+ * checks that every grid point reads back exactly, that random points
+ * are within TOLERANCE of the surface, that the void is filled from a
+ * neighbour, that a missing tile or a bad position gives NaN, and
+ * that a tile bigger than the address-space budget isn't mapped.
+ *
+ * Then the cost: the first lookup in a tile with an empty cache (open
+ * and map; the files are in the page cache, so a real cold start also
+ * pays for reading a page per sample row from storage), a tile that
+ * isn't there, lookups along a track within one tile and scattered
+ * over all 16 mapped tiles, and a budget too small for the tiles in
+ * use, which remaps on every lookup. Warm lookups must not allocate.
+ *
+ * Exits with status 1 if a check fails.
+ */
+public class TerrainBench {
+    private static final int LAT = 36, LON = -124;	// southwest corner
+    private static final int BLOCK = 4;			// tiles a side
+    private static final int N3 = 1201, N1 = 3601;	// samples a side
+    private static final int VOID_LAT = 37, VOID_LON = -122;
+    private static final int VOID_ROW = 600, VOID_COL = 600;
+    private static final long BUDGET = 64L << 20;	// as the app uses
+    private static final double TOLERANCE = 0.51;	// m
+    private static final int POINTS = 100000;
+
+    private static boolean ok = true;
+
+    /** The surface the tiles sample, m */
+    private static double surface(double lat, double lon) {
+	return 1000 + 300 * Math.sin(lat * 3) + 200 * Math.cos(lon * 2);
+    }
+
+    /** Stored sample, row 0 at the north edge */
+    private static short sample(int la, int lo, int n, int r, int c) {
+	if (la == VOID_LAT && lo == VOID_LON && r == VOID_ROW &&
+	    c == VOID_COL)
+	    return -32768;
+	return (short)Math.round(surface(la + 1 - r / (double)(n - 1),
+	  lo + c / (double)(n - 1)));
+    }
+
+    private static void write(File dir, int la, int lo, int n)
+	throws IOException
+    {
+	byte[] row = new byte[n * 2];
+	FileOutputStream out =
+	  new FileOutputStream(new File(dir, Terrain.name(la, lo)));
+	try {
+	    for (int r = 0; r < n; ++r) {
+		for (int c = 0; c < n; ++c) {
+		    short h = sample(la, lo, n, r, c);
+		    row[c * 2] = (byte)(h >> 8);
+		    row[c * 2 + 1] = (byte)h;
+		}
+		out.write(row);
+	    }
+	} finally {
+	    out.close();
+	}
+    }
+
+    private static void check(boolean cond, String what) {
+	if (!cond) {
+	    System.out.println("FAIL: " + what);
+	    ok = false;
+	}
+    }
+
+    private static void accuracy(File dir) {
+	Terrain t = new Terrain(dir, BUDGET);
+	int bad = 0;
+	for (int r = 0; r < N3; r += 7) {
+	    for (int c = 0; c < N3; c += 7) {
+		if (r == VOID_ROW && c == VOID_COL) continue;
+		float e = t.elevation(VOID_LAT + 1 - r / (double)(N3 - 1),
+		  VOID_LON + c / (double)(N3 - 1));
+		if (e != sample(VOID_LAT, VOID_LON, N3, r, c)) ++bad;
+	    }
+	}
+	System.out.printf("grid points: %d don't read back%n", bad);
+	check(bad == 0, "grid points");
+
+	Random rnd = new Random(1);
+	double worst = 0;
+	for (int i = 0; i < POINTS; ++i) {
+	    double lat = LAT + rnd.nextDouble() * BLOCK;
+	    double lon = LON + rnd.nextDouble() * BLOCK;
+	    worst = Math.max(worst,
+	      Math.abs(t.elevation(lat, lon) - surface(lat, lon)));
+	    lat = 46 + rnd.nextDouble();
+	    lon = 7 + rnd.nextDouble();
+	    worst = Math.max(worst,
+	      Math.abs(t.elevation(lat, lon) - surface(lat, lon)));
+	}
+	System.out.printf("%d random points: worst error %.3f m%n",
+	  POINTS * 2, worst);
+	check(worst <= TOLERANCE, "interpolation error");
+
+	double lat = VOID_LAT + 1 - VOID_ROW / (double)(N3 - 1);
+	double lon = VOID_LON + VOID_COL / (double)(N3 - 1);
+	float e = t.elevation(lat, lon);
+	System.out.printf("at the void: %.1f m, surface %.1f m%n", e,
+	  surface(lat, lon));
+	check(e == sample(VOID_LAT, VOID_LON, N3, VOID_ROW, VOID_COL + 1),
+	  "void not filled from its neighbour");
+	check(Float.isNaN(t.elevation(50.5, 7.5)), "missing tile");
+	check(Float.isNaN(t.elevation(91, 0)) &&
+	  Float.isNaN(t.elevation(0, Double.NaN)), "bad position");
+
+	Terrain small = new Terrain(dir, 8L << 20);
+	check(Float.isNaN(small.elevation(46.5, 7.5)),
+	  "1\" tile mapped over an 8 MB budget");
+	check(!Float.isNaN(small.elevation(37.5, -122.5)),
+	  "3\" tile not mapped within an 8 MB budget");
+    }
+
+    private static void cost(File dir) {
+	for (int rep = 0; rep < 3; ++rep) {
+	    Terrain t = new Terrain(dir, BUDGET);
+	    long t0 = System.nanoTime();
+	    float e = t.elevation(38.5, -123.5);
+	    long t1 = System.nanoTime();
+	    e += t.elevation(46.5, 7.5);
+	    long t2 = System.nanoTime();
+	    e += t.elevation(10.5, 7.5);
+	    long t3 = System.nanoTime();
+	    e += t.elevation(10.6, 7.6);
+	    long t4 = System.nanoTime();
+	    System.out.printf("empty cache: 3\" tile %.0f us, 1\" tile " +
+	      "%.0f us, missing %.0f us then %.2f us%n", (t1 - t0) / 1e3,
+	      (t2 - t1) / 1e3, (t3 - t2) / 1e3, (t4 - t3) / 1e3);
+	    check(Float.isNaN(e), "missing tile");
+	}
+
+	Random rnd = new Random(2);
+	double[] track = new double[8192], spread = new double[8192];
+	for (int i = 0; i < track.length; i += 2) {
+	    track[i] = 37 + rnd.nextDouble();
+	    track[i + 1] = -122 + rnd.nextDouble();
+	    spread[i] = LAT + rnd.nextDouble() * BLOCK;
+	    spread[i + 1] = LON + rnd.nextDouble() * BLOCK;
+	}
+	Terrain t = new Terrain(dir, BUDGET);
+	warm(t, track, "one tile");
+	warm(t, spread, "16 tiles");
+
+	Terrain small = new Terrain(dir, 8L << 20);
+	int n = 20000;
+	float sink = 0;
+	long t0 = System.nanoTime();
+	for (int i = 0; i < n; ++i)
+	    sink += small.elevation(LAT + 0.5 + i % BLOCK, LON + 0.5);
+	long t1 = System.nanoTime();
+	System.out.printf("8 MB budget, 4 tiles in turn: %.1f us per " +
+	  "lookup (%.0f)%n", (t1 - t0) / 1e3 / n, sink / n);
+    }
+
+    private static void warm(Terrain t, double[] pos, String what) {
+	int n = 20000000;
+	int mask = pos.length - 1;
+	for (int rep = 0; rep < 3; ++rep) {
+	    float sink = 0;
+	    long a = Bench.allocated();
+	    long t0 = System.nanoTime();
+	    for (int i = 0; i < n; i += 2)
+		sink += t.elevation(pos[i & mask], pos[(i & mask) + 1]);
+	    long t1 = System.nanoTime();
+	    long bytes = Bench.allocatedSince(a);
+	    System.out.printf("warm, %s: %.1f ns per lookup, %d bytes " +
+	      "allocated (%.0f)%n", what, (t1 - t0) / (n / 2.0), bytes,
+	      sink / (n / 2));
+	    if (rep == 2) check(bytes <= 0, "warm lookups allocate");
+	}
+    }
+
+    public static void main(String[] args) throws IOException {
+	File dir = File.createTempFile("terrain", "");
+	dir.delete();
+	dir.mkdir();
+	try {
+	    for (int la = LAT; la < LAT + BLOCK; ++la)
+		for (int lo = LON; lo < LON + BLOCK; ++lo)
+		    write(dir, la, lo, N3);
+	    write(dir, 46, 7, N1);
+	    accuracy(dir);
+	    cost(dir);
+	} finally {
+	    for (File f : dir.listFiles()) f.delete();
+	    dir.delete();
+	}
+	if (!ok) System.exit(1);
+    }
+}
@@ -0,0 +1,148 @@
+/**
+ * Command-line check of the audio variometer's latency.
+ */
+
+package org.efalk.altimeter;
+
+/**
+ * Drives the {@link Variometer} synthesis the way its audio thread
+ * does, against a simulated AudioTrack, and reports how long a change
+ * in vertical speed takes to be heard:
+ *
+ *   java -cp bin/classes:tools/bin org.efalk.altimeter.VarioLatency
+ *
+ * The track plays RATE frames a second from a buffer of the given
+ * size, rounded up to whole chunks as Variometer does, and a write
+ * blocks until a chunk fits. Readings arrive every sensor period.
+ * For each buffer and period two figures are given:
+ *
+ *   - the latency the vario logs on a device: for each new reading,
+ *     the time since it arrived plus the audio queued ahead of it
+ *   - from a step from level to a 2 m/s climb, at STEPS different
+ *     points between readings, to the first audible frame of the
+ *     beep, mean and worst
+ *
+ * The service runs the sensor at FAST while the vario is on, and
+ * there the step must be heard within TARGET for any buffer up to
+ * MAX_CHECKED ms. NORMAL is shown for comparison: its period alone
+ * takes most of the budget. A device whose minimum AudioTrack buffer
+ * is bigger than MAX_CHECKED can't meet the target; run with the
+ * buffer in ms as the argument to see by how much.
+ *
+ * Then the synthesis cost per chunk is measured, which must not
+ * allocate.
+ *
+ * Exits with status 1 if a check fails.
+ */
+public class VarioLatency {
+    private static final int RATE = Variometer.RATE;
+    private static final int CHUNK = Variometer.CHUNK;
+    private static final double TARGET = 0.1;		// s
+    private static final int MAX_CHECKED = 50;		// ms of buffer
+    private static final int STEPS = 50;
+    private static final int AUDIBLE = 100;		// sample magnitude
+
+    private static boolean ok = true;
+
+    /**
+     * Play a step from level to climbing.
+     * @param frames  track buffer, frames
+     * @param period  sensor period, s
+     * @param step    time of the step, s
+     * @param lat     logged latency: sum, max and count; added to
+     * @return time from the step to the first audible frame, s
+     */
+    private static double step(int frames, double period, double step,
+	double[] lat)
+    {
+	Variometer v = new Variometer();
+	short[] buf = new short[CHUNK];
+	long written = 0;
+	double t = 0, next = 0, reading = -1, last = -1;
+	float vsi = 0;
+	while (t < step + 2) {
+	    // Blocked until there's room for a chunk
+	    t = Math.max(t, (written - (frames - CHUNK)) / (double)RATE);
+	    while (next <= t) {
+		vsi = next >= step ? 2 : 0;
+		reading = next;
+		next += period;
+	    }
+	    if (reading != last) {
+		last = reading;
+		double l = t - reading + (written - t * RATE) / RATE;
+		lat[0] += l;
+		lat[1] = Math.max(lat[1], l);
+		++lat[2];
+	    }
+	    v.setTone(vsi);
+	    v.render(buf, CHUNK);
+	    if (t >= step) {
+		for (int i = 0; i < CHUNK; ++i)
+		    if (Math.abs(buf[i]) > AUDIBLE)
+			return (written + i) / (double)RATE - step;
+	    }
+	    written += CHUNK;
+	}
+	return Double.POSITIVE_INFINITY;
+    }
+
+    private static void run(int ms, int period) {
+	int frames = (ms * RATE / 1000 + CHUNK - 1) / CHUNK * CHUNK;
+	double[] lat = new double[3];
+	double sum = 0, worst = 0;
+	for (int i = 0; i < STEPS; ++i) {
+	    double d = step(frames, period * 1e-6,
+	      5 + i * period * 1e-6 / STEPS, lat);
+	    sum += d;
+	    worst = Math.max(worst, d);
+	}
+	System.out.printf("%4.0f ms  %4d ms   %5.1f / %5.1f ms       " +
+	  "%5.1f / %5.1f ms%n", frames * 1000.0 / RATE, period / 1000,
+	  lat[0] / lat[2] * 1000, lat[1] * 1000, sum / STEPS * 1000,
+	  worst * 1000);
+	if (period == SampleRateController.PERIOD[SampleRateController.FAST] &&
+	  ms <= MAX_CHECKED && worst > TARGET) {
+	    System.out.println("FAIL: step heard after more than " +
+	      (int)(TARGET * 1000) + " ms");
+	    ok = false;
+	}
+    }
+
+    public static void main(String[] args) {
+	int[] buffers = {20, 46, 93};
+	if (args.length > 0) buffers = new int[] {Integer.parseInt(args[0])};
+	int[] periods = {
+	  SampleRateController.PERIOD[SampleRateController.FAST],
+	  SampleRateController.PERIOD[SampleRateController.NORMAL]};
+	System.out.println("buffer  sensor   logged mean / max    " +
+	  "step heard mean / max");
+	for (int ms : buffers)
+	    for (int p : periods)
+		run(ms, p);
+
+	// Synthesis cost, over the whole range of tones
+	Variometer v = new Variometer();
+	short[] buf = new short[CHUNK];
+	int n = 2000000;
+	for (int rep = 0; rep < 3; ++rep) {
+	    long a = Bench.allocated();
+	    long t0 = System.nanoTime();
+	    for (int i = 0; i < n; ++i) {
+		v.setTone((i % 400) / 40f - 3);
+		v.render(buf, CHUNK);
+	    }
+	    long t1 = System.nanoTime();
+	    long bytes = Bench.allocatedSince(a);
+	    double ns = (t1 - t0) / (double)n;
+	    System.out.printf("%.2f us per chunk, %.3f%% of real time, " +
+	      "%d bytes allocated%n", ns / 1000,
+	      ns / 1e9 / ((double)CHUNK / RATE) * 100, bytes);
+	    if (rep == 2 && bytes > 0) {
+		System.out.println("FAIL: synthesis allocates");
+		ok = false;
+	    }
+	}
+	if (!ok) System.exit(1);
+    }
+}
@@ -0,0 +1,143 @@
+/**
+ * One altitude stream subscriber, for load testing.
+ */
+
+package org.efalk.altimeter.streamclient;
+
+import android.app.Service;
+import android.content.ComponentName;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Process;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.efalk.altimeter.IAltitudeCallback;
+import org.efalk.altimeter.IAltitudeStream;
+
+/**
+ * Subscribes to the altimeter's stream for a while and logs what it
+ * got and what it cost. Each subclass is declared in its own process,
+ * so every subscriber is a separate binder client, as other apps
+ * would be, and its CPU time is its process's alone.
+ *
+ * Started by {@link StreamClient} with the batch period, sample
+ * spacing and duration as extras.
+ */
+public class Client extends Service {
+    static final String TAG = "StreamClient";
+    static final String ACTION = "org.efalk.altimeter.ALTITUDE_STREAM";
+    static final String PACKAGE = "org.efalk.altimeter";
+    static final String EXTRA_BATCH = "batch";		// ms
+    static final String EXTRA_SAMPLE = "sample";	// ms
+    static final String EXTRA_SECONDS = "seconds";
+
+    public static class C1 extends Client {}
+    public static class C2 extends Client {}
+    public static class C3 extends Client {}
+    public static class C4 extends Client {}
+    public static class C5 extends Client {}
+    public static class C6 extends Client {}
+    public static class C7 extends Client {}
+    public static class C8 extends Client {}
+
+    private final Handler handler = new Handler();
+    private IAltitudeStream stream;
+    private boolean busy = false;
+    private int batch, sample, seconds;
+    private long t0, cpu0;		// ms
+
+    // Written on a binder thread; oneway calls from one sender
+    // arrive one at a time
+    private volatile long batches, readings, lastTs = -1, maxGap;
+    private volatile int disordered;
+
+    private final IAltitudeCallback callback = new IAltitudeCallback.Stub() {
+	public void onReadings(long[] ts, float[] pres, float[] alt,
+	    float[] vsi)
+	{
+	    long last = lastTs, gap = maxGap;
+	    for (int i = 0; i < ts.length; ++i) {
+		if (last >= 0) {
+		    if (ts[i] <= last) ++disordered;
+		    gap = Math.max(gap, ts[i] - last);
+		}
+		last = ts[i];
+	    }
+	    lastTs = last;
+	    maxGap = gap;
+	    readings += ts.length;
+	    ++batches;
+	}
+    };
+
+    private final ServiceConnection connection = new ServiceConnection() {
+	public void onServiceConnected(ComponentName name, IBinder service) {
+	    stream = IAltitudeStream.Stub.asInterface(service);
+	    t0 = SystemClock.elapsedRealtime();
+	    cpu0 = Process.getElapsedCpuTime();
+	    try {
+		stream.subscribe(callback, batch, sample);
+	    } catch (RemoteException e) {
+		Log.e(TAG, "subscribe failed: " + e);
+		finish.run();
+		return;
+	    }
+	    handler.postDelayed(finish, seconds * 1000L);
+	}
+	public void onServiceDisconnected(ComponentName name) {
+	    Log.w(TAG, getClass().getSimpleName() + ": altimeter went away");
+	    stream = null;
+	}
+    };
+
+    private final Runnable finish = new Runnable() {
+	public void run() {
+	    handler.removeCallbacks(this);
+	    if (stream != null) {
+		try {
+		    stream.unsubscribe(callback);
+		} catch (RemoteException e) {
+		}
+		report();
+	    }
+	    unbindService(connection);
+	    stream = null;
+	    busy = false;
+	    stopSelf();
+	}
+    };
+
+    @Override
+    public void onStart(Intent intent, int startId) {
+	if (busy || intent == null) return;
+	batch = intent.getIntExtra(EXTRA_BATCH, 1000);
+	sample = intent.getIntExtra(EXTRA_SAMPLE, 0);
+	seconds = intent.getIntExtra(EXTRA_SECONDS, 60);
+	busy = bindService(new Intent(ACTION).setPackage(PACKAGE),
+	  connection, BIND_AUTO_CREATE);
+	if (!busy) {
+	    Log.e(TAG, "can't bind to " + PACKAGE);
+	    stopSelf();
+	}
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+	return null;
+    }
+
+    private void report() {
+	double secs = (SystemClock.elapsedRealtime() - t0) / 1e3;
+	long cpu = Process.getElapsedCpuTime() - cpu0;
+	long b = batches, n = readings;
+	Log.i(TAG, String.format("%s: batch %d ms, sample %d ms, %.0f s: " +
+	  "%d batches, %d readings, %.1f readings/s, max gap %.0f ms, " +
+	  "%d out of order; %d ms CPU, %.0f us per batch",
+	  getClass().getSimpleName(), batch, sample, secs, b, n, n / secs,
+	  maxGap / 1e6, disordered, cpu, b > 0 ? cpu * 1e3 / b : 0.));
+    }
+}
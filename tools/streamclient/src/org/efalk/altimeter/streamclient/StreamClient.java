@@ -0,0 +1,55 @@
+/**
+ * On-device load test of the altimeter's altitude stream.
+ */
+
+package org.efalk.altimeter.streamclient;
+
+import android.app.Activity;
+import android.content.Intent;
+import android.os.Bundle;
+import android.util.Log;
+
+/**
+ * Starts several {@link Client}s, each in its own process, subscribed
+ * to the altimeter's stream at the same batch period, and goes away:
+ *
+ *   make streamclient
+ *   adb install -r tools/streamclient/bin/StreamClient-debug.apk
+ *   adb shell am start -n org.efalk.altimeter.streamclient/.StreamClient \
+ *       --ei clients 4 --ei batch 1000 --ei sample 0 --ei seconds 60
+ *   adb logcat -s StreamClient Altimeter
+ *
+ * When they're done, each client logs the batches and readings it
+ * got, readings per second, the largest gap between readings and its
+ * process's CPU time, and the altimeter logs, per subscriber, the
+ * batches and readings it sent, any it lost, and its own CPU time per
+ * batch. Throughput is the clients' readings per second added up.
+ *
+ * The stream runs at whatever rate the sensor does; turn the vario on
+ * in the altimeter to hold it at the FAST rate.
+ */
+public class StreamClient extends Activity {
+    private static final Class<?>[] CLIENTS = {
+	Client.C1.class, Client.C2.class, Client.C3.class, Client.C4.class,
+	Client.C5.class, Client.C6.class, Client.C7.class, Client.C8.class,
+    };
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+	super.onCreate(savedInstanceState);
+	Intent in = getIntent();
+	int n = Math.max(1, Math.min(in.getIntExtra("clients", 4),
+	  CLIENTS.length));
+	int batch = in.getIntExtra(Client.EXTRA_BATCH, 1000);
+	int sample = in.getIntExtra(Client.EXTRA_SAMPLE, 0);
+	int seconds = in.getIntExtra(Client.EXTRA_SECONDS, 60);
+	for (int i = 0; i < n; ++i)
+	    startService(new Intent(this, CLIENTS[i])
+	      .putExtra(Client.EXTRA_BATCH, batch)
+	      .putExtra(Client.EXTRA_SAMPLE, sample)
+	      .putExtra(Client.EXTRA_SECONDS, seconds));
+	Log.i(Client.TAG, String.format("%d clients, batch %d ms, " +
+	  "sample %d ms, for %d s", n, batch, sample, seconds));
+	finish();
+    }
+}